@@ -0,0 +1,113 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package ftpservmobile;
+
+import java.io.IOException;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.MemoryNetwork;
+import javax.microedition.io.file.MemoryFileSystem;
+
+/**
+ * Sets up the server wide services the way FtpServer.startApp() does, on
+ * top of the in-memory file system and network, and opens sessions that
+ * read a script of commands over and over again. The log is never
+ * created, so nothing is logged.
+ */
+final class BenchServer {
+	static final String DIR_PATH = "root1/bench";            // directory the benchmarks work in
+	static final String DIR_URL = "file:///" + DIR_PATH;
+	static final int FILE_CACHE_SIZE = 64 * 1024;
+	static final int LISTING_CACHE_SIZE = 32 * 1024;
+
+	private static TimingWheel idleSupervisor = null;
+
+	private BenchServer() {
+	}
+
+	/**
+	 * Start with an empty file system and fresh services, using the
+	 * defaults of the application descriptor.
+	 * @param fileCacheSize    Size of the file cache, 0 to turn it off.
+	 * @param listingCacheSize Size of the listing cache, 0 to turn it off.
+	 */
+	static void start(int fileCacheSize, int listingCacheSize) {
+		stop();
+		Connector.setProvider("file", MemoryFileSystem.getInstance());
+		Connector.setProvider("socket", MemoryNetwork.getInstance());
+		MemoryFileSystem.getInstance().reset();
+		MemoryFileSystem.getInstance().createDirectory(DIR_PATH);
+		MemoryNetwork.setUploadSize(0);
+		ConnectionThread.passivePorts = new PassivePortAllocator(5001, 16);
+		ConnectionThread.fileMetadata = new MetadataCache(256, 10000);
+		ConnectionThread.fileContents = new FileCache(fileCacheSize, 16 * 1024);
+		ConnectionThread.listings = new ListingCache(listingCacheSize, 30000);
+		ConnectionThread.transferBuffers = new BufferPool(64 * 1024);
+		ConnectionThread.metrics = new Metrics(8);
+		ConnectionThread.dataConnections = new DataConnectionPool(4, ConnectionThread.fileMetadata,
+				ConnectionThread.fileContents, ConnectionThread.listings, ConnectionThread.transferBuffers,
+				ConnectionThread.metrics, 2, 512, 8192);
+		// Never started, the idle timers are only ever reset
+		idleSupervisor = new TimingWheel(1000, 64);
+	}
+
+	static void start() {
+		start(FILE_CACHE_SIZE, LISTING_CACHE_SIZE);
+	}
+
+	/**
+	 * Stop the data connection workers. The sessions should have been shut down first.
+	 */
+	static void stop() {
+		if (idleSupervisor != null) {
+			ConnectionThread.dataConnections.shutdown();
+			ConnectionThread.passivePorts.close();
+			idleSupervisor = null;
+		}
+	}
+
+	/**
+	 * Open a session whose client sends the given commands again and
+	 * again. The replies are dropped. The working directory is DIR_URL.
+	 * @param script Commands, each ending with CRLF.
+	 * @return       The session, the welcome message has been sent.
+	 * @throws IOException
+	 */
+	static ConnectionThread openSession(String script) throws IOException {
+		ConnectionThread session = new ConnectionThread(
+				MemoryNetwork.connect(MemoryNetwork.repeat(script.getBytes("US-ASCII")), MemoryNetwork.discard()),
+				"127.0.0.1", idleSupervisor);
+		session.open();
+		session.cwdUrl = DIR_URL;
+		return session;
+	}
+
+	/**
+	 * Create files named file0.bin, file1.bin and so on in the benchmark directory.
+	 * @param count Number of files.
+	 * @param size  Size of each file.
+	 */
+	static void createFiles(int count, int size) {
+		for (int i = 0; i < count; i++) {
+			MemoryFileSystem.getInstance().createFile(DIR_PATH + "/file" + i + ".bin", new byte[size]);
+		}
+	}
+}
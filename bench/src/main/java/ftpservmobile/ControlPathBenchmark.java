@@ -0,0 +1,86 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package ftpservmobile;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per-command work of a session before a handler runs: reading the
+ * line, splitting off the argument and resolving the path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ControlPathBenchmark {
+	private ConnectionThread session;
+	private String command = "STOR  some dir/file name.txt";
+	private String relativePath = "sub/file0.bin";
+	private String absolutePath = "/root1/bench/sub/";
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		BenchServer.start();
+		session = BenchServer.openSession("RETR sub/file0.bin\r\n");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		session.shutdown();
+		BenchServer.stop();
+	}
+
+	@Benchmark
+	public String getLine() throws Exception {
+		return session.getLine();
+	}
+
+	@Benchmark
+	public String stripArgument() {
+		return session.stripArgument(command);
+	}
+
+	@Benchmark
+	public String getAbsolutePathRelative() {
+		return session.getAbsolutePath(relativePath);
+	}
+
+	@Benchmark
+	public String getAbsolutePathAbsolute() {
+		return session.getAbsolutePath(absolutePath);
+	}
+}
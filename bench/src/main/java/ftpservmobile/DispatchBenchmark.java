@@ -0,0 +1,80 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package ftpservmobile;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One pass of the session state machine for commands that are answered
+ * on the control connection: read, look up the handler, execute, reply.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+	@Param({ "NOOP", "PWD", "TYPE I", "CWD /root1/bench", "SIZE file0.bin", "MLST file0.bin", "FEAT", "XUNKNOWN" })
+	public String command;
+
+	@Param({ "false", "true" })
+	public boolean pipelining;
+
+	private ConnectionThread session;
+	private int state;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		BenchServer.start();
+		BenchServer.createFiles(16, 1024);
+		session = BenchServer.openSession(command + "\r\n");
+		session.setPipelining(pipelining);
+		state = FtpState.IDLE;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		session.shutdown();
+		BenchServer.stop();
+	}
+
+	@Benchmark
+	public int processState() throws Exception {
+		state = session.processState(state);
+		return state;
+	}
+}
@@ -0,0 +1,93 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package ftpservmobile;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Handing commands between a session and its data connection worker with
+ * ThreadCommunicator. The round trip uses a second thread that sends every
+ * command straight back, the way a worker answers the session.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandoffBenchmark {
+	private ThreadCommunicator requests;
+	private ThreadCommunicator replies;
+	private ThreadCommunicator local;
+	private Thread echo;
+	private ThreadCommand command = new ThreadCommand(FtpCommand.CONTINUE);
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		requests = new ThreadCommunicator();
+		replies = new ThreadCommunicator();
+		local = new ThreadCommunicator();
+		echo = new Thread() {
+			public void run() {
+				while (true) {
+					ThreadCommand request = requests.getCommand();
+					if (request.getCommand() == FtpCommand.CLOSE) {
+						break;
+					}
+					replies.putCommand(request);
+				}
+			}
+		};
+		echo.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		requests.close();
+		echo.join();
+	}
+
+	@Benchmark
+	public ThreadCommand roundTrip() {
+		requests.putCommand(command);
+		return replies.getCommand();
+	}
+
+	@Benchmark
+	public ThreadCommand putThenGet() {
+		// Same thread on both sides, no wakeups involved
+		local.putCommand(command);
+		return local.getCommand();
+	}
+}
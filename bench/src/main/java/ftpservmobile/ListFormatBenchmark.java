@@ -0,0 +1,84 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package ftpservmobile;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Formatting one line of a LIST reply.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListFormatBenchmark {
+	private DataConnectionThread worker;
+	private FileMetadata metadata;
+	private String permissions = "-rw------- ";
+	private String size = "123456";
+	private String name = "file0.bin";
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		BenchServer.start();
+		BenchServer.createFiles(1, 123456);
+		// Never started, only its formatting methods are used
+		worker = new DataConnectionThread(ConnectionThread.fileMetadata, ConnectionThread.fileContents,
+				ConnectionThread.listings, ConnectionThread.transferBuffers, ConnectionThread.metrics, 2, 512, 8192);
+		metadata = FileMetadata.probe(BenchServer.DIR_URL + "/" + name);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		BenchServer.stop();
+	}
+
+	@Benchmark
+	public String formatListDetails() {
+		return worker.formatListDetails(permissions, size, name);
+	}
+
+	@Benchmark
+	public String formatFileInfo() {
+		return worker.formatFileInfo(metadata, name);
+	}
+
+	@Benchmark
+	public String formatFacts() {
+		return metadata.formatFacts(name);
+	}
+}
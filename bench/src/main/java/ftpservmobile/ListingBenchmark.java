@@ -0,0 +1,84 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package ftpservmobile;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A whole directory listing as a client sees it: PASV, then LIST, NLST or
+ * MLSD. This takes in the handoff to the data connection worker and
+ * DataConnectionThread.processListCommand() and its siblings.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListingBenchmark {
+	@Param({ "LIST", "NLST", "MLSD" })
+	public String command;
+
+	@Param({ "16", "256" })
+	public int entries;
+
+	@Param({ "true", "false" })
+	public boolean cached;
+
+	private ConnectionThread session;
+	private int state;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		BenchServer.start(BenchServer.FILE_CACHE_SIZE, cached ? BenchServer.LISTING_CACHE_SIZE : 0);
+		BenchServer.createFiles(entries, 1024);
+		session = BenchServer.openSession("PASV\r\n" + command + " /root1/bench\r\n");
+		state = FtpState.IDLE;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		session.shutdown();
+		BenchServer.stop();
+	}
+
+	@Benchmark
+	public int list() throws Exception {
+		state = session.processState(state);
+		state = session.processState(state);
+		return state;
+	}
+}
@@ -0,0 +1,105 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package ftpservmobile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.microedition.io.MemoryNetwork;
+import javax.microedition.io.file.MemoryFileSystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * File transfers. retr and stor are whole transfers as a client sees them,
+ * PASV followed by RETR or STOR, copy is the TransferPipeline copy loop on
+ * its own. Small downloads are served from the file cache after the first.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransferBenchmark {
+	@Param({ "1024", "65536", "1048576" })
+	public int size;
+
+	private ConnectionThread retrSession;
+	private ConnectionThread storSession;
+	private int retrState;
+	private int storState;
+	private TransferPipeline pipeline;
+	private OutputStream sink;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		BenchServer.start();
+		MemoryFileSystem.getInstance().createFile(BenchServer.DIR_PATH + "/download.bin", new byte[size]);
+		MemoryNetwork.setUploadSize(size);
+		retrSession = BenchServer.openSession("PASV\r\nRETR download.bin\r\n");
+		storSession = BenchServer.openSession("PASV\r\nSTOR upload.bin\r\n");
+		retrState = FtpState.IDLE;
+		storState = FtpState.IDLE;
+		pipeline = new TransferPipeline(ConnectionThread.transferBuffers, 2, 512, 8192);
+		sink = MemoryNetwork.discard();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		retrSession.shutdown();
+		storSession.shutdown();
+		pipeline.shutdown();
+		BenchServer.stop();
+	}
+
+	@Benchmark
+	public int retr() throws Exception {
+		retrState = retrSession.processState(retrState);
+		retrState = retrSession.processState(retrState);
+		return retrState;
+	}
+
+	@Benchmark
+	public int stor() throws Exception {
+		storState = storSession.processState(storState);
+		storState = storSession.processState(storState);
+		return storState;
+	}
+
+	@Benchmark
+	public long copy() throws IOException {
+		return pipeline.transfer(MemoryNetwork.generate(size), sink, size);
+	}
+}
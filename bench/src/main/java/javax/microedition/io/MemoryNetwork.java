@@ -0,0 +1,247 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package javax.microedition.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * In-memory stand-in for TCP sockets. A server socket accepts a new
+ * connection straight away every time it is asked to, as if the client
+ * were always already connecting. What the client uploads on such a
+ * connection is a generated pattern of a set length, whatever the server
+ * sends is counted and dropped. This lets the data connections of the
+ * server run without a client and without the cost of a real socket.
+ */
+public final class MemoryNetwork implements ConnectionProvider {
+	public static final String CLIENT_ADDRESS = "127.0.0.1";
+	private static final int PATTERN_SIZE = 4096;
+	private static final byte[] PATTERN = new byte[PATTERN_SIZE];
+
+	private static MemoryNetwork instance = new MemoryNetwork();
+	private static volatile long uploadSize = 0;   // bytes the client sends on each accepted connection
+	private static long bytesSent = 0;             // bytes the server has sent, guarded by the class
+
+	static {
+		for (int i = 0; i < PATTERN_SIZE; i++) {
+			PATTERN[i] = (byte) ('a' + i % 26);
+		}
+	}
+
+	private MemoryNetwork() {
+	}
+
+	public static MemoryNetwork getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Open a socket URL. Only server sockets, socket://:port, are supported.
+	 * @param name     The URL.
+	 * @param mode     Ignored.
+	 * @param timeouts Ignored.
+	 * @return         The server socket.
+	 * @throws IOException
+	 */
+	public Connection open(String name, int mode, boolean timeouts) throws IOException {
+		if (!name.startsWith("socket://")) {
+			throw new IllegalArgumentException("Invalid URL: " + name);
+		}
+		String address = name.substring("socket://".length());
+		int colon = address.lastIndexOf(':');
+		if (colon == -1) {
+			throw new IllegalArgumentException("No port in URL: " + name);
+		}
+		int port;
+		try {
+			port = (colon + 1 < address.length()) ? Integer.parseInt(address.substring(colon + 1)) : 0;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid port in URL: " + name);
+		}
+		if (colon != 0) {
+			throw new ConnectionNotFoundException("Client sockets are not supported: " + name);
+		}
+		return new MemoryServerSocket(port);
+	}
+
+	/**
+	 * Set how many bytes the client uploads on each connection accepted from now on.
+	 * @param size
+	 */
+	public static void setUploadSize(long size) {
+		uploadSize = size;
+	}
+
+	/**
+	 * @return Total number of bytes the server has sent on accepted connections
+	 *         and on connections made with discard().
+	 */
+	public static synchronized long getBytesSent() {
+		return bytesSent;
+	}
+
+	private static synchronized void addBytesSent(long count) {
+		bytesSent += count;
+	}
+
+	/**
+	 * Make the connection a server socket accepts.
+	 * @param port Local port of the server socket.
+	 * @return     The connection.
+	 */
+	static SocketConnection accept(int port) {
+		return new MemorySocketConnection(generate(uploadSize), discard(), CLIENT_ADDRESS, port);
+	}
+
+	/**
+	 * Make a connection as if a client at CLIENT_ADDRESS had connected.
+	 * @param in  What the client sends.
+	 * @param out Where the replies of the server go.
+	 * @return    The connection, as seen by the server.
+	 */
+	public static SocketConnection connect(InputStream in, OutputStream out) {
+		return new MemorySocketConnection(in, out, CLIENT_ADDRESS, 21);
+	}
+
+	/**
+	 * @param data The bytes to repeat.
+	 * @return     A stream that sends the given bytes over and over again, it never ends.
+	 */
+	public static InputStream repeat(byte[] data) {
+		return new RepeatingInputStream(data);
+	}
+
+	/**
+	 * @param length Number of bytes in the stream.
+	 * @return       A stream of the given length filled with a fixed pattern.
+	 */
+	public static InputStream generate(long length) {
+		return new PatternInputStream(length);
+	}
+
+	/**
+	 * @return A stream that counts the bytes written to it and drops them.
+	 */
+	public static OutputStream discard() {
+		return new DiscardingOutputStream();
+	}
+
+	/**
+	 * Sends a block of bytes again and again.
+	 */
+	private static class RepeatingInputStream extends InputStream {
+		private byte[] data;
+		private int position = 0;
+
+		RepeatingInputStream(byte[] data) {
+			if (data.length == 0) {
+				throw new IllegalArgumentException("Nothing to repeat");
+			}
+			this.data = data;
+		}
+
+		public int read() {
+			int b = data[position] & 0xff;
+			position = (position + 1) % data.length;
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			int count = 0;
+			while (count < len) {
+				int chunk = Math.min(len - count, data.length - position);
+				System.arraycopy(data, position, b, off + count, chunk);
+				count += chunk;
+				position = (position + chunk) % data.length;
+			}
+			return count;
+		}
+
+		public int available() {
+			return data.length;
+		}
+	}
+
+	/**
+	 * Sends a fixed number of bytes taken from the pattern.
+	 */
+	private static class PatternInputStream extends InputStream {
+		private long remaining;
+
+		PatternInputStream(long length) {
+			remaining = length;
+		}
+
+		public int read() {
+			if (remaining <= 0) {
+				return -1;
+			}
+			remaining--;
+			return PATTERN[(int) (remaining % PATTERN_SIZE)] & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int count = (int) Math.min(Math.min(len, remaining), PATTERN_SIZE);
+			System.arraycopy(PATTERN, 0, b, off, count);
+			remaining -= count;
+			return count;
+		}
+
+		public long skip(long n) {
+			long skipped = Math.max(0, Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		public int available() {
+			return (int) Math.min(remaining, Integer.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Counts what the server sends.
+	 */
+	private static class DiscardingOutputStream extends OutputStream {
+		private boolean closed = false;
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			if (off < 0 || len < 0 || off + len > b.length) {
+				throw new IndexOutOfBoundsException();
+			}
+			addBytesSent(len);
+		}
+
+		public void close() {
+			closed = true;
+		}
+	}
+}
@@ -0,0 +1,57 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package javax.microedition.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * A server socket of the MemoryNetwork, every accept succeeds at once.
+ */
+class MemoryServerSocket implements ServerSocketConnection {
+	private int port;
+	private boolean closed = false;
+
+	MemoryServerSocket(int port) {
+		this.port = port;
+	}
+
+	public StreamConnection acceptAndOpen() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				throw new InterruptedIOException("Server socket closed");
+			}
+		}
+		return MemoryNetwork.accept(port);
+	}
+
+	public String getLocalAddress() {
+		return "127.0.0.1";
+	}
+
+	public int getLocalPort() {
+		return port;
+	}
+
+	public synchronized void close() {
+		closed = true;
+	}
+}
@@ -0,0 +1,108 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package javax.microedition.io;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A socket connection of the MemoryNetwork, made from a pair of streams.
+ */
+class MemorySocketConnection implements SocketConnection {
+	private InputStream in;
+	private OutputStream out;
+	private String address;         // address of the remote end
+	private int localPort;
+	private int[] options = new int[5];
+	private boolean closed = false;
+
+	MemorySocketConnection(InputStream in, OutputStream out, String address, int localPort) {
+		this.in = in;
+		this.out = out;
+		this.address = address;
+		this.localPort = localPort;
+	}
+
+	private synchronized void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Connection closed");
+		}
+	}
+
+	public InputStream openInputStream() throws IOException {
+		ensureOpen();
+		return in;
+	}
+
+	public DataInputStream openDataInputStream() throws IOException {
+		return new DataInputStream(openInputStream());
+	}
+
+	public OutputStream openOutputStream() throws IOException {
+		ensureOpen();
+		return out;
+	}
+
+	public DataOutputStream openDataOutputStream() throws IOException {
+		return new DataOutputStream(openOutputStream());
+	}
+
+	public synchronized void setSocketOption(byte option, int value) throws IOException {
+		if (option < 0 || option >= options.length) {
+			throw new IllegalArgumentException("Unknown option " + option);
+		}
+		options[option] = value;
+	}
+
+	public synchronized int getSocketOption(byte option) throws IOException {
+		if (option < 0 || option >= options.length) {
+			throw new IllegalArgumentException("Unknown option " + option);
+		}
+		return options[option];
+	}
+
+	public String getLocalAddress() throws IOException {
+		ensureOpen();
+		return "127.0.0.1";
+	}
+
+	public int getLocalPort() throws IOException {
+		ensureOpen();
+		return localPort;
+	}
+
+	public String getAddress() throws IOException {
+		ensureOpen();
+		return address;
+	}
+
+	public int getPort() throws IOException {
+		ensureOpen();
+		return 0;
+	}
+
+	public synchronized void close() {
+		closed = true;
+	}
+}
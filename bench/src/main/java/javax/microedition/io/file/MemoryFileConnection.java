@@ -0,0 +1,497 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package javax.microedition.io.file;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.Vector;
+
+/**
+ * A file connection to the MemoryFileSystem. Like a JSR-75 connection it
+ * may point at a path that doesn't exist yet, and directory URLs end
+ * with a /.
+ */
+class MemoryFileConnection implements FileConnection {
+	private static final String PREFIX = "file:///";
+
+	private MemoryFileSystem fs;
+	private String url;
+	private String path;            // the URL without the prefix and any trailing /
+	private boolean open = true;
+
+	MemoryFileConnection(MemoryFileSystem fs, String url) {
+		if (!url.startsWith(PREFIX)) {
+			throw new IllegalArgumentException("Invalid file URL: " + url);
+		}
+		this.fs = fs;
+		setUrl(url);
+	}
+
+	private void setUrl(String newUrl) {
+		url = newUrl;
+		path = newUrl.substring(PREFIX.length());
+		while (path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (!open) {
+			throw new IOException("Connection closed");
+		}
+	}
+
+	/**
+	 * Find the node of the connection. Must be called with the file system locked.
+	 * @return The node, or null if it doesn't exist.
+	 */
+	private MemoryFileSystem.Node node() {
+		return fs.lookup(path);
+	}
+
+	/**
+	 * Find the node of an existing file. Must be called with the file system locked.
+	 * @return The node.
+	 * @throws IOException If there is no such file.
+	 */
+	private MemoryFileSystem.Node file() throws IOException {
+		ensureOpen();
+		MemoryFileSystem.Node node = node();
+		if (node == null || node.directory) {
+			throw new IOException("Not a file: " + url);
+		}
+		return node;
+	}
+
+	/**
+	 * Find the directory the connection's path would be in. Must be called
+	 * with the file system locked.
+	 * @return The directory.
+	 * @throws IOException If the directory doesn't exist.
+	 */
+	private MemoryFileSystem.Node parent() throws IOException {
+		int slash = path.lastIndexOf('/');
+		MemoryFileSystem.Node parent = (slash == -1) ? null : fs.lookup(path.substring(0, slash));
+		if (parent == null || !parent.directory) {
+			throw new IOException("No such directory for " + url);
+		}
+		return parent;
+	}
+
+	private String name() {
+		return path.substring(path.lastIndexOf('/') + 1);
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	public InputStream openInputStream() throws IOException {
+		synchronized (fs) {
+			return new NodeInputStream(file());
+		}
+	}
+
+	public DataInputStream openDataInputStream() throws IOException {
+		return new DataInputStream(openInputStream());
+	}
+
+	public OutputStream openOutputStream() throws IOException {
+		return openOutputStream(0);
+	}
+
+	public DataOutputStream openDataOutputStream() throws IOException {
+		return new DataOutputStream(openOutputStream());
+	}
+
+	public OutputStream openOutputStream(long byteOffset) throws IOException {
+		if (byteOffset < 0) {
+			throw new IllegalArgumentException("Negative offset");
+		}
+		synchronized (fs) {
+			MemoryFileSystem.Node node = file();
+			if (!node.writable) {
+				throw new SecurityException("File is read only: " + url);
+			}
+			return new NodeOutputStream(node, Math.min(byteOffset, node.length));
+		}
+	}
+
+	public long totalSize() {
+		return fs.getCapacity();
+	}
+
+	public long availableSize() {
+		return fs.getCapacity() - fs.getUsedSize();
+	}
+
+	public long usedSize() {
+		return fs.getUsedSize();
+	}
+
+	public long directorySize(boolean includeSubDirs) throws IOException {
+		synchronized (fs) {
+			ensureOpen();
+			MemoryFileSystem.Node node = node();
+			if (node == null || !node.directory) {
+				throw new IOException("Not a directory: " + url);
+			}
+			return node.size(includeSubDirs);
+		}
+	}
+
+	public long fileSize() throws IOException {
+		synchronized (fs) {
+			return file().length;
+		}
+	}
+
+	public boolean canRead() {
+		synchronized (fs) {
+			MemoryFileSystem.Node node = node();
+			return node != null && node.readable;
+		}
+	}
+
+	public boolean canWrite() {
+		synchronized (fs) {
+			MemoryFileSystem.Node node = node();
+			return node != null && node.writable;
+		}
+	}
+
+	public boolean isHidden() {
+		synchronized (fs) {
+			MemoryFileSystem.Node node = node();
+			return node != null && node.hidden;
+		}
+	}
+
+	public void setReadable(boolean readable) throws IOException {
+		synchronized (fs) {
+			existing().readable = readable;
+		}
+	}
+
+	public void setWritable(boolean writable) throws IOException {
+		synchronized (fs) {
+			existing().writable = writable;
+		}
+	}
+
+	public void setHidden(boolean hidden) throws IOException {
+		synchronized (fs) {
+			existing().hidden = hidden;
+		}
+	}
+
+	private MemoryFileSystem.Node existing() throws IOException {
+		ensureOpen();
+		MemoryFileSystem.Node node = node();
+		if (node == null) {
+			throw new IOException("No such file or directory: " + url);
+		}
+		return node;
+	}
+
+	public Enumeration list() throws IOException {
+		return list("*", false);
+	}
+
+	public Enumeration list(String filter, boolean includeHidden) throws IOException {
+		if (filter == null) {
+			throw new NullPointerException("Null filter");
+		}
+		synchronized (fs) {
+			ensureOpen();
+			MemoryFileSystem.Node node = node();
+			if (node == null || !node.directory) {
+				throw new IOException("Not a directory: " + url);
+			}
+			Vector names = new Vector();
+			for (int i = 0; i < node.children.size(); i++) {
+				MemoryFileSystem.Node child = (MemoryFileSystem.Node) node.children.elementAt(i);
+				if ((includeHidden || !child.hidden) && matches(child.name, 0, filter, 0)) {
+					names.addElement(child.directory ? child.name + "/" : child.name);
+				}
+			}
+			return names.elements();
+		}
+	}
+
+	/**
+	 * JSR-75 filters only know the * wildcard.
+	 */
+	private static boolean matches(String name, int n, String filter, int f) {
+		while (f < filter.length()) {
+			char c = filter.charAt(f);
+			if (c == '*') {
+				for (int i = n; i <= name.length(); i++) {
+					if (matches(name, i, filter, f + 1)) {
+						return true;
+					}
+				}
+				return false;
+			}
+			if (n >= name.length() || name.charAt(n) != c) {
+				return false;
+			}
+			n++;
+			f++;
+		}
+		return n == name.length();
+	}
+
+	public void create() throws IOException {
+		synchronized (fs) {
+			ensureOpen();
+			if (url.endsWith("/")) {
+				throw new IOException("Can't create a file with a directory URL: " + url);
+			}
+			if (node() != null) {
+				throw new IOException("Already exists: " + url);
+			}
+			MemoryFileSystem.Node parent = parent();
+			parent.add(new MemoryFileSystem.Node(parent, name(), false));
+		}
+	}
+
+	public void mkdir() throws IOException {
+		synchronized (fs) {
+			ensureOpen();
+			if (node() != null) {
+				throw new IOException("Already exists: " + url);
+			}
+			MemoryFileSystem.Node parent = parent();
+			parent.add(new MemoryFileSystem.Node(parent, name(), true));
+		}
+	}
+
+	public boolean exists() {
+		synchronized (fs) {
+			return node() != null;
+		}
+	}
+
+	public boolean isDirectory() {
+		synchronized (fs) {
+			MemoryFileSystem.Node node = node();
+			return node != null && node.directory;
+		}
+	}
+
+	public void delete() throws IOException {
+		synchronized (fs) {
+			MemoryFileSystem.Node node = existing();
+			if (node.parent == null || node.parent.parent == null) {
+				throw new IOException("Can't delete a root: " + url);
+			}
+			if (node.directory && !node.children.isEmpty()) {
+				throw new IOException("Directory not empty: " + url);
+			}
+			node.parent.remove(node);
+		}
+	}
+
+	public void rename(String newName) throws IOException {
+		if (newName.indexOf('/') != -1) {
+			throw new IllegalArgumentException("Invalid name: " + newName);
+		}
+		synchronized (fs) {
+			MemoryFileSystem.Node node = existing();
+			MemoryFileSystem.Node parent = node.parent;
+			if (parent.child(newName) != null) {
+				throw new IOException("Already exists: " + newName);
+			}
+			parent.remove(node);
+			node.name = newName;
+			parent.add(node);
+			setUrl(PREFIX + path.substring(0, path.lastIndexOf('/') + 1) + newName + (node.directory ? "/" : ""));
+		}
+	}
+
+	public void truncate(long byteOffset) throws IOException {
+		if (byteOffset < 0) {
+			throw new IllegalArgumentException("Negative offset");
+		}
+		synchronized (fs) {
+			MemoryFileSystem.Node node = file();
+			if (byteOffset < node.length) {
+				node.length = (int) byteOffset;
+				node.lastModified = System.currentTimeMillis();
+			}
+		}
+	}
+
+	public void setFileConnection(String fileName) throws IOException {
+		synchronized (fs) {
+			MemoryFileSystem.Node node = existing();
+			if (!node.directory) {
+				throw new IOException("Not a directory: " + url);
+			}
+			String dirUrl = PREFIX + path + "/";
+			if (fileName.equals("..")) {
+				int slash = path.lastIndexOf('/');
+				if (slash == -1) {
+					throw new IOException("Already at a root: " + url);
+				}
+				setUrl(PREFIX + path.substring(0, slash + 1));
+			} else {
+				MemoryFileSystem.Node child = node.child(fileName.endsWith("/") ? fileName.substring(0, fileName.length() - 1) : fileName);
+				if (child == null) {
+					throw new IllegalArgumentException("No such file or directory: " + fileName);
+				}
+				setUrl(dirUrl + child.name + (child.directory ? "/" : ""));
+			}
+		}
+	}
+
+	public String getName() {
+		String name = name();
+		return url.endsWith("/") ? name + "/" : name;
+	}
+
+	public String getPath() {
+		int slash = path.lastIndexOf('/');
+		return "/" + ((slash == -1) ? "" : path.substring(0, slash + 1));
+	}
+
+	public String getURL() {
+		return url;
+	}
+
+	public long lastModified() {
+		synchronized (fs) {
+			MemoryFileSystem.Node node = node();
+			return (node != null) ? node.lastModified : 0;
+		}
+	}
+
+	public void close() {
+		open = false;
+	}
+
+	/**
+	 * Reads a file, each read sees the file as it is at that moment.
+	 */
+	private class NodeInputStream extends InputStream {
+		private MemoryFileSystem.Node node;
+		private long position = 0;
+		private long mark = 0;
+
+		NodeInputStream(MemoryFileSystem.Node node) {
+			this.node = node;
+		}
+
+		public int read() {
+			synchronized (fs) {
+				if (position >= node.length) {
+					return -1;
+				}
+				return node.data[(int) position++] & 0xff;
+			}
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if (off < 0 || len < 0 || off + len > b.length) {
+				throw new IndexOutOfBoundsException();
+			}
+			synchronized (fs) {
+				if (position >= node.length) {
+					return (len == 0) ? 0 : -1;
+				}
+				int count = (int) Math.min(len, node.length - position);
+				System.arraycopy(node.data, (int) position, b, off, count);
+				position += count;
+				return count;
+			}
+		}
+
+		public long skip(long n) {
+			synchronized (fs) {
+				long skipped = Math.max(0, Math.min(n, node.length - position));
+				position += skipped;
+				return skipped;
+			}
+		}
+
+		public int available() {
+			synchronized (fs) {
+				return (int) Math.max(0, node.length - position);
+			}
+		}
+
+		public boolean markSupported() {
+			return true;
+		}
+
+		public void mark(int readLimit) {
+			mark = position;
+		}
+
+		public void reset() {
+			position = mark;
+		}
+	}
+
+	/**
+	 * Writes a file from a given position on, overwriting what is there.
+	 */
+	private class NodeOutputStream extends OutputStream {
+		private MemoryFileSystem.Node node;
+		private long position;
+		private boolean closed = false;
+
+		NodeOutputStream(MemoryFileSystem.Node node, long position) {
+			this.node = node;
+			this.position = position;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (off < 0 || len < 0 || off + len > b.length) {
+				throw new IndexOutOfBoundsException();
+			}
+			synchronized (fs) {
+				if (closed) {
+					throw new IOException("Stream closed");
+				}
+				node.ensureCapacity(position + len);
+				System.arraycopy(b, off, node.data, (int) position, len);
+				position += len;
+				if (position > node.length) {
+					node.length = (int) position;
+				}
+				node.lastModified = System.currentTimeMillis();
+			}
+		}
+
+		public void close() {
+			closed = true;
+		}
+	}
+}
@@ -0,0 +1,258 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package javax.microedition.io.file;
+
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import javax.microedition.io.Connection;
+
+/**
+ * A file system kept in memory, it stands in for the JSR-75 file system so
+ * that the benchmarks measure the server and not the disk. It starts with
+ * a single empty root called root1. All files are guarded by one lock, the
+ * file system itself.
+ */
+public final class MemoryFileSystem implements FileSystemProvider {
+	public static final String DEFAULT_ROOT = "root1/";
+	private static final long CAPACITY = 1L << 30;   // reported size of the file system
+
+	private static MemoryFileSystem instance = new MemoryFileSystem();
+
+	private Node root = null;
+
+	private MemoryFileSystem() {
+		reset();
+	}
+
+	public static MemoryFileSystem getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Remove everything and start again with only the default root.
+	 */
+	public synchronized void reset() {
+		root = new Node(null, "", true);
+		addRoot(DEFAULT_ROOT);
+	}
+
+	/**
+	 * Add a root, it starts empty.
+	 * @param name Name of the root, eg. "root2/".
+	 */
+	public synchronized void addRoot(String name) {
+		String rootName = name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+		if (root.child(rootName) == null) {
+			root.add(new Node(root, rootName, true));
+		}
+	}
+
+	public synchronized Enumeration listRoots() {
+		Vector names = new Vector();
+		for (int i = 0; i < root.children.size(); i++) {
+			names.addElement(((Node) root.children.elementAt(i)).name + "/");
+		}
+		return names.elements();
+	}
+
+	/**
+	 * Create a directory and any missing parents.
+	 * @param path Path below the roots, eg. "root1/dir/sub".
+	 */
+	public synchronized void createDirectory(String path) {
+		Node node = root;
+		String[] names = split(path);
+		for (int i = 0; i < names.length; i++) {
+			Node child = node.child(names[i]);
+			if (child == null) {
+				child = new Node(node, names[i], true);
+				node.add(child);
+			} else if (!child.directory) {
+				throw new IllegalArgumentException(path + " is a file");
+			}
+			node = child;
+		}
+	}
+
+	/**
+	 * Create or replace a file, missing parent directories are created.
+	 * @param path Path below the roots, eg. "root1/dir/file.txt".
+	 * @param data Contents of the file, not copied.
+	 */
+	public synchronized void createFile(String path, byte[] data) {
+		int slash = path.lastIndexOf('/');
+		if (slash > 0) {
+			createDirectory(path.substring(0, slash));
+		}
+		Node parent = lookup(path.substring(0, Math.max(slash, 0)));
+		String name = path.substring(slash + 1);
+		Node file = parent.child(name);
+		if (file == null) {
+			file = new Node(parent, name, false);
+			parent.add(file);
+		} else if (file.directory) {
+			throw new IllegalArgumentException(path + " is a directory");
+		}
+		file.data = data;
+		file.length = data.length;
+		file.lastModified = System.currentTimeMillis();
+	}
+
+	/**
+	 * @param path Path below the roots.
+	 * @return     The contents of the file, or null if there is no such file.
+	 */
+	public synchronized byte[] readFile(String path) {
+		Node file = lookup(path);
+		if (file == null || file.directory) {
+			return null;
+		}
+		byte[] data = new byte[file.length];
+		System.arraycopy(file.data, 0, data, 0, file.length);
+		return data;
+	}
+
+	/**
+	 * Open a file URL.
+	 * @param url      The URL, eg. file:///root1/dir/file.txt.
+	 * @param mode     Ignored, connections are always READ_WRITE.
+	 * @param timeouts Ignored.
+	 * @return         The file connection.
+	 */
+	public Connection open(String url, int mode, boolean timeouts) {
+		return new MemoryFileConnection(this, url);
+	}
+
+	private static String[] split(String path) {
+		Vector names = new Vector();
+		int start = 0;
+		while (start < path.length()) {
+			int end = path.indexOf('/', start);
+			if (end == -1) {
+				end = path.length();
+			}
+			if (end > start) {
+				names.addElement(path.substring(start, end));
+			}
+			start = end + 1;
+		}
+		String[] result = new String[names.size()];
+		names.copyInto(result);
+		return result;
+	}
+
+	/**
+	 * Find a node. Must be called with the file system locked.
+	 * @param path Path below the roots, a trailing / is ignored.
+	 * @return     The node, or null if it doesn't exist.
+	 */
+	Node lookup(String path) {
+		Node node = root;
+		String[] names = split(path);
+		for (int i = 0; i < names.length && node != null; i++) {
+			node = node.directory ? node.child(names[i]) : null;
+		}
+		return node;
+	}
+
+	long getCapacity() {
+		return CAPACITY;
+	}
+
+	synchronized long getUsedSize() {
+		return root.size(true);
+	}
+
+	/**
+	 * A file or directory. Guarded by the file system lock.
+	 */
+	static class Node {
+		Node parent;
+		String name;
+		boolean directory;
+		Vector children = null;         // Nodes in the order they were added, directories only
+		Hashtable childNames = null;    // Node keyed by name, directories only
+		byte[] data = new byte[0];      // files only, valid up to length
+		int length = 0;
+		long lastModified;
+		boolean readable = true;
+		boolean writable = true;
+		boolean hidden = false;
+
+		Node(Node parent, String name, boolean directory) {
+			this.parent = parent;
+			this.name = name;
+			this.directory = directory;
+			if (directory) {
+				children = new Vector();
+				childNames = new Hashtable();
+			}
+			lastModified = System.currentTimeMillis();
+		}
+
+		Node child(String childName) {
+			return (Node) childNames.get(childName);
+		}
+
+		void add(Node child) {
+			children.addElement(child);
+			childNames.put(child.name, child);
+			lastModified = System.currentTimeMillis();
+		}
+
+		void remove(Node child) {
+			children.removeElement(child);
+			childNames.remove(child.name);
+			lastModified = System.currentTimeMillis();
+		}
+
+		/**
+		 * Make room for the file to grow to the given length.
+		 * @param newLength
+		 */
+		void ensureCapacity(long newLength) throws IOException {
+			if (newLength > Integer.MAX_VALUE) {
+				throw new IOException("File too large");
+			}
+			if (newLength > data.length) {
+				byte[] grown = new byte[(int) Math.min(Integer.MAX_VALUE, Math.max(newLength, data.length * 2L))];
+				System.arraycopy(data, 0, grown, 0, length);
+				data = grown;
+			}
+		}
+
+		long size(boolean includeSubDirs) {
+			if (!directory) {
+				return length;
+			}
+			long total = 0;
+			for (int i = 0; i < children.size(); i++) {
+				Node child = (Node) children.elementAt(i);
+				if (!child.directory || includeSubDirs) {
+					total += child.size(includeSubDirs);
+				}
+			}
+			return total;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package ftpservmobile.desktop;
+
+import ftpservmobile.FtpServer;
+
+import javax.microedition.io.file.NioFileSystem;
+import javax.microedition.midlet.MIDletLauncher;
+
+/**
+ * Runs the server on a desktop or server JVM without a screen. The MIDlet
+ * is the same as on a phone, it runs on the java.nio stand-ins of the
+ * MIDP and JSR-75 APIs. The roots of the file system are host directories
+ * named on the command line, the attributes come from an application
+ * descriptor and can be overridden one by one.
+ */
+public final class DesktopMain {
+	private static final String USAGE =
+			"Usage: DesktopMain [-descriptor FILE] -root NAME=DIR [-root NAME=DIR ...] [-set ATTRIBUTE=VALUE ...]\n"
+			+ "  -descriptor FILE       read the attributes of an application descriptor\n"
+			+ "  -root NAME=DIR         serve the host directory DIR as the root NAME, eg. root1=/srv/ftp\n"
+			+ "  -set ATTRIBUTE=VALUE   set an attribute, eg. FtpServer-ListenPort=2121\n"
+			+ "The log goes to ftpLog.txt in the last root, and to stdout with FtpServer-DebugMode=true.";
+
+	private DesktopMain() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		// Passive replies can only carry IPv4 addresses
+		if (System.getProperty("java.net.preferIPv4Stack") == null) {
+			System.setProperty("java.net.preferIPv4Stack", "true");
+		}
+
+		int roots = 0;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String option = args[i];
+				if (i + 1 == args.length) {
+					throw new IllegalArgumentException("Missing value for " + option);
+				}
+				String value = args[++i];
+				if (option.equals("-descriptor")) {
+					MIDletLauncher.loadDescriptor(value);
+				} else if (option.equals("-root")) {
+					NioFileSystem.getInstance().addRoot(name(value), value.substring(value.indexOf('=') + 1));
+					roots++;
+				} else if (option.equals("-set")) {
+					MIDletLauncher.setAppProperty(name(value), value.substring(value.indexOf('=') + 1));
+				} else {
+					throw new IllegalArgumentException("Unknown option " + option);
+				}
+			}
+			if (roots == 0) {
+				throw new IllegalArgumentException("At least one -root is needed");
+			}
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+
+		final FtpServer server = new FtpServer();
+		Runtime.getRuntime().addShutdownHook(new Thread("FtpServer shutdown") {
+			public void run() {
+				try {
+					MIDletLauncher.destroy(server);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+
+		// Returns once the server has stopped accepting clients
+		MIDletLauncher.start(server);
+		MIDletLauncher.awaitDestroyed(server);
+	}
+
+	/**
+	 * @param setting A setting of the form NAME=VALUE.
+	 * @return        The name.
+	 */
+	private static String name(String setting) {
+		int equals = setting.indexOf('=');
+		if (equals <= 0) {
+			throw new IllegalArgumentException("Expected NAME=VALUE: " + setting);
+		}
+		return setting.substring(0, equals);
+	}
+}
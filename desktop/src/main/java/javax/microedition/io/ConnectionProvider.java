@@ -0,0 +1,37 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package javax.microedition.io;
+
+import java.io.IOException;
+
+/**
+ * Opens the connections of one URL scheme, see Connector.setProvider().
+ */
+public interface ConnectionProvider {
+	/**
+	 * @param name     The URL.
+	 * @param mode     Connector.READ, WRITE or READ_WRITE.
+	 * @param timeouts True if the caller wants timeout exceptions.
+	 * @return         The connection.
+	 * @throws IOException
+	 */
+	Connection open(String name, int mode, boolean timeouts) throws IOException;
+}
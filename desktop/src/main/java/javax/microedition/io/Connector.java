@@ -0,0 +1,107 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package javax.microedition.io;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Hashtable;
+
+import javax.microedition.io.file.NioFileSystem;
+
+/**
+ * Stand-in for the CLDC connector. Each URL scheme is served by a
+ * provider, file:// URLs by the NioFileSystem and socket:// URLs by the
+ * NioNetwork unless other providers are set.
+ */
+public class Connector {
+	public static final int READ = 1;
+	public static final int WRITE = 2;
+	public static final int READ_WRITE = 3;
+
+	private static Hashtable providers = new Hashtable();   // ConnectionProvider keyed by scheme
+
+	static {
+		providers.put("file", NioFileSystem.getInstance());
+		providers.put("socket", NioNetwork.getInstance());
+	}
+
+	private Connector() {
+	}
+
+	/**
+	 * Serve a URL scheme with the given provider from now on.
+	 * @param scheme   The scheme, eg. "socket".
+	 * @param provider
+	 */
+	public static void setProvider(String scheme, ConnectionProvider provider) {
+		providers.put(scheme, provider);
+	}
+
+	/**
+	 * @param scheme The scheme, eg. "file".
+	 * @return       The provider serving the scheme, or null if none does.
+	 */
+	public static ConnectionProvider getProvider(String scheme) {
+		return (ConnectionProvider) providers.get(scheme);
+	}
+
+	public static Connection open(String name) throws IOException {
+		return open(name, READ_WRITE, false);
+	}
+
+	public static Connection open(String name, int mode) throws IOException {
+		return open(name, mode, false);
+	}
+
+	public static Connection open(String name, int mode, boolean timeouts) throws IOException {
+		if (name == null) {
+			throw new IllegalArgumentException("Null URL");
+		}
+		int colon = name.indexOf(':');
+		if (colon <= 0) {
+			throw new IllegalArgumentException("Invalid URL: " + name);
+		}
+		ConnectionProvider provider = getProvider(name.substring(0, colon));
+		if (provider == null) {
+			throw new ConnectionNotFoundException("Protocol not supported: " + name);
+		}
+		return provider.open(name, mode, timeouts);
+	}
+
+	public static InputStream openInputStream(String name) throws IOException {
+		return ((InputConnection) open(name, READ)).openInputStream();
+	}
+
+	public static DataInputStream openDataInputStream(String name) throws IOException {
+		return new DataInputStream(openInputStream(name));
+	}
+
+	public static OutputStream openOutputStream(String name) throws IOException {
+		return ((OutputConnection) open(name, WRITE)).openOutputStream();
+	}
+
+	public static DataOutputStream openDataOutputStream(String name) throws IOException {
+		return new DataOutputStream(openOutputStream(name));
+	}
+}
@@ -0,0 +1,91 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package javax.microedition.io;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Serves socket:// URLs with java.nio channels. socket://:port opens a
+ * server socket on all interfaces, port 0 picks a free port, and
+ * socket://host:port connects to a server.
+ */
+public final class NioNetwork implements ConnectionProvider {
+	private static final String PREFIX = "socket://";
+	private static final int BACKLOG = 50;
+
+	private static NioNetwork instance = new NioNetwork();
+
+	private NioNetwork() {
+	}
+
+	public static NioNetwork getInstance() {
+		return instance;
+	}
+
+	public Connection open(String name, int mode, boolean timeouts) throws IOException {
+		if (!name.startsWith(PREFIX)) {
+			throw new IllegalArgumentException("Invalid URL: " + name);
+		}
+		String address = name.substring(PREFIX.length());
+		int semicolon = address.indexOf(';');
+		if (semicolon != -1) {
+			address = address.substring(0, semicolon);   // parameters are ignored
+		}
+		int colon = address.lastIndexOf(':');
+		if (colon == -1) {
+			throw new IllegalArgumentException("No port in URL: " + name);
+		}
+		int port;
+		try {
+			port = (colon + 1 < address.length()) ? Integer.parseInt(address.substring(colon + 1)) : 0;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid port in URL: " + name);
+		}
+
+		if (colon == 0) {
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			try {
+				channel.socket().setReuseAddress(true);
+				channel.socket().bind(new InetSocketAddress(port), BACKLOG);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			return new NioServerSocketConnection(channel);
+		}
+
+		String host = address.substring(0, colon);
+		if (host.startsWith("[") && host.endsWith("]")) {
+			host = host.substring(1, host.length() - 1);
+		}
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.connect(new InetSocketAddress(host, port));
+		} catch (IOException e) {
+			channel.close();
+			throw new ConnectionNotFoundException("Cannot connect to " + name + ": " + e.getMessage());
+		}
+		return new NioSocketConnection(channel);
+	}
+}
@@ -0,0 +1,76 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package javax.microedition.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * A server socket of the NioNetwork. Closing it makes a blocked
+ * acceptAndOpen() throw, as on a phone.
+ */
+class NioServerSocketConnection implements ServerSocketConnection {
+	private ServerSocketChannel channel;
+
+	NioServerSocketConnection(ServerSocketChannel channel) {
+		this.channel = channel;
+	}
+
+	public StreamConnection acceptAndOpen() throws IOException {
+		try {
+			return new NioSocketConnection(channel.accept());
+		} catch (ClosedChannelException e) {
+			throw new InterruptedIOException("Server socket closed");
+		}
+	}
+
+	/**
+	 * @return The address the socket is bound to. When bound to all
+	 *         interfaces this is the address of the host, which is what a
+	 *         phone reports.
+	 */
+	public String getLocalAddress() throws IOException {
+		InetAddress address = local().getAddress();
+		if (address.isAnyLocalAddress()) {
+			address = InetAddress.getLocalHost();
+		}
+		return address.getHostAddress();
+	}
+
+	public int getLocalPort() throws IOException {
+		return local().getPort();
+	}
+
+	private InetSocketAddress local() throws IOException {
+		if (!channel.isOpen()) {
+			throw new IOException("Connection closed");
+		}
+		return (InetSocketAddress) channel.getLocalAddress();
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,282 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package javax.microedition.io;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A socket connection of the NioNetwork. The channel is non-blocking, the
+ * streams wait on a selector of their own when the channel isn't ready,
+ * so reads and writes may happen at the same time on different threads.
+ * available() reads ahead without blocking, which lets it report a closed
+ * peer as one readable byte: the poll engine of the server then runs the
+ * session, whose read returns end of stream, instead of keeping an idle
+ * connection that has gone until its idle timer expires.
+ */
+class NioSocketConnection implements SocketConnection {
+	private SocketChannel channel;
+	private Socket socket;
+	private ChannelInputStream in = null;
+	private ChannelOutputStream out = null;
+
+	NioSocketConnection(SocketChannel channel) throws IOException {
+		this.channel = channel;
+		socket = channel.socket();
+		channel.configureBlocking(false);
+	}
+
+	private void ensureOpen() throws IOException {
+		if (!channel.isOpen()) {
+			throw new IOException("Connection closed");
+		}
+	}
+
+	public synchronized InputStream openInputStream() throws IOException {
+		ensureOpen();
+		if (in == null) {
+			in = new ChannelInputStream();
+		}
+		return in;
+	}
+
+	public DataInputStream openDataInputStream() throws IOException {
+		return new DataInputStream(openInputStream());
+	}
+
+	public synchronized OutputStream openOutputStream() throws IOException {
+		ensureOpen();
+		if (out == null) {
+			out = new ChannelOutputStream();
+		}
+		return out;
+	}
+
+	public DataOutputStream openDataOutputStream() throws IOException {
+		return new DataOutputStream(openOutputStream());
+	}
+
+	public void setSocketOption(byte option, int value) throws IOException {
+		ensureOpen();
+		switch (option) {
+		case DELAY:
+			socket.setTcpNoDelay(value == 0);
+			break;
+		case LINGER:
+			socket.setSoLinger(value >= 0, Math.max(value, 0));
+			break;
+		case KEEPALIVE:
+			socket.setKeepAlive(value != 0);
+			break;
+		case RCVBUF:
+			socket.setReceiveBufferSize(value);
+			break;
+		case SNDBUF:
+			socket.setSendBufferSize(value);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown option " + option);
+		}
+	}
+
+	public int getSocketOption(byte option) throws IOException {
+		ensureOpen();
+		switch (option) {
+		case DELAY:
+			return socket.getTcpNoDelay() ? 0 : 1;
+		case LINGER:
+			return socket.getSoLinger();
+		case KEEPALIVE:
+			return socket.getKeepAlive() ? 1 : 0;
+		case RCVBUF:
+			return socket.getReceiveBufferSize();
+		case SNDBUF:
+			return socket.getSendBufferSize();
+		default:
+			throw new IllegalArgumentException("Unknown option " + option);
+		}
+	}
+
+	public String getLocalAddress() throws IOException {
+		ensureOpen();
+		return socket.getLocalAddress().getHostAddress();
+	}
+
+	public int getLocalPort() throws IOException {
+		ensureOpen();
+		return socket.getLocalPort();
+	}
+
+	public String getAddress() throws IOException {
+		ensureOpen();
+		return ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+	}
+
+	public int getPort() throws IOException {
+		ensureOpen();
+		return socket.getPort();
+	}
+
+	public void close() throws IOException {
+		channel.close();
+		ChannelInputStream in;
+		ChannelOutputStream out;
+		synchronized (this) {
+			in = this.in;
+			out = this.out;
+		}
+		// Wake any thread waiting on the streams, it will find the channel closed
+		if (in != null) {
+			in.waiter.close();
+		}
+		if (out != null) {
+			out.waiter.close();
+		}
+	}
+
+	/**
+	 * Blocks a stream until the channel is ready for its operation. The
+	 * selector is only opened the first time the stream has to wait.
+	 */
+	private class Waiter {
+		private int operation;
+		private Selector selector = null;
+		private boolean closed = false;
+
+		Waiter(int operation) {
+			this.operation = operation;
+		}
+
+		void await() throws IOException {
+			Selector selector;
+			synchronized (this) {
+				ensureOpen();
+				if (closed) {
+					throw new IOException("Connection closed");
+				}
+				if (this.selector == null) {
+					this.selector = Selector.open();
+					channel.register(this.selector, operation);
+				}
+				selector = this.selector;
+			}
+			try {
+				selector.select();
+				selector.selectedKeys().clear();
+			} catch (ClosedSelectorException e) {
+				throw new IOException("Connection closed");
+			}
+			ensureOpen();
+		}
+
+		synchronized void close() throws IOException {
+			closed = true;
+			if (selector != null) {
+				selector.close();
+			}
+		}
+	}
+
+	private class ChannelInputStream extends InputStream {
+		private ByteBuffer readAhead = ByteBuffer.allocate(1024);
+		private boolean endOfStream = false;
+		private Waiter waiter = new Waiter(SelectionKey.OP_READ);
+
+		ChannelInputStream() {
+			readAhead.flip();
+		}
+
+		public synchronized int available() throws IOException {
+			ensureOpen();
+			if (!readAhead.hasRemaining() && !endOfStream) {
+				readAhead.clear();
+				endOfStream = channel.read(readAhead) == -1;
+				readAhead.flip();
+			}
+			// Report the end of stream as a byte so that the next read returns it
+			return endOfStream ? readAhead.remaining() + 1 : readAhead.remaining();
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) == -1) ? -1 : b[0] & 0xff;
+		}
+
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (readAhead.hasRemaining()) {
+				int count = Math.min(len, readAhead.remaining());
+				readAhead.get(b, off, count);
+				return count;
+			}
+			if (endOfStream) {
+				return -1;
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			while (true) {
+				ensureOpen();
+				int count = channel.read(buffer);
+				if (count != 0) {
+					return count;
+				}
+				waiter.await();
+			}
+		}
+
+		public void close() throws IOException {
+			NioSocketConnection.this.close();
+		}
+	}
+
+	private class ChannelOutputStream extends OutputStream {
+		private Waiter waiter = new Waiter(SelectionKey.OP_WRITE);
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			while (buffer.hasRemaining()) {
+				ensureOpen();
+				if (channel.write(buffer) == 0) {
+					waiter.await();
+				}
+			}
+		}
+
+		public void close() throws IOException {
+			NioSocketConnection.this.close();
+		}
+	}
+}
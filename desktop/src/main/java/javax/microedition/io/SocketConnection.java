@@ -0,0 +1,43 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package javax.microedition.io;
+
+import java.io.IOException;
+
+public interface SocketConnection extends StreamConnection {
+	byte DELAY = 0;
+	byte LINGER = 1;
+	byte KEEPALIVE = 2;
+	byte RCVBUF = 3;
+	byte SNDBUF = 4;
+
+	void setSocketOption(byte option, int value) throws IOException;
+
+	int getSocketOption(byte option) throws IOException;
+
+	String getLocalAddress() throws IOException;
+
+	int getLocalPort() throws IOException;
+
+	String getAddress() throws IOException;
+
+	int getPort() throws IOException;
+}
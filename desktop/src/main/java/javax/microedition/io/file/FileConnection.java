@@ -0,0 +1,86 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package javax.microedition.io.file;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Enumeration;
+
+import javax.microedition.io.StreamConnection;
+
+/**
+ * Stand-in for the JSR-75 file connection, see NioFileSystem.
+ */
+public interface FileConnection extends StreamConnection {
+	boolean isOpen();
+
+	OutputStream openOutputStream(long byteOffset) throws IOException;
+
+	long totalSize();
+
+	long availableSize();
+
+	long usedSize();
+
+	long directorySize(boolean includeSubDirs) throws IOException;
+
+	long fileSize() throws IOException;
+
+	boolean canRead();
+
+	boolean canWrite();
+
+	boolean isHidden();
+
+	void setReadable(boolean readable) throws IOException;
+
+	void setWritable(boolean writable) throws IOException;
+
+	void setHidden(boolean hidden) throws IOException;
+
+	Enumeration list() throws IOException;
+
+	Enumeration list(String filter, boolean includeHidden) throws IOException;
+
+	void create() throws IOException;
+
+	void mkdir() throws IOException;
+
+	boolean exists();
+
+	boolean isDirectory();
+
+	void delete() throws IOException;
+
+	void rename(String newName) throws IOException;
+
+	void truncate(long byteOffset) throws IOException;
+
+	void setFileConnection(String fileName) throws IOException;
+
+	String getName();
+
+	String getPath();
+
+	String getURL();
+
+	long lastModified();
+}
@@ -0,0 +1,47 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package javax.microedition.io.file;
+
+import java.util.Enumeration;
+import java.util.Vector;
+
+import javax.microedition.io.ConnectionProvider;
+import javax.microedition.io.Connector;
+
+/**
+ * Stand-in for the JSR-75 registry, the roots are those of the provider
+ * serving file:// URLs.
+ */
+public class FileSystemRegistry {
+	private FileSystemRegistry() {
+	}
+
+	/**
+	 * @return Enumeration of the root names, each ending with a /.
+	 */
+	public static Enumeration listRoots() {
+		ConnectionProvider provider = Connector.getProvider("file");
+		if (provider instanceof FileSystemProvider) {
+			return ((FileSystemProvider) provider).listRoots();
+		}
+		return new Vector().elements();
+	}
+}
@@ -0,0 +1,419 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package javax.microedition.io.file;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Vector;
+
+/**
+ * A file connection to the NioFileSystem. Like a JSR-75 connection it may
+ * point at a path that doesn't exist yet, and directory URLs end with
+ * a /. The connection to file:/// itself is a directory holding the roots.
+ */
+class NioFileConnection implements FileConnection {
+	private static final String PREFIX = "file:///";
+
+	private NioFileSystem fs;
+	private String url;
+	private String path;            // the URL without the prefix and any trailing /
+	private Path file;              // host path, null for file:/// and paths outside the roots
+	private boolean open = true;
+
+	NioFileConnection(NioFileSystem fs, String url) {
+		if (!url.startsWith(PREFIX)) {
+			throw new IllegalArgumentException("Invalid file URL: " + url);
+		}
+		this.fs = fs;
+		setUrl(url);
+	}
+
+	private void setUrl(String newUrl) {
+		String newPath = newUrl.substring(PREFIX.length());
+		while (newPath.endsWith("/")) {
+			newPath = newPath.substring(0, newPath.length() - 1);
+		}
+		file = fs.resolve(newPath);
+		url = newUrl;
+		path = newPath;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (!open) {
+			throw new IOException("Connection closed");
+		}
+	}
+
+	/**
+	 * @return The host path of an existing file.
+	 * @throws IOException If there is no such file.
+	 */
+	private Path file() throws IOException {
+		ensureOpen();
+		if (file == null || !Files.isRegularFile(file)) {
+			throw new IOException("Not a file: " + url);
+		}
+		return file;
+	}
+
+	/**
+	 * @return The host path of an existing file or directory.
+	 * @throws IOException If there is no such file or directory.
+	 */
+	private Path existing() throws IOException {
+		ensureOpen();
+		if (file == null || !Files.exists(file)) {
+			throw new IOException("No such file or directory: " + url);
+		}
+		return file;
+	}
+
+	/**
+	 * @return The host path of a file or directory that may be created.
+	 * @throws IOException If it already exists or its directory doesn't.
+	 */
+	private Path creatable() throws IOException {
+		ensureOpen();
+		if (file == null || fs.isRoot(file)) {
+			throw new IOException("Can't create " + url);
+		}
+		if (Files.exists(file)) {
+			throw new IOException("Already exists: " + url);
+		}
+		if (!Files.isDirectory(file.getParent())) {
+			throw new IOException("No such directory for " + url);
+		}
+		return file;
+	}
+
+	private String name() {
+		return path.substring(path.lastIndexOf('/') + 1);
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	public InputStream openInputStream() throws IOException {
+		return Files.newInputStream(file());
+	}
+
+	public DataInputStream openDataInputStream() throws IOException {
+		return new DataInputStream(openInputStream());
+	}
+
+	public OutputStream openOutputStream() throws IOException {
+		return openOutputStream(0);
+	}
+
+	public DataOutputStream openDataOutputStream() throws IOException {
+		return new DataOutputStream(openOutputStream());
+	}
+
+	/**
+	 * Writing starts at the offset, or the end of the file if that comes
+	 * first, and overwrites what is there. The file is not truncated.
+	 */
+	public OutputStream openOutputStream(long byteOffset) throws IOException {
+		if (byteOffset < 0) {
+			throw new IllegalArgumentException("Negative offset");
+		}
+		Path target = file();
+		if (!Files.isWritable(target)) {
+			throw new SecurityException("File is read only: " + url);
+		}
+		FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE);
+		try {
+			channel.position(Math.min(byteOffset, channel.size()));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return Channels.newOutputStream(channel);
+	}
+
+	public long totalSize() {
+		try {
+			return fs.store(file).getTotalSpace();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	public long availableSize() {
+		try {
+			return fs.store(file).getUsableSpace();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	public long usedSize() {
+		try {
+			FileStore store = fs.store(file);
+			return store.getTotalSpace() - store.getUnallocatedSpace();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	public long directorySize(boolean includeSubDirs) throws IOException {
+		Path directory = existing();
+		if (!Files.isDirectory(directory)) {
+			throw new IOException("Not a directory: " + url);
+		}
+		return size(directory, includeSubDirs);
+	}
+
+	private static long size(Path directory, boolean includeSubDirs) throws IOException {
+		long total = 0;
+		DirectoryStream entries = Files.newDirectoryStream(directory);
+		try {
+			for (Object entry : entries) {
+				Path child = (Path) entry;
+				if (Files.isDirectory(child)) {
+					if (includeSubDirs) {
+						total += size(child, true);
+					}
+				} else {
+					total += Files.size(child);
+				}
+			}
+		} finally {
+			entries.close();
+		}
+		return total;
+	}
+
+	public long fileSize() throws IOException {
+		return Files.size(file());
+	}
+
+	public boolean canRead() {
+		return file != null && Files.isReadable(file);
+	}
+
+	public boolean canWrite() {
+		return file != null && Files.isWritable(file);
+	}
+
+	public boolean isHidden() {
+		try {
+			return file != null && !fs.isRoot(file) && Files.isHidden(file);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	public void setReadable(boolean readable) throws IOException {
+		if (!existing().toFile().setReadable(readable)) {
+			throw new IOException("Can't change " + url);
+		}
+	}
+
+	public void setWritable(boolean writable) throws IOException {
+		if (!existing().toFile().setWritable(writable)) {
+			throw new IOException("Can't change " + url);
+		}
+	}
+
+	/**
+	 * Hidden files are those whose name starts with a dot, this can't be
+	 * changed without renaming the file so the request is ignored.
+	 */
+	public void setHidden(boolean hidden) throws IOException {
+		existing();
+	}
+
+	public Enumeration list() throws IOException {
+		return list("*", false);
+	}
+
+	public Enumeration list(String filter, boolean includeHidden) throws IOException {
+		if (filter == null) {
+			throw new NullPointerException("Null filter");
+		}
+		ensureOpen();
+		if (path.length() == 0) {
+			return fs.listRoots();
+		}
+		if (file == null || !Files.isDirectory(file)) {
+			throw new IOException("Not a directory: " + url);
+		}
+		Vector names = new Vector();
+		DirectoryStream entries = Files.newDirectoryStream(file);
+		try {
+			for (Object entry : entries) {
+				Path child = (Path) entry;
+				String name = child.getFileName().toString();
+				if ((includeHidden || !Files.isHidden(child)) && matches(name, 0, filter, 0)) {
+					names.addElement(Files.isDirectory(child) ? name + "/" : name);
+				}
+			}
+		} finally {
+			entries.close();
+		}
+		// Directory streams come in no particular order, list by name as a phone does
+		String[] sorted = new String[names.size()];
+		names.copyInto(sorted);
+		Arrays.sort(sorted);
+		return new Vector(Arrays.asList(sorted)).elements();
+	}
+
+	/**
+	 * JSR-75 filters only know the * wildcard.
+	 */
+	private static boolean matches(String name, int n, String filter, int f) {
+		while (f < filter.length()) {
+			char c = filter.charAt(f);
+			if (c == '*') {
+				for (int i = n; i <= name.length(); i++) {
+					if (matches(name, i, filter, f + 1)) {
+						return true;
+					}
+				}
+				return false;
+			}
+			if (n >= name.length() || name.charAt(n) != c) {
+				return false;
+			}
+			n++;
+			f++;
+		}
+		return n == name.length();
+	}
+
+	public void create() throws IOException {
+		if (url.endsWith("/")) {
+			throw new IOException("Can't create a file with a directory URL: " + url);
+		}
+		Files.createFile(creatable());
+	}
+
+	public void mkdir() throws IOException {
+		Files.createDirectory(creatable());
+	}
+
+	public boolean exists() {
+		return path.length() == 0 || (file != null && Files.exists(file));
+	}
+
+	public boolean isDirectory() {
+		return path.length() == 0 || (file != null && Files.isDirectory(file));
+	}
+
+	public void delete() throws IOException {
+		Path target = existing();
+		if (fs.isRoot(target)) {
+			throw new IOException("Can't delete a root: " + url);
+		}
+		Files.delete(target);
+	}
+
+	public void rename(String newName) throws IOException {
+		if (newName.indexOf('/') != -1 || newName.equals(".") || newName.equals("..")) {
+			throw new IllegalArgumentException("Invalid name: " + newName);
+		}
+		Path source = existing();
+		if (fs.isRoot(source)) {
+			throw new IOException("Can't rename a root: " + url);
+		}
+		Path target = source.resolveSibling(newName);
+		if (Files.exists(target)) {
+			throw new IOException("Already exists: " + newName);
+		}
+		boolean directory = Files.isDirectory(source);
+		Files.move(source, target);
+		setUrl(PREFIX + path.substring(0, path.lastIndexOf('/') + 1) + newName + (directory ? "/" : ""));
+	}
+
+	public void truncate(long byteOffset) throws IOException {
+		if (byteOffset < 0) {
+			throw new IllegalArgumentException("Negative offset");
+		}
+		FileChannel channel = FileChannel.open(file(), StandardOpenOption.WRITE);
+		try {
+			channel.truncate(byteOffset);
+		} finally {
+			channel.close();
+		}
+	}
+
+	public void setFileConnection(String fileName) throws IOException {
+		if (!isDirectory()) {
+			throw new IOException("Not a directory: " + url);
+		}
+		ensureOpen();
+		if (fileName.equals("..")) {
+			int slash = path.lastIndexOf('/');
+			if (slash == -1) {
+				throw new IOException("Already at a root: " + url);
+			}
+			setUrl(PREFIX + path.substring(0, slash + 1));
+			return;
+		}
+		String name = fileName.endsWith("/") ? fileName.substring(0, fileName.length() - 1) : fileName;
+		String dirUrl = (path.length() == 0) ? PREFIX : PREFIX + path + "/";
+		NioFileConnection child = new NioFileConnection(fs, dirUrl + name);
+		if (!child.exists()) {
+			throw new IllegalArgumentException("No such file or directory: " + fileName);
+		}
+		setUrl(dirUrl + name + (child.isDirectory() ? "/" : ""));
+	}
+
+	public String getName() {
+		String name = name();
+		return url.endsWith("/") && name.length() > 0 ? name + "/" : name;
+	}
+
+	public String getPath() {
+		int slash = path.lastIndexOf('/');
+		return "/" + ((slash == -1) ? "" : path.substring(0, slash + 1));
+	}
+
+	public String getURL() {
+		return url;
+	}
+
+	public long lastModified() {
+		try {
+			return (file != null) ? Files.getLastModifiedTime(file).toMillis() : 0;
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	public void close() {
+		open = false;
+	}
+}
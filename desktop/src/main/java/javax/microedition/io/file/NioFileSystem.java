@@ -0,0 +1,155 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package javax.microedition.io.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import javax.microedition.io.Connection;
+
+/**
+ * Serves file:// URLs from directories of the host. Each root of the
+ * JSR-75 file system is mapped to a host directory, so file:///root1/a.txt
+ * may be /srv/ftp/a.txt. Paths are kept inside their root: a URL whose
+ * .. components or symbolic links would lead out of it names nothing,
+ * like a URL of a root that doesn't exist. Links that stay inside the
+ * root are followed. There are no roots until addRoot() is called.
+ */
+public final class NioFileSystem implements FileSystemProvider {
+	private static NioFileSystem instance = new NioFileSystem();
+
+	private Vector rootNames = new Vector();       // root names ending with a /, in the order added
+	private Hashtable directories = new Hashtable();   // host directory Path keyed by root name without the /
+
+	private NioFileSystem() {
+	}
+
+	public static NioFileSystem getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Map a root to a host directory, replacing any earlier mapping of the root.
+	 * @param name      Name of the root, eg. "root1/".
+	 * @param directory Path of the host directory, it must exist.
+	 * @throws IOException If the directory doesn't exist.
+	 */
+	public synchronized void addRoot(String name, String directory) throws IOException {
+		String rootName = name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+		if (rootName.length() == 0 || rootName.indexOf('/') != -1) {
+			throw new IllegalArgumentException("Invalid root name: " + name);
+		}
+		Path path = new File(directory).toPath().toRealPath();
+		if (!Files.isDirectory(path)) {
+			throw new IOException("Not a directory: " + directory);
+		}
+		if (directories.put(rootName, path) == null) {
+			rootNames.addElement(rootName + "/");
+		}
+	}
+
+	/**
+	 * Remove all the roots.
+	 */
+	public synchronized void clearRoots() {
+		rootNames.removeAllElements();
+		directories.clear();
+	}
+
+	public synchronized Enumeration listRoots() {
+		return ((Vector) rootNames.clone()).elements();
+	}
+
+	public Connection open(String name, int mode, boolean timeouts) throws IOException {
+		return new NioFileConnection(this, name);
+	}
+
+	/**
+	 * Find the host path of a path below the roots.
+	 * @param path Path below the roots without a leading or trailing /, eg. "root1/dir/file.txt".
+	 * @return     The host path, or null if path is empty, its root doesn't
+	 *             exist or it leads out of the root, also through a link.
+	 */
+	synchronized Path resolve(String path) {
+		int slash = path.indexOf('/');
+		String rootName = (slash == -1) ? path : path.substring(0, slash);
+		Path root = (Path) directories.get(rootName);
+		if (root == null) {
+			return null;
+		}
+		if (slash == -1) {
+			return root;
+		}
+		Path resolved = root.resolve(path.substring(slash + 1)).normalize();
+		if (!resolved.startsWith(root)) {
+			return null;
+		}
+
+		// The root is a real path, check where the links below it lead.
+		// A path that doesn't exist yet is checked by its nearest parent
+		// that does, a dangling link fails toRealPath().
+		Path existing = resolved;
+		while (!Files.exists(existing, LinkOption.NOFOLLOW_LINKS)) {
+			existing = existing.getParent();
+		}
+		try {
+			return existing.toRealPath().startsWith(root) ? resolved : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param path A host path below one of the roots.
+	 * @return     True if the path is one of the root directories.
+	 */
+	synchronized boolean isRoot(Path path) {
+		return directories.contains(path);
+	}
+
+	/**
+	 * @param path A host path below one of the roots, or null.
+	 * @return     The store the path is on, that of the first root for null.
+	 * @throws IOException
+	 */
+	FileStore store(Path path) throws IOException {
+		if (path == null) {
+			synchronized (this) {
+				if (rootNames.isEmpty()) {
+					throw new IOException("No roots");
+				}
+				String first = (String) rootNames.elementAt(0);
+				path = (Path) directories.get(first.substring(0, first.length() - 1));
+			}
+		}
+		while (!Files.exists(path) && path.getParent() != null) {
+			path = path.getParent();
+		}
+		return Files.getFileStore(path);
+	}
+}
@@ -0,0 +1,57 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package javax.microedition.lcdui;
+
+/**
+ * Stand-in for the MIDP command, the benchmarks have no user interface.
+ */
+public class Command {
+	public static final int SCREEN = 1;
+	public static final int BACK = 2;
+	public static final int CANCEL = 3;
+	public static final int OK = 4;
+	public static final int HELP = 5;
+	public static final int STOP = 6;
+	public static final int EXIT = 7;
+	public static final int ITEM = 8;
+
+	private String label;
+	private int commandType;
+	private int priority;
+
+	public Command(String label, int commandType, int priority) {
+		this.label = label;
+		this.commandType = commandType;
+		this.priority = priority;
+	}
+
+	public String getLabel() {
+		return label;
+	}
+
+	public int getCommandType() {
+		return commandType;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+}
@@ -0,0 +1,55 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package javax.microedition.lcdui;
+
+import java.util.Hashtable;
+
+import javax.microedition.midlet.MIDlet;
+
+/**
+ * Stand-in for the MIDP display, it only remembers the current displayable.
+ */
+public class Display {
+	private static Hashtable displays = new Hashtable();  // Display keyed by MIDlet
+	private Displayable current = null;
+
+	private Display() {
+	}
+
+	public static Display getDisplay(MIDlet m) {
+		synchronized (displays) {
+			Display display = (Display) displays.get(m);
+			if (display == null) {
+				display = new Display();
+				displays.put(m, display);
+			}
+			return display;
+		}
+	}
+
+	public synchronized void setCurrent(Displayable nextDisplayable) {
+		current = nextDisplayable;
+	}
+
+	public synchronized Displayable getCurrent() {
+		return current;
+	}
+}
@@ -0,0 +1,47 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package javax.microedition.lcdui;
+
+import java.util.Vector;
+
+/**
+ * Stand-in for the MIDP displayable, nothing is ever shown.
+ */
+public abstract class Displayable {
+	private Vector commands = new Vector();
+	private CommandListener listener = null;
+
+	public void addCommand(Command cmd) {
+		commands.addElement(cmd);
+	}
+
+	public void removeCommand(Command cmd) {
+		commands.removeElement(cmd);
+	}
+
+	public void setCommandListener(CommandListener l) {
+		listener = l;
+	}
+
+	public CommandListener getCommandListener() {
+		return listener;
+	}
+}
@@ -0,0 +1,67 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package javax.microedition.lcdui;
+
+/**
+ * Stand-in for the MIDP text box, the text is only kept in memory.
+ */
+public class TextBox extends Displayable {
+	private StringBuffer text = new StringBuffer();
+	private int maxSize;
+
+	public TextBox(String title, String text, int maxSize, int constraints) {
+		this.maxSize = maxSize;
+		if (text != null) {
+			this.text.append(text);
+		}
+	}
+
+	public synchronized int setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		if (text.length() > maxSize) {
+			text.setLength(maxSize);
+		}
+		return maxSize;
+	}
+
+	public synchronized int getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized int size() {
+		return text.length();
+	}
+
+	public synchronized String getString() {
+		return text.toString();
+	}
+
+	public synchronized void delete(int offset, int length) {
+		text.delete(offset, offset + length);
+	}
+
+	public synchronized void insert(String src, int position) {
+		if (text.length() + src.length() > maxSize) {
+			throw new IllegalArgumentException("TextBox is full");
+		}
+		text.insert(position, src);
+	}
+}
@@ -0,0 +1,66 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package javax.microedition.midlet;
+
+import java.util.Hashtable;
+
+/**
+ * Stand-in for the MIDP application model, see MIDletLauncher. The
+ * attributes of the application descriptor are those given to the
+ * launcher, a system property of the same name overrides them, for
+ * example -DFtpServer-MaxSessions=8.
+ */
+public abstract class MIDlet {
+	static Hashtable appProperties = new Hashtable();   // attribute values keyed by name, set by the launcher
+
+	private volatile boolean destroyed = false;
+
+	protected MIDlet() {
+	}
+
+	protected abstract void startApp() throws MIDletStateChangeException;
+
+	protected abstract void pauseApp();
+
+	protected abstract void destroyApp(boolean unconditional) throws MIDletStateChangeException;
+
+	public final void notifyDestroyed() {
+		synchronized (this) {
+			destroyed = true;
+			notifyAll();
+		}
+	}
+
+	public final void notifyPaused() {
+	}
+
+	/**
+	 * @return True once the application has called notifyDestroyed().
+	 */
+	public final boolean isDestroyed() {
+		return destroyed;
+	}
+
+	public final String getAppProperty(String key) {
+		String value = System.getProperty(key);
+		return (value != null) ? value : (String) appProperties.get(key);
+	}
+}
@@ -0,0 +1,98 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package javax.microedition.midlet;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Does the job of the application management software of a phone: it
+ * reads the application descriptor and starts and destroys a MIDlet.
+ */
+public final class MIDletLauncher {
+	private MIDletLauncher() {
+	}
+
+	/**
+	 * Read the attributes of an application descriptor, lines of the form
+	 * "Name: value".
+	 * @param path Path of the descriptor file.
+	 * @throws IOException
+	 */
+	public static void loadDescriptor(String path) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int colon = line.indexOf(':');
+				if (colon > 0) {
+					setAppProperty(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Set one attribute, it replaces the value read from the descriptor.
+	 * @param name
+	 * @param value
+	 */
+	public static void setAppProperty(String name, String value) {
+		MIDlet.appProperties.put(name, value);
+	}
+
+	/**
+	 * Start the MIDlet on the calling thread.
+	 * @param midlet
+	 * @throws MIDletStateChangeException
+	 */
+	public static void start(MIDlet midlet) throws MIDletStateChangeException {
+		midlet.startApp();
+	}
+
+	/**
+	 * Destroy the MIDlet, unless it has already destroyed itself.
+	 * @param midlet
+	 * @throws MIDletStateChangeException
+	 */
+	public static void destroy(MIDlet midlet) throws MIDletStateChangeException {
+		if (!midlet.isDestroyed()) {
+			midlet.destroyApp(true);
+		}
+	}
+
+	/**
+	 * Wait until the MIDlet has called notifyDestroyed().
+	 * @param midlet
+	 * @throws InterruptedException
+	 */
+	public static void awaitDestroyed(MIDlet midlet) throws InterruptedException {
+		synchronized (midlet) {
+			while (!midlet.isDestroyed()) {
+				midlet.wait();
+			}
+		}
+	}
+}
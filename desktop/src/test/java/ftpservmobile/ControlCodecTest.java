@@ -0,0 +1,116 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package ftpservmobile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+/**
+ * Tests of the line framing in ControlCodec.
+ */
+public class ControlCodecTest {
+
+	/**
+	 * A line found by hasLine() must still be read correctly after
+	 * readAvailable() has compacted the input buffer underneath it.
+	 */
+	@Test
+	public void lineFoundBeforeCompactionIsReadIntact() throws Exception {
+		ChunkedInputStream in = new ChunkedInputStream(new String[] {
+			"TYPE I\r\nNOOP\r\n",
+			"SIZE a\r\n"
+		});
+		ControlCodec codec = new ControlCodec(in, new ByteArrayOutputStream(), 64);
+
+		assertTrue(codec.readAvailable());
+		assertEquals("TYPE I", codec.readLine());
+		assertTrue(codec.hasLine());
+		assertTrue(codec.readAvailable());
+		assertEquals("NOOP", codec.readLine());
+		assertEquals("SIZE a", codec.readLine());
+		assertFalse(codec.hasLine());
+	}
+
+	/**
+	 * A line split across two reads is only reported once it is complete.
+	 */
+	@Test
+	public void lineSplitAcrossReads() throws Exception {
+		ChunkedInputStream in = new ChunkedInputStream(new String[] {
+			"NOOP\r\nLIST /ro",
+			"ot1\r\n"
+		});
+		ControlCodec codec = new ControlCodec(in, new ByteArrayOutputStream(), 64);
+
+		assertTrue(codec.readAvailable());
+		assertEquals("NOOP", codec.readLine());
+		assertFalse(codec.hasLine());
+		assertTrue(codec.readAvailable());
+		assertTrue(codec.hasLine());
+		assertEquals("LIST /root1", codec.readLine());
+	}
+
+	/**
+	 * Delivers its data in fixed chunks, available() reporting only what
+	 * is left of the current chunk, the way a socket reports what has
+	 * arrived so far.
+	 */
+	private static class ChunkedInputStream extends InputStream {
+		private String[] chunks;
+		private int chunk = 0;
+		private int offset = 0;
+
+		ChunkedInputStream(String[] chunks) {
+			this.chunks = chunks;
+		}
+
+		public int available() {
+			return (chunk < chunks.length) ? chunks[chunk].length() - offset : 0;
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) == -1) ? -1 : b[0];
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if (chunk >= chunks.length) {
+				return -1;
+			}
+			byte[] data = chunks[chunk].getBytes();
+			int count = Math.min(len, data.length - offset);
+			System.arraycopy(data, offset, b, off, count);
+			offset += count;
+			if (offset == data.length) {
+				chunk++;
+				offset = 0;
+			}
+			return count;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package ftpservmobile;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests of the admission of sessions by SessionPool.
+ */
+public class SessionPoolTest {
+	private static final int WORKERS = 4;
+	private static final int BACKLOG = 4;
+
+	/**
+	 * A burst of sessions arriving before any worker has woken up must
+	 * not be refused while workers are free: sessions the idle workers
+	 * will pick up don't count against the backlog.
+	 */
+	@Test
+	public void burstOfWorkersPlusBacklogIsAccepted() throws Exception {
+		SessionPool pool = new SessionPool(WORKERS, BACKLOG);
+		try {
+			for (int i = 0; i < WORKERS + BACKLOG; i++) {
+				assertTrue("session " + (i + 1) + " refused", pool.submit(new BlockedSession()));
+			}
+			assertFalse(pool.submit(new BlockedSession()));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Once every worker is busy only the backlog is left.
+	 */
+	@Test
+	public void busyWorkersLeaveOnlyTheBacklog() throws Exception {
+		SessionPool pool = new SessionPool(WORKERS, BACKLOG);
+		try {
+			for (int i = 0; i < WORKERS; i++) {
+				assertTrue(pool.submit(new BlockedSession()));
+			}
+			long deadline = System.currentTimeMillis() + 5000;
+			while (pool.getActiveSessionCount() < WORKERS && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			for (int i = 0; i < BACKLOG; i++) {
+				assertTrue(pool.submit(new BlockedSession()));
+			}
+			assertFalse(pool.submit(new BlockedSession()));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * A session that keeps its worker busy until it is shut down.
+	 */
+	private static class BlockedSession extends ConnectionThread {
+		private boolean stopped = false;
+
+		BlockedSession() {
+			super(null, "127.0.0.1", null);
+		}
+
+		public synchronized void run() {
+			while (!stopped) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		public synchronized void shutdown() {
+			stopped = true;
+			notifyAll();
+		}
+
+		protected void close() {
+			shutdown();
+		}
+	}
+}
@@ -0,0 +1,231 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package ftpservmobile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import javax.microedition.io.file.NioFileSystem;
+import javax.microedition.midlet.MIDletLauncher;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests of STOR after REST, run against the server on the desktop runtime.
+ */
+public class StorRestartTest {
+	private static File root;
+	private static FtpServer server;
+	private static int port;
+
+	@BeforeClass
+	public static void startServer() throws Exception {
+		root = File.createTempFile("storrestart", "");
+		root.delete();
+		root.mkdir();
+		NioFileSystem.getInstance().clearRoots();
+		NioFileSystem.getInstance().addRoot("root1", root.getPath());
+
+		port = freePort();
+		MIDletLauncher.setAppProperty("FtpServer-ListenPort", Integer.toString(port));
+		MIDletLauncher.setAppProperty("FtpServer-PassivePortStart", Integer.toString(freePort()));
+		MIDletLauncher.setAppProperty("FtpServer-PassivePortCount", "1");
+		MIDletLauncher.setAppProperty("FtpServer-PassivePortPrebind", "0");
+		server = new FtpServer();
+		Thread starter = new Thread() {
+			public void run() {
+				try {
+					MIDletLauncher.start(server);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		starter.setDaemon(true);
+		starter.start();
+	}
+
+	@AfterClass
+	public static void stopServer() throws Exception {
+		MIDletLauncher.destroy(server);
+		File[] files = root.listFiles();
+		for (int i = 0; i < files.length; i++) {
+			files[i].delete();
+		}
+		root.delete();
+	}
+
+	/**
+	 * A new file can't be resumed, the data must not be written at offset 0.
+	 */
+	@Test
+	public void restartOffsetOnNewFileIsRefused() throws Exception {
+		Client client = new Client();
+		try {
+			assertTrue(client.command("REST 10").startsWith("350"));
+			assertTrue(client.store("new.bin", "data").startsWith("554"));
+			assertFalse(new File(root, "new.bin").exists());
+		} finally {
+			client.close();
+		}
+	}
+
+	/**
+	 * An offset past the end of the file must not append at the end.
+	 */
+	@Test
+	public void restartOffsetPastEndIsRefused() throws Exception {
+		write("six.bin", "123456");
+		Client client = new Client();
+		try {
+			assertTrue(client.command("REST 100").startsWith("350"));
+			assertTrue(client.store("six.bin", "data").startsWith("554"));
+			assertEquals("123456", read("six.bin"));
+		} finally {
+			client.close();
+		}
+	}
+
+	/**
+	 * An offset at the end of the file resumes the upload there.
+	 */
+	@Test
+	public void restartOffsetAtEndResumes() throws Exception {
+		write("resume.bin", "123456");
+		Client client = new Client();
+		try {
+			assertTrue(client.command("REST 6").startsWith("350"));
+			assertTrue(client.store("resume.bin", "789").startsWith("226"));
+			assertEquals("123456789", read("resume.bin"));
+		} finally {
+			client.close();
+		}
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static void write(String name, String contents) throws IOException {
+		OutputStream out = new FileOutputStream(new File(root, name));
+		try {
+			out.write(contents.getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String read(String name) throws IOException {
+		File file = new File(root, name);
+		byte[] data = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int count = 0;
+			while (count < data.length) {
+				count += in.read(data, count, data.length - count);
+			}
+		} finally {
+			in.close();
+		}
+		return new String(data, "US-ASCII");
+	}
+
+	/**
+	 * A minimal control connection, logged in and in binary mode.
+	 */
+	private static class Client {
+		private Socket socket;
+		private BufferedReader in;
+		private OutputStream out;
+
+		Client() throws Exception {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (true) {
+				try {
+					socket = new Socket("127.0.0.1", port);
+					break;
+				} catch (IOException e) {
+					// The server may still be starting
+					if (System.currentTimeMillis() > deadline) {
+						throw e;
+					}
+					Thread.sleep(50);
+				}
+			}
+			socket.setSoTimeout(10000);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+			out = socket.getOutputStream();
+			assertTrue(in.readLine().startsWith("220"));
+			assertTrue(command("USER test").startsWith("230"));
+			assertTrue(command("TYPE I").startsWith("200"));
+			assertTrue(command("CWD /root1").startsWith("2"));
+		}
+
+		String command(String line) throws IOException {
+			out.write((line + "\r\n").getBytes("US-ASCII"));
+			out.flush();
+			return in.readLine();
+		}
+
+		/**
+		 * @return The final reply to the STOR command.
+		 */
+		String store(String name, String contents) throws IOException {
+			String reply = command("PASV");
+			assertTrue(reply.startsWith("227"));
+			String[] fields = reply.substring(reply.indexOf('(') + 1, reply.indexOf(')')).split(",");
+			int dataPort = Integer.parseInt(fields[4]) * 256 + Integer.parseInt(fields[5]);
+			Socket data = new Socket("127.0.0.1", dataPort);
+			try {
+				reply = command("STOR " + name);
+				if (!reply.startsWith("1")) {
+					return reply;
+				}
+				data.getOutputStream().write(contents.getBytes("US-ASCII"));
+			} finally {
+				data.close();
+			}
+			return in.readLine();
+		}
+
+		void close() throws IOException {
+			socket.close();
+		}
+	}
+}
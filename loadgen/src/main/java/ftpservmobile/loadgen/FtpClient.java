@@ -0,0 +1,289 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package ftpservmobile.loadgen;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A minimal FTP client, just what the load generator needs: login,
+ * passive mode transfers in binary and simple commands.
+ */
+class FtpClient {
+	private String host;
+	private int timeout;
+	private Socket socket;
+	private InputStream in;
+	private OutputStream out;
+	private StringBuffer line = new StringBuffer();
+
+	/**
+	 * Connect to a server, the greeting isn't read yet.
+	 * @param host    Host name or address of the server.
+	 * @param port    Control port of the server.
+	 * @param timeout Time in ms to wait for a connection or a reply.
+	 * @throws IOException
+	 */
+	FtpClient(String host, int port, int timeout) throws IOException {
+		this.host = host;
+		this.timeout = timeout;
+		socket = connect(host, port);
+		in = new BufferedInputStream(socket.getInputStream(), 4096);
+		out = socket.getOutputStream();
+	}
+
+	private Socket connect(String toHost, int port) throws IOException {
+		Socket s = new Socket();
+		try {
+			s.setTcpNoDelay(true);
+			s.setSoTimeout(timeout);
+			s.connect(new InetSocketAddress(toHost, port), timeout);
+		} catch (IOException e) {
+			s.close();
+			throw e;
+		}
+		return s;
+	}
+
+	/**
+	 * Read one reply, all lines of a multi-line reply.
+	 * @return The reply.
+	 * @throws IOException If the connection ends first.
+	 */
+	Reply readReply() throws IOException {
+		String first = readLine();
+		if (first.length() < 3) {
+			throw new IOException("Invalid reply: " + first);
+		}
+		int code;
+		try {
+			code = Integer.parseInt(first.substring(0, 3));
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid reply: " + first);
+		}
+		if (first.length() > 3 && first.charAt(3) == '-') {
+			String end = first.substring(0, 3) + " ";
+			String next;
+			do {
+				next = readLine();
+			} while (!next.startsWith(end));
+		}
+		return new Reply(code, first);
+	}
+
+	private String readLine() throws IOException {
+		line.setLength(0);
+		while (true) {
+			int c = in.read();
+			if (c == -1) {
+				throw new IOException("Connection closed by the server");
+			}
+			if (c == '\n') {
+				int length = line.length();
+				if (length > 0 && line.charAt(length - 1) == '\r') {
+					line.setLength(length - 1);
+				}
+				return line.toString();
+			}
+			line.append((char) c);
+		}
+	}
+
+	/**
+	 * Send a command and read its reply.
+	 * @param command The command without the newline.
+	 * @return        The reply.
+	 * @throws IOException
+	 */
+	Reply command(String command) throws IOException {
+		out.write((command + "\r\n").getBytes("ISO-8859-1"));
+		out.flush();
+		return readReply();
+	}
+
+	/**
+	 * Send a command, the reply must have the given first digit.
+	 * @param command
+	 * @param expected First digit of the reply, eg. 2.
+	 * @return         The reply.
+	 * @throws ReplyException If the reply is a different one.
+	 * @throws IOException
+	 */
+	Reply command(String command, int expected) throws IOException {
+		return check(command(command), expected);
+	}
+
+	private static Reply check(Reply reply, int expected) throws ReplyException {
+		if (reply.code / 100 != expected) {
+			throw new ReplyException(reply);
+		}
+		return reply;
+	}
+
+	/**
+	 * Log in and switch to binary transfers.
+	 * @param user
+	 * @param password
+	 * @throws IOException
+	 */
+	void login(String user, String password) throws IOException {
+		Reply reply = command("USER " + user);
+		if (reply.code == 331) {
+			reply = command("PASS " + password);
+		}
+		check(reply, 2);
+		command("TYPE I", 2);
+	}
+
+	/**
+	 * Send PASV and connect to the port the server offers.
+	 * @return The data connection.
+	 * @throws ReplyException If PASV fails.
+	 * @throws DataConnectionException If the data connection can't be made.
+	 * @throws IOException
+	 */
+	private Socket openPassive() throws IOException {
+		Reply reply = command("PASV", 2);
+		int open = reply.text.indexOf('(');
+		int close = reply.text.indexOf(')', open + 1);
+		if (open == -1 || close == -1) {
+			throw new IOException("Invalid PASV reply: " + reply.text);
+		}
+		String[] parts = reply.text.substring(open + 1, close).split(",");
+		if (parts.length != 6) {
+			throw new IOException("Invalid PASV reply: " + reply.text);
+		}
+		String address = parts[0].trim() + "." + parts[1].trim() + "." + parts[2].trim() + "." + parts[3].trim();
+		int port = Integer.parseInt(parts[4].trim()) * 256 + Integer.parseInt(parts[5].trim());
+		if (address.equals("0.0.0.0")) {
+			address = host;
+		}
+		try {
+			return connect(address, port);
+		} catch (IOException e) {
+			throw new DataConnectionException("Cannot connect to " + address + ":" + port + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Run a command that sends data from the server, eg. RETR or LIST.
+	 * @param command The command.
+	 * @param buffer  Buffer for reading the data, which is dropped.
+	 * @return        Number of bytes received.
+	 * @throws IOException
+	 */
+	long receive(String command, byte[] buffer) throws IOException {
+		Socket data = openPassive();
+		long total = 0;
+		try {
+			command(command, 1);
+			InputStream dataIn = data.getInputStream();
+			int count;
+			while ((count = dataIn.read(buffer)) != -1) {
+				total += count;
+			}
+		} finally {
+			data.close();
+		}
+		check(readReply(), 2);
+		return total;
+	}
+
+	/**
+	 * Run a command that sends data to the server, eg. STOR.
+	 * @param command The command.
+	 * @param pattern Data to send, repeated as often as needed.
+	 * @param size    Number of bytes to send.
+	 * @throws IOException
+	 */
+	void send(String command, byte[] pattern, long size) throws IOException {
+		Socket data = openPassive();
+		try {
+			command(command, 1);
+			OutputStream dataOut = data.getOutputStream();
+			long remaining = size;
+			while (remaining > 0) {
+				int count = (int) Math.min(pattern.length, remaining);
+				dataOut.write(pattern, 0, count);
+				remaining -= count;
+			}
+			dataOut.flush();
+		} finally {
+			data.close();
+		}
+		check(readReply(), 2);
+	}
+
+	/**
+	 * Send QUIT and close the connection without waiting for a reply.
+	 */
+	void close() {
+		try {
+			out.write("QUIT\r\n".getBytes("ISO-8859-1"));
+			out.flush();
+		} catch (IOException e) {
+			// closing anyway
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing more to do
+		}
+	}
+
+	/**
+	 * A reply of the server, only its first line is kept.
+	 */
+	static final class Reply {
+		final int code;
+		final String text;
+
+		Reply(int code, String text) {
+			this.code = code;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * Thrown if the server sends an error reply.
+	 */
+	static class ReplyException extends IOException {
+		final int code;
+
+		ReplyException(Reply reply) {
+			super(reply.text);
+			code = reply.code;
+		}
+	}
+
+	/**
+	 * Thrown if the data connection offered by PASV can't be made.
+	 */
+	static class DataConnectionException extends IOException {
+		DataConnectionException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package ftpservmobile.loadgen;
+
+/**
+ * Counts values, such as latencies in microseconds, in buckets that are
+ * exact below 64 and then 32 to every power of two, so any percentile is
+ * within about 3% of the real value whatever the range. Not thread safe,
+ * each simulated client keeps its own and they are added up at the end.
+ */
+class Histogram {
+	private static final int LINEAR = 64;      // values below this have a bucket each
+	private static final int SUB_BITS = 5;     // 32 buckets for every power of two above
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int MAX_SHIFT = 40;
+	private static final int BUCKETS = LINEAR + MAX_SHIFT * SUB_COUNT;
+
+	private long[] counts = new long[BUCKETS];
+	private long count = 0;
+	private long total = 0;
+	private long max = 0;
+
+	private static int bucketOf(long value) {
+		if (value < LINEAR) {
+			return (int) Math.max(value, 0);
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		if (shift > MAX_SHIFT) {
+			return BUCKETS - 1;
+		}
+		return LINEAR + (shift - 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+	}
+
+	/**
+	 * @param bucket
+	 * @return The highest value counted in the bucket.
+	 */
+	private static long highestIn(int bucket) {
+		if (bucket < LINEAR) {
+			return bucket;
+		}
+		int shift = (bucket - LINEAR) / SUB_COUNT + 1;
+		long sub = (bucket - LINEAR) % SUB_COUNT + SUB_COUNT;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	void record(long value) {
+		counts[bucketOf(value)]++;
+		count++;
+		total += value;
+		if (value > max) {
+			max = value;
+		}
+	}
+
+	void add(Histogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		total += other.total;
+		if (other.max > max) {
+			max = other.max;
+		}
+	}
+
+	long getCount() {
+		return count;
+	}
+
+	long getMax() {
+		return max;
+	}
+
+	double getMean() {
+		return (count > 0) ? (double) total / count : 0;
+	}
+
+	/**
+	 * @param percent The share of values, eg. 99.9.
+	 * @return        The value below or at which that share of the values lies.
+	 */
+	long getPercentile(double percent) {
+		if (count == 0) {
+			return 0;
+		}
+		long wanted = (long) Math.ceil(count * percent / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= wanted && seen > 0) {
+				return Math.min(highestIn(i), max);
+			}
+		}
+		return max;
+	}
+}
@@ -0,0 +1,294 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package ftpservmobile.loadgen;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Vector;
+
+/**
+ * Puts a running server under load from many simulated clients and
+ * reports what they saw: command latencies with their percentiles,
+ * transfer throughput and failed connections. Each stage runs with a
+ * different number of clients, by default 1, 10 and 100 one after the
+ * other. It needs nothing but a JVM and the server.
+ */
+public class LoadGenerator {
+	static final String SUB_DIR = "sub";
+	private static final String USAGE =
+			"Usage: LoadGenerator [options]\n"
+			+ "  -host HOST         server address (127.0.0.1)\n"
+			+ "  -port PORT         server control port (21)\n"
+			+ "  -clients N,N,...   number of clients of each stage (1,10,100)\n"
+			+ "  -duration SECONDS  measured time of each stage (30)\n"
+			+ "  -warmup SECONDS    time at the start of each stage that isn't measured (5)\n"
+			+ "  -rampup MS         time over which the clients of a stage connect (1000)\n"
+			+ "  -operations N      commands each client sends, 0 for no limit (0)\n"
+			+ "  -mix SPEC          weighted random commands (" + Workload.DEFAULT_MIX + ")\n"
+			+ "  -script FILE       commands to send in order instead of a mix\n"
+			+ "  -dir PATH          work directory on the server (/root1/loadgen)\n"
+			+ "  -files N           files created for RETR and SIZE (16)\n"
+			+ "  -size BYTES        size of each created and uploaded file (65536)\n"
+			+ "  -uploads N         file names each client cycles through for STOR (4)\n"
+			+ "  -think MS          pause after each command (0)\n"
+			+ "  -timeout MS        connect and reply timeout (30000)\n"
+			+ "  -seed N            seed of the random mix (1)\n"
+			+ "  -prepare BOOLEAN   create the work directory and files first (true)\n"
+			+ "  -csv FILE          also write the results to a CSV file\n"
+			+ "Commands: LIST NLST MLSD RETR STOR CWD SIZE PWD NOOP";
+
+	String host = "127.0.0.1";
+	int port = 21;
+	int[] clientCounts = { 1, 10, 100 };
+	long duration = 30000;
+	long warmUp = 5000;
+	long rampUp = 1000;
+	long operations = 0;
+	String workDir = "/root1/loadgen";
+	int fileCount = 16;
+	long fileSize = 64 * 1024;
+	int uploadCount = 4;
+	long thinkTime = 0;
+	int timeout = 30000;
+	long retryDelay = 100;           // ms to wait after a failed connection
+	long seed = 1;
+	boolean prepare = true;
+	String csvPath = null;
+	Workload workload = null;
+	byte[] pattern = new byte[64 * 1024];   // contents of uploaded files
+
+	LoadGenerator() {
+		for (int i = 0; i < pattern.length; i++) {
+			pattern[i] = (byte) ('a' + i % 26);
+		}
+	}
+
+	static String seedFileName(int index) {
+		return "file" + index + ".bin";
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadGenerator generator = new LoadGenerator();
+		try {
+			generator.parse(args);
+		} catch (Exception e) {
+			if (e.getMessage() != null && e.getMessage().length() > 0) {
+				System.err.println(e.getMessage());
+			}
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		System.exit(generator.run() ? 0 : 1);
+	}
+
+	private static long number(String option, String value) {
+		try {
+			long n = Long.parseLong(value.trim());
+			if (n < 0) {
+				throw new IllegalArgumentException("Negative value for " + option + ": " + value);
+			}
+			return n;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+		}
+	}
+
+	void parse(String[] args) throws IOException {
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if (option.equals("-help") || option.equals("-h")) {
+				throw new IllegalArgumentException("");
+			}
+			if (i + 1 == args.length) {
+				throw new IllegalArgumentException("Missing value for " + option);
+			}
+			String value = args[++i];
+			if (option.equals("-host")) {
+				host = value;
+			} else if (option.equals("-port")) {
+				port = (int) number(option, value);
+			} else if (option.equals("-clients")) {
+				String[] counts = value.split(",");
+				clientCounts = new int[counts.length];
+				for (int c = 0; c < counts.length; c++) {
+					clientCounts[c] = (int) number(option, counts[c]);
+					if (clientCounts[c] == 0) {
+						throw new IllegalArgumentException("A stage needs at least one client");
+					}
+				}
+			} else if (option.equals("-duration")) {
+				duration = number(option, value) * 1000;
+			} else if (option.equals("-warmup")) {
+				warmUp = number(option, value) * 1000;
+			} else if (option.equals("-rampup")) {
+				rampUp = number(option, value);
+			} else if (option.equals("-operations")) {
+				operations = number(option, value);
+			} else if (option.equals("-mix")) {
+				workload = Workload.parseMix(value);
+			} else if (option.equals("-script")) {
+				workload = Workload.readScript(value);
+			} else if (option.equals("-dir")) {
+				workDir = value.endsWith("/") ? value.substring(0, value.length() - 1) : value;
+				if (!workDir.startsWith("/")) {
+					throw new IllegalArgumentException("The work directory must be an absolute path: " + value);
+				}
+			} else if (option.equals("-files")) {
+				fileCount = Math.max(1, (int) number(option, value));
+			} else if (option.equals("-size")) {
+				fileSize = number(option, value);
+			} else if (option.equals("-uploads")) {
+				uploadCount = Math.max(1, (int) number(option, value));
+			} else if (option.equals("-think")) {
+				thinkTime = number(option, value);
+			} else if (option.equals("-timeout")) {
+				timeout = (int) number(option, value);
+			} else if (option.equals("-seed")) {
+				seed = number(option, value);
+			} else if (option.equals("-prepare")) {
+				prepare = value.equals("true");
+			} else if (option.equals("-csv")) {
+				csvPath = value;
+			} else {
+				throw new IllegalArgumentException("Unknown option " + option);
+			}
+		}
+		if (workload == null) {
+			workload = Workload.parseMix(Workload.DEFAULT_MIX);
+		}
+	}
+
+	/**
+	 * Create the work directory, its sub directory and the files the
+	 * clients download.
+	 * @throws IOException
+	 */
+	void prepareServer() throws IOException {
+		FtpClient client = new FtpClient(host, port, timeout);
+		try {
+			client.readReply();
+			client.login("loadgen", "loadgen@");
+			int slash = 0;
+			while (slash != -1) {
+				slash = workDir.indexOf('/', slash + 1);
+				String dir = (slash == -1) ? workDir : workDir.substring(0, slash);
+				if (client.command("CWD " + dir).code / 100 != 2) {
+					client.command("MKD " + dir, 2);
+				}
+			}
+			if (client.command("CWD " + workDir + "/" + SUB_DIR).code / 100 != 2) {
+				client.command("MKD " + workDir + "/" + SUB_DIR, 2);
+			}
+			for (int i = 0; i < fileCount; i++) {
+				client.send("STOR " + workDir + "/" + seedFileName(i), pattern, fileSize);
+			}
+		} finally {
+			client.close();
+		}
+	}
+
+	/**
+	 * Run one stage and report it.
+	 * @param clients Number of clients.
+	 * @param csv     Where to write the results as CSV, or null.
+	 * @return        The statistics of all clients together.
+	 * @throws InterruptedException
+	 */
+	Statistics runStage(int clients, PrintWriter csv) throws InterruptedException {
+		Stage stage = new Stage(clients, rampUp, warmUp, duration, operations);
+		SimulatedClient[] simulated = new SimulatedClient[clients];
+		Thread[] threads = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			simulated[i] = new SimulatedClient(this, workload, stage, i);
+			threads[i] = new Thread(simulated[i], "client-" + i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+		// Clients stuck in a transfer when the time is up get the reply timeout to finish
+		long deadline = System.currentTimeMillis() + warmUp + duration + rampUp + timeout;
+		for (int i = 0; i < clients; i++) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait > 0) {
+				threads[i].join(wait);
+			}
+		}
+		long window = stage.getMeasuredTime();
+		stage.stop();
+		Statistics total = new Statistics();
+		for (int i = 0; i < clients; i++) {
+			if (threads[i].isAlive()) {
+				System.out.println("Client " + i + " did not finish, its results are left out.");
+			} else {
+				total.add(simulated[i].getStatistics());
+			}
+		}
+
+		System.out.println();
+		System.out.println("=== " + clients + " client" + ((clients == 1) ? "" : "s") + ", "
+				+ window / 1000.0 + " s measured after " + warmUp / 1000 + " s warm-up, " + workload);
+		total.report(System.out, window);
+		if (csv != null) {
+			total.writeCsv(csv, clients, window);
+			csv.flush();
+		}
+		return total;
+	}
+
+	/**
+	 * Run all the stages.
+	 * @return False if the server could not be prepared.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	boolean run() throws IOException, InterruptedException {
+		System.out.println("Load on " + host + ":" + port + ", work directory " + workDir + ", "
+				+ fileCount + " files of " + fileSize + " bytes");
+		if (prepare) {
+			try {
+				prepareServer();
+			} catch (IOException e) {
+				System.err.println("Cannot prepare the server: " + e.getMessage());
+				return false;
+			}
+		}
+
+		PrintWriter csv = null;
+		if (csvPath != null) {
+			csv = new PrintWriter(new FileWriter(csvPath));
+			Statistics.writeCsvHeader(csv);
+		}
+		try {
+			for (int i = 0; i < clientCounts.length; i++) {
+				if (i > 0) {
+					// Let the server close the sessions of the last stage
+					Thread.sleep(1000);
+				}
+				runStage(clientCounts[i], csv);
+			}
+		} finally {
+			if (csv != null) {
+				csv.close();
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,208 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package ftpservmobile.loadgen;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * One simulated user. It logs in, changes to the work directory and then
+ * sends the commands of the workload until the stage ends, reconnecting
+ * whenever its session is lost. Only commands started after the warm-up
+ * are recorded.
+ */
+class SimulatedClient implements Runnable {
+	static final String CONNECT_VERB = "CONNECT";   // connecting, the greeting, login and CWD
+
+	private LoadGenerator settings;
+	private Workload workload;
+	private Stage stage;
+	private int id;
+	private Random random;
+	private Statistics statistics = new Statistics();
+	private FtpClient client = null;
+	private String cwd = null;
+	private long step = 0;
+	private int uploads = 0;
+	private byte[] buffer = new byte[64 * 1024];
+
+	/**
+	 * Constructor.
+	 * @param settings The options of the run.
+	 * @param workload The commands to send.
+	 * @param stage    When to start recording and when to stop.
+	 * @param id       Number of the client, from 0.
+	 */
+	SimulatedClient(LoadGenerator settings, Workload workload, Stage stage, int id) {
+		this.settings = settings;
+		this.workload = workload;
+		this.stage = stage;
+		this.id = id;
+		random = new Random(settings.seed * 1000003L + id);
+	}
+
+	Statistics getStatistics() {
+		return statistics;
+	}
+
+	public void run() {
+		try {
+			Thread.sleep(stage.startDelay(id));
+			while (!stage.isOver(step)) {
+				if (client == null) {
+					connect();
+				} else {
+					execute(workload.next(random, step++));
+				}
+				if (settings.thinkTime > 0) {
+					Thread.sleep(settings.thinkTime);
+				}
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		}
+		if (client != null) {
+			client.close();
+		}
+	}
+
+	/**
+	 * Open a session, waiting a little after a failure.
+	 * @throws InterruptedException
+	 */
+	private void connect() throws InterruptedException {
+		long start = System.nanoTime();
+		boolean recorded = stage.isMeasuring();
+		FtpClient newClient;
+		try {
+			newClient = new FtpClient(settings.host, settings.port, settings.timeout);
+		} catch (IOException e) {
+			fail(recorded, Statistics.CONNECT);
+			return;
+		}
+		try {
+			FtpClient.Reply greeting = newClient.readReply();
+			if (greeting.code != 220) {
+				newClient.close();
+				fail(recorded, Statistics.GREETING);
+				return;
+			}
+			newClient.login("loadgen", "loadgen@");
+			newClient.command("CWD " + settings.workDir, 2);
+		} catch (IOException e) {
+			newClient.close();
+			fail(recorded, Statistics.DROPPED);
+			return;
+		}
+		if (recorded) {
+			statistics.recordCommand(CONNECT_VERB, System.nanoTime() - start, true);
+		}
+		client = newClient;
+		cwd = settings.workDir;
+	}
+
+	private void fail(boolean recorded, String kind) throws InterruptedException {
+		if (recorded) {
+			statistics.recordFailure(kind);
+		}
+		Thread.sleep(settings.retryDelay);
+	}
+
+	/**
+	 * @param operation
+	 * @return          The argument of the command, chosen if the workload doesn't give one.
+	 */
+	private String argumentFor(Workload.Operation operation) {
+		if (operation.argument != null) {
+			int client = operation.argument.indexOf("{client}");
+			return (client == -1) ? operation.argument
+					: operation.argument.substring(0, client) + id + operation.argument.substring(client + 8);
+		}
+		String verb = operation.verb;
+		if (verb.equals("RETR") || verb.equals("SIZE")) {
+			return settings.workDir + "/" + LoadGenerator.seedFileName(random.nextInt(settings.fileCount));
+		}
+		if (verb.equals("STOR")) {
+			return settings.workDir + "/up-" + id + "-" + (uploads++ % settings.uploadCount) + ".bin";
+		}
+		if (verb.equals("CWD")) {
+			// Between the work directory and its sub directory
+			return cwd.equals(settings.workDir) ? settings.workDir + "/" + LoadGenerator.SUB_DIR : settings.workDir;
+		}
+		return null;
+	}
+
+	private void execute(Workload.Operation operation) throws InterruptedException {
+		String verb = operation.verb;
+		String argument = argumentFor(operation);
+		String command = (argument == null) ? verb : verb + " " + argument;
+		boolean recorded = stage.isMeasuring();
+		long start = System.nanoTime();
+		try {
+			if (verb.equals("LIST") || verb.equals("NLST") || verb.equals("MLSD")) {
+				client.receive(command, buffer);
+			} else if (verb.equals("RETR")) {
+				long bytes = client.receive(command, buffer);
+				if (recorded) {
+					statistics.recordTransfer(Statistics.DOWNLOAD, bytes, System.nanoTime() - start);
+				}
+			} else if (verb.equals("STOR")) {
+				client.send(command, settings.pattern, settings.fileSize);
+				if (recorded) {
+					statistics.recordTransfer(Statistics.UPLOAD, settings.fileSize, System.nanoTime() - start);
+				}
+			} else {
+				client.command(command, 2);
+				if (verb.equals("CWD")) {
+					cwd = argument;
+				}
+			}
+			if (recorded) {
+				statistics.recordCommand(verb, System.nanoTime() - start, true);
+			}
+		} catch (FtpClient.ReplyException e) {
+			if (recorded) {
+				statistics.recordCommand(verb, System.nanoTime() - start, false);
+			}
+			if (e.code == 421) {
+				// The server has ended the session
+				drop(recorded, Statistics.CLOSED);
+			}
+		} catch (FtpClient.DataConnectionException e) {
+			if (recorded) {
+				statistics.recordCommand(verb, System.nanoTime() - start, false);
+			}
+			// The server still waits for the data connection, start again
+			drop(recorded, Statistics.DATA);
+		} catch (IOException e) {
+			if (recorded) {
+				statistics.recordCommand(verb, System.nanoTime() - start, false);
+			}
+			drop(recorded, Statistics.DROPPED);
+		}
+	}
+
+	private void drop(boolean recorded, String kind) throws InterruptedException {
+		client.close();
+		client = null;
+		fail(recorded, kind);
+	}
+}
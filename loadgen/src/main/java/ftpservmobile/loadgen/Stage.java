@@ -0,0 +1,90 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package ftpservmobile.loadgen;
+
+/**
+ * One run of the load with a given number of clients. The clients start
+ * spread over the ramp-up time, measuring starts once the warm-up is
+ * over and everything stops at the end of the measuring time, or once
+ * every client has sent its share of commands.
+ */
+class Stage {
+	final int clients;
+	private long startTime;
+	private long rampUp;
+	private long measureFrom;
+	private long endTime;
+	private long operationsPerClient;   // 0 for no limit
+	private volatile boolean stopped = false;
+
+	/**
+	 * Constructor, the stage starts now.
+	 * @param clients             Number of clients.
+	 * @param rampUp              Time in ms over which the clients start.
+	 * @param warmUp              Time in ms after the start that isn't measured.
+	 * @param duration            Time in ms that is measured.
+	 * @param operationsPerClient Number of commands each client sends, 0 for no limit.
+	 */
+	Stage(int clients, long rampUp, long warmUp, long duration, long operationsPerClient) {
+		this.clients = clients;
+		this.rampUp = rampUp;
+		this.operationsPerClient = operationsPerClient;
+		startTime = System.currentTimeMillis();
+		measureFrom = startTime + warmUp;
+		endTime = measureFrom + duration;
+	}
+
+	/**
+	 * @param client Number of the client.
+	 * @return       Time in ms the client waits before it starts.
+	 */
+	long startDelay(int client) {
+		return (clients > 1) ? rampUp * client / clients : 0;
+	}
+
+	boolean isMeasuring() {
+		return System.currentTimeMillis() >= measureFrom;
+	}
+
+	/**
+	 * @param operations Number of commands the client has sent.
+	 * @return           True if the client should stop.
+	 */
+	boolean isOver(long operations) {
+		return stopped || System.currentTimeMillis() >= endTime
+				|| (operationsPerClient > 0 && operations >= operationsPerClient);
+	}
+
+	/**
+	 * Stop all the clients at once.
+	 */
+	void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * @return Time in ms measured so far, up to the planned end.
+	 */
+	long getMeasuredTime() {
+		long now = Math.min(System.currentTimeMillis(), endTime);
+		return Math.max(now - measureFrom, 0);
+	}
+}
@@ -0,0 +1,276 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package ftpservmobile.loadgen;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * What the simulated clients measured: the latency of each command, the
+ * files transferred and the connections that failed. Each client records
+ * into its own Statistics without locking, they are added up once the
+ * clients have stopped.
+ */
+class Statistics {
+	static final int DOWNLOAD = 0;
+	static final int UPLOAD = 1;
+	private static final String[] DIRECTION_NAMES = { "Download", "Upload" };
+
+	// Kinds of connection failure
+	static final String CONNECT = "connect";     // the control connection could not be made
+	static final String GREETING = "greeting";   // the server refused the session, eg. 421 too many users
+	static final String DROPPED = "dropped";     // the control connection broke or timed out
+	static final String CLOSED = "closed";       // the server ended the session with a 421 reply
+	static final String DATA = "data";           // a data connection could not be made
+	private static final String[] FAILURE_KINDS = { CONNECT, GREETING, DROPPED, CLOSED, DATA };
+
+	private Vector verbs = new Vector();            // verb names in the order first seen
+	private Hashtable histograms = new Hashtable(); // Histogram of latencies in us keyed by verb
+	private Hashtable errors = new Hashtable();     // long[1] count of failed commands keyed by verb
+	private long[] transfers = new long[2];
+	private long[] transferBytes = new long[2];
+	private long[] transferTime = new long[2];      // ns
+	private Hashtable failures = new Hashtable();   // long[1] count keyed by kind
+
+	private Histogram histogram(String verb) {
+		Histogram histogram = (Histogram) histograms.get(verb);
+		if (histogram == null) {
+			histogram = new Histogram();
+			histograms.put(verb, histogram);
+			errors.put(verb, new long[1]);
+			verbs.addElement(verb);
+		}
+		return histogram;
+	}
+
+	/**
+	 * Record one command.
+	 * @param verb       The command, eg. RETR.
+	 * @param latency    Time in ns from sending the command to its final reply.
+	 * @param successful False if the reply was an error.
+	 */
+	void recordCommand(String verb, long latency, boolean successful) {
+		histogram(verb).record(latency / 1000);
+		if (!successful) {
+			((long[]) errors.get(verb))[0]++;
+		}
+	}
+
+	/**
+	 * Record one finished file transfer.
+	 * @param direction DOWNLOAD or UPLOAD.
+	 * @param bytes     Number of bytes transferred.
+	 * @param duration  Time in ns the data connection was in use.
+	 */
+	void recordTransfer(int direction, long bytes, long duration) {
+		transfers[direction]++;
+		transferBytes[direction] += bytes;
+		transferTime[direction] += duration;
+	}
+
+	/**
+	 * Record a failed connection.
+	 * @param kind One of the kinds CONNECT, GREETING, DROPPED, CLOSED or DATA.
+	 */
+	void recordFailure(String kind) {
+		long[] count = (long[]) failures.get(kind);
+		if (count == null) {
+			count = new long[1];
+			failures.put(kind, count);
+		}
+		count[0]++;
+	}
+
+	void add(Statistics other) {
+		for (Enumeration e = other.verbs.elements(); e.hasMoreElements();) {
+			String verb = (String) e.nextElement();
+			histogram(verb).add((Histogram) other.histograms.get(verb));
+			((long[]) errors.get(verb))[0] += ((long[]) other.errors.get(verb))[0];
+		}
+		for (int d = 0; d < 2; d++) {
+			transfers[d] += other.transfers[d];
+			transferBytes[d] += other.transferBytes[d];
+			transferTime[d] += other.transferTime[d];
+		}
+		for (Enumeration e = other.failures.keys(); e.hasMoreElements();) {
+			String kind = (String) e.nextElement();
+			long count = ((long[]) other.failures.get(kind))[0];
+			for (long i = 0; i < count; i++) {
+				recordFailure(kind);
+			}
+		}
+	}
+
+	private long errorCount(String verb) {
+		return ((long[]) errors.get(verb))[0];
+	}
+
+	private long failureCount(String kind) {
+		long[] count = (long[]) failures.get(kind);
+		return (count != null) ? count[0] : 0;
+	}
+
+	/**
+	 * @return All the command latencies in one histogram, connecting excluded.
+	 */
+	private Histogram allCommands() {
+		Histogram all = new Histogram();
+		for (Enumeration e = verbs.elements(); e.hasMoreElements();) {
+			String verb = (String) e.nextElement();
+			if (!verb.equals(SimulatedClient.CONNECT_VERB)) {
+				all.add((Histogram) histograms.get(verb));
+			}
+		}
+		return all;
+	}
+
+	private static String millis(long micros) {
+		return format(micros / 1000.0, 3);
+	}
+
+	private static String megabytes(double bytes) {
+		return format(bytes / (1024 * 1024), 2);
+	}
+
+	private static String format(double value, int decimals) {
+		return String.format("%." + decimals + "f", value);
+	}
+
+	private static String pad(String text, int width, boolean right) {
+		StringBuffer padded = new StringBuffer();
+		if (right) {
+			padded.append(text);
+		}
+		for (int i = text.length(); i < width; i++) {
+			padded.append(' ');
+		}
+		if (!right) {
+			padded.append(text);
+		}
+		return padded.toString();
+	}
+
+	private static void row(PrintStream out, String verb, Histogram histogram, long errors) {
+		out.println(pad(verb, 10, true) + pad(Long.toString(histogram.getCount()), 9, false)
+				+ pad(Long.toString(errors), 8, false)
+				+ pad(millis(histogram.getPercentile(50)), 11, false)
+				+ pad(millis(histogram.getPercentile(99)), 11, false)
+				+ pad(millis(histogram.getPercentile(99.9)), 11, false)
+				+ pad(millis(histogram.getMax()), 11, false)
+				+ pad(format(histogram.getMean() / 1000, 3), 11, false));
+	}
+
+	/**
+	 * Print the report of a stage.
+	 * @param out    Where to print.
+	 * @param window Time in ms the measurements were taken over.
+	 */
+	void report(PrintStream out, long window) {
+		double seconds = Math.max(window, 1) / 1000.0;
+		out.println(pad("Command", 10, true) + pad("Count", 9, false) + pad("Errors", 8, false)
+				+ pad("p50 ms", 11, false) + pad("p99 ms", 11, false) + pad("p99.9 ms", 11, false)
+				+ pad("max ms", 11, false) + pad("mean ms", 11, false));
+		long totalErrors = 0;
+		for (Enumeration e = verbs.elements(); e.hasMoreElements();) {
+			String verb = (String) e.nextElement();
+			row(out, verb, (Histogram) histograms.get(verb), errorCount(verb));
+			if (!verb.equals(SimulatedClient.CONNECT_VERB)) {
+				totalErrors += errorCount(verb);
+			}
+		}
+		Histogram all = allCommands();
+		row(out, "ALL", all, totalErrors);
+		out.println("Commands " + format(all.getCount() / seconds, 1) + "/s");
+
+		for (int d = 0; d < 2; d++) {
+			double transferSeconds = transferTime[d] / 1e9;
+			out.println(pad(DIRECTION_NAMES[d], 10, true) + transfers[d] + " files, "
+					+ megabytes(transferBytes[d]) + " MB, "
+					+ megabytes(transferBytes[d] / seconds) + " MB/s aggregate, "
+					+ megabytes((transferSeconds > 0) ? transferBytes[d] / transferSeconds : 0)
+					+ " MB/s per transfer");
+		}
+
+		StringBuffer line = new StringBuffer("Connection failures");
+		long totalFailures = 0;
+		for (int i = 0; i < FAILURE_KINDS.length; i++) {
+			long count = failureCount(FAILURE_KINDS[i]);
+			totalFailures += count;
+			line.append((i == 0) ? " " : ", ").append(FAILURE_KINDS[i]).append(' ').append(count);
+		}
+		out.println(line.append(", total ").append(totalFailures).toString());
+	}
+
+	/**
+	 * Print the header of the CSV file written by writeCsv().
+	 * @param out
+	 */
+	static void writeCsvHeader(PrintWriter out) {
+		out.println("clients,command,count,errors,p50_ms,p99_ms,p999_ms,max_ms,mean_ms,per_second");
+	}
+
+	/**
+	 * Add one line for each command of a stage to a CSV file, followed by
+	 * a line for each direction of transfer and each kind of failure.
+	 * @param out     Where to write.
+	 * @param clients Number of clients of the stage.
+	 * @param window  Time in ms the measurements were taken over.
+	 */
+	void writeCsv(PrintWriter out, int clients, long window) {
+		double seconds = Math.max(window, 1) / 1000.0;
+		Vector names = new Vector();
+		for (Enumeration e = verbs.elements(); e.hasMoreElements();) {
+			names.addElement(e.nextElement());
+		}
+		names.addElement("ALL");
+		long totalErrors = 0;
+		for (Enumeration e = names.elements(); e.hasMoreElements();) {
+			String verb = (String) e.nextElement();
+			Histogram histogram;
+			long errorCount;
+			if (verb.equals("ALL")) {
+				histogram = allCommands();
+				errorCount = totalErrors;
+			} else {
+				histogram = (Histogram) histograms.get(verb);
+				errorCount = errorCount(verb);
+				if (!verb.equals(SimulatedClient.CONNECT_VERB)) {
+					totalErrors += errorCount;
+				}
+			}
+			out.println(clients + "," + verb + "," + histogram.getCount() + "," + errorCount + ","
+					+ millis(histogram.getPercentile(50)) + "," + millis(histogram.getPercentile(99)) + ","
+					+ millis(histogram.getPercentile(99.9)) + "," + millis(histogram.getMax()) + ","
+					+ format(histogram.getMean() / 1000, 3) + "," + format(histogram.getCount() / seconds, 1));
+		}
+		for (int d = 0; d < 2; d++) {
+			// files in the count column, aggregate MB/s in the last
+			out.println(clients + "," + DIRECTION_NAMES[d].toLowerCase() + "," + transfers[d]
+					+ ",,,,,,," + megabytes(transferBytes[d] / seconds));
+		}
+		for (int i = 0; i < FAILURE_KINDS.length; i++) {
+			out.println(clients + ",failure_" + FAILURE_KINDS[i] + "," + failureCount(FAILURE_KINDS[i]) + ",,,,,,,");
+		}
+	}
+}
@@ -0,0 +1,179 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package ftpservmobile.loadgen;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * The commands the simulated clients send. A mix picks each command at
+ * random with the given weights, a script is a list of commands every
+ * client goes through in order, again and again. A command without an
+ * argument gets one chosen by the client, see SimulatedClient.
+ */
+class Workload {
+	static final String[] VERBS = { "LIST", "NLST", "MLSD", "RETR", "STOR", "CWD", "SIZE", "PWD", "NOOP" };
+	static final String DEFAULT_MIX = "LIST=15,RETR=40,STOR=10,CWD=20,SIZE=15";
+
+	private Operation[] operations = null;
+	private int[] cumulativeWeights = null;   // null for a script
+	private String description;
+
+	private Workload(Vector operations, Vector weights, String description) {
+		this.operations = new Operation[operations.size()];
+		operations.copyInto(this.operations);
+		if (weights != null) {
+			cumulativeWeights = new int[weights.size()];
+			int total = 0;
+			for (int i = 0; i < cumulativeWeights.length; i++) {
+				total += ((Integer) weights.elementAt(i)).intValue();
+				cumulativeWeights[i] = total;
+			}
+		}
+		this.description = description;
+	}
+
+	/**
+	 * @param verb
+	 * @return     The verb in upper case.
+	 * @throws IllegalArgumentException If the verb isn't supported.
+	 */
+	private static String checkVerb(String verb) {
+		String upper = verb.toUpperCase();
+		for (int i = 0; i < VERBS.length; i++) {
+			if (VERBS[i].equals(upper)) {
+				return upper;
+			}
+		}
+		throw new IllegalArgumentException("Unsupported command " + verb);
+	}
+
+	/**
+	 * Parse a weighted mix.
+	 * @param spec Comma separated VERB=WEIGHT pairs, eg. "LIST=20,RETR=80".
+	 * @return     The workload.
+	 */
+	static Workload parseMix(String spec) {
+		Vector operations = new Vector();
+		Vector weights = new Vector();
+		int start = 0;
+		while (start < spec.length()) {
+			int end = spec.indexOf(',', start);
+			if (end == -1) {
+				end = spec.length();
+			}
+			String pair = spec.substring(start, end).trim();
+			start = end + 1;
+			if (pair.length() == 0) {
+				continue;
+			}
+			int equals = pair.indexOf('=');
+			int weight;
+			try {
+				weight = (equals == -1) ? 1 : Integer.parseInt(pair.substring(equals + 1).trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid weight in " + pair);
+			}
+			if (weight < 0) {
+				throw new IllegalArgumentException("Negative weight in " + pair);
+			}
+			if (weight > 0) {
+				String verb = checkVerb((equals == -1) ? pair : pair.substring(0, equals).trim());
+				operations.addElement(new Operation(verb, null));
+				weights.addElement(Integer.valueOf(weight));
+			}
+		}
+		if (operations.isEmpty()) {
+			throw new IllegalArgumentException("Empty mix: " + spec);
+		}
+		return new Workload(operations, weights, "mix " + spec);
+	}
+
+	/**
+	 * Read a script, one command with an optional argument on each line.
+	 * Empty lines and lines starting with # are skipped. {client} in an
+	 * argument is replaced by the number of the client.
+	 * @param path Path of the script file.
+	 * @return     The workload.
+	 * @throws IOException
+	 */
+	static Workload readScript(String path) throws IOException {
+		Vector operations = new Vector();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				int space = line.indexOf(' ');
+				String verb = checkVerb((space == -1) ? line : line.substring(0, space));
+				String argument = (space == -1) ? null : line.substring(space + 1).trim();
+				operations.addElement(new Operation(verb, argument));
+			}
+		} finally {
+			reader.close();
+		}
+		if (operations.isEmpty()) {
+			throw new IllegalArgumentException("Empty script: " + path);
+		}
+		return new Workload(operations, null, "script " + path);
+	}
+
+	/**
+	 * @param random The client's random numbers.
+	 * @param step   Number of commands the client has sent so far.
+	 * @return       The next command of the client.
+	 */
+	Operation next(Random random, long step) {
+		if (cumulativeWeights == null) {
+			return operations[(int) (step % operations.length)];
+		}
+		int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+		int i = 0;
+		while (pick >= cumulativeWeights[i]) {
+			i++;
+		}
+		return operations[i];
+	}
+
+	public String toString() {
+		return description;
+	}
+
+	/**
+	 * One command of a workload.
+	 */
+	static final class Operation {
+		final String verb;
+		final String argument;      // null if the client chooses
+
+		Operation(String verb, String argument) {
+			this.verb = verb;
+			this.argument = argument;
+		}
+	}
+}
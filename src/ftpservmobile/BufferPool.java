@@ -0,0 +1,189 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ftpservmobile;
+
+import java.util.Vector;
+
+/**
+ * This class keeps the transfer buffers of the whole server. Buffers are
+ * leased for a transfer and given back afterwards, so they are allocated
+ * once and then reused. Sizes are rounded up to a power of two, each size
+ * has its own list of free buffers. The bytes allocated never exceed the
+ * budget: free buffers of other sizes are dropped to make room and a lease
+ * that doesn't fit waits until enough buffers have been given back.
+ */
+public class BufferPool {
+	private static final int SMALLEST_CLASS = 9;   // size classes start at 512 bytes
+	private static final int CLASS_COUNT = 20;     // up to 256 MB
+
+	private Vector[] free = new Vector[CLASS_COUNT];  // free buffers of each size class
+	private int budget;                            // max number of bytes allocated at once
+	private int allocated = 0;                     // bytes allocated, leased or free
+	private int leased = 0;                        // bytes currently leased
+	private int maxLeased = 0;
+	private int waits = 0;                         // number of leases that had to wait
+
+	/**
+	 * Constructor.
+	 * @param budget Max number of bytes held in buffers.
+	 */
+	public BufferPool(int budget) {
+		this.budget = budget;
+		for (int i = 0; i < CLASS_COUNT; i++) {
+			free[i] = new Vector();
+		}
+	}
+
+	/**
+	 * @return Index of the smallest size class that holds the given size.
+	 */
+	private static int classOf(int size) {
+		int index = 0;
+		while ((1 << (index + SMALLEST_CLASS)) < size) {
+			index++;
+		}
+		return index;
+	}
+
+	private static int classSize(int index) {
+		return 1 << (index + SMALLEST_CLASS);
+	}
+
+	/**
+	 * @return Number of bytes taken from the budget by a lease of the given buffers.
+	 */
+	public static int getLeaseSize(int count, int size) {
+		return count * classSize(classOf(size));
+	}
+
+	/**
+	 * Lease a number of buffers of the same size, they are handed out
+	 * all at once so that two transfers never wait on each other while
+	 * each holds part of what it needs. Causes caller to block while the
+	 * budget is used up.
+	 * @param count Number of buffers.
+	 * @param size  Min size of each buffer, the buffers may be larger.
+	 * @return      The buffers.
+	 */
+	public synchronized byte[][] lease(int count, int size) {
+		int index = classOf(size);
+		int bytes = count * classSize(index);
+		if (bytes > budget) {
+			throw new IllegalArgumentException(bytes + " bytes of buffers requested, the budget is " + budget);
+		}
+		if (leased + bytes > budget) {
+			waits++;
+			if (Log.isEnabled(Log.DEBUG)) {
+				Log.put("Buffer budget used up, waiting for " + bytes + " bytes.");
+			}
+			while (leased + bytes > budget) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Log.logException(e);
+				}
+			}
+		}
+
+		byte[][] buffers = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			if (!free[index].isEmpty()) {
+				buffers[i] = (byte[]) free[index].lastElement();
+				free[index].removeElementAt(free[index].size() - 1);
+			} else {
+				makeRoom(classSize(index));
+				buffers[i] = new byte[classSize(index)];
+				allocated += classSize(index);
+			}
+		}
+		leased += bytes;
+		if (leased > maxLeased) {
+			maxLeased = leased;
+		}
+		return buffers;
+	}
+
+	/**
+	 * Drop free buffers of any size until the given number of bytes can
+	 * be allocated within the budget.
+	 * @param bytes
+	 */
+	private void makeRoom(int bytes) {
+		for (int i = CLASS_COUNT - 1; i >= 0 && allocated + bytes > budget; i--) {
+			while (!free[i].isEmpty() && allocated + bytes > budget) {
+				free[i].removeElementAt(free[i].size() - 1);
+				allocated -= classSize(i);
+			}
+		}
+	}
+
+	/**
+	 * Give back buffers leased with lease().
+	 * @param buffers
+	 */
+	public synchronized void release(byte[][] buffers) {
+		for (int i = 0; i < buffers.length; i++) {
+			int index = classOf(buffers[i].length);
+			free[index].addElement(buffers[i]);
+			leased -= buffers[i].length;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * @return Max number of bytes held in buffers.
+	 */
+	public int getBudget() {
+		return budget;
+	}
+
+	/**
+	 * @return Number of bytes currently leased.
+	 */
+	public synchronized int getLeasedBytes() {
+		return leased;
+	}
+
+	/**
+	 * @return Most bytes leased at once so far.
+	 */
+	public synchronized int getMaxLeasedBytes() {
+		return maxLeased;
+	}
+
+	/**
+	 * @return Number of bytes allocated, leased or free.
+	 */
+	public synchronized int getAllocatedBytes() {
+		return allocated;
+	}
+
+	/**
+	 * @return Number of leases that had to wait for buffers to be given back.
+	 */
+	public synchronized int getWaitCount() {
+		return waits;
+	}
+
+	public synchronized String toString() {
+		return leased + " of " + budget + " bytes leased, " + allocated + " allocated, max leased "
+				+ maxLeased + ", " + waits + " waits";
+	}
+}
@@ -0,0 +1,113 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ftpservmobile;
+
+/**
+ * This class is the base class for the handler of one FTP command verb.
+ * A handler declares the states of the ConnectionThread state machine
+ * in which its command is accepted.
+ */
+public abstract class CommandHandler {
+	// State masks, combine these to declare where a command is accepted
+	public static final int IDLE = 1 << FtpState.IDLE;
+	public static final int PASV_WAIT_FOR_COMMAND = 1 << FtpState.PASV_WAIT_FOR_COMMAND;
+	public static final int RNFR_OK = 1 << FtpState.RNFR_OK;
+	public static final int ANY_STATE = IDLE | PASV_WAIT_FOR_COMMAND | RNFR_OK;
+
+	private String verb;          // the upper case command verb, eg. RETR
+	private int validStates;      // mask of the states the command is accepted in
+	private int index = -1;       // position in the registry, used to record the command in the Metrics
+	private boolean usesDataConnection;  // true if the command waits on the data connection
+
+	/**
+	 * Constructor.
+	 * @param verb        The upper case command verb handled.
+	 * @param validStates Mask of the states in which the command is accepted.
+	 */
+	public CommandHandler(String verb, int validStates) {
+		this(verb, validStates, false);
+	}
+
+	/**
+	 * Constructor.
+	 * @param verb               The upper case command verb handled.
+	 * @param validStates        Mask of the states in which the command is accepted.
+	 * @param usesDataConnection True if the command opens or waits on the data connection.
+	 */
+	public CommandHandler(String verb, int validStates, boolean usesDataConnection) {
+		this.verb = verb;
+		this.validStates = validStates;
+		this.usesDataConnection = usesDataConnection;
+	}
+
+	public String getVerb() {
+		return verb;
+	}
+
+	/**
+	 * Replies to commands that use the data connection are never held back,
+	 * the client needs them before it can carry on with the transfer.
+	 * @return True if the command opens or waits on the data connection.
+	 */
+	public boolean usesDataConnection() {
+		return usesDataConnection;
+	}
+
+	/**
+	 * @param state A state of the state machine, see FtpState.
+	 * @return      True if the command is accepted in the given state.
+	 */
+	public boolean isValidIn(int state) {
+		return state >= 0 && (validStates & (1 << state)) != 0;
+	}
+
+	/**
+	 * @return Index given by the registry, -1 if not registered.
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	void setIndex(int index) {
+		this.index = index;
+	}
+
+	/**
+	 * Executes the command.
+	 * @param session The session that received the command.
+	 * @param state   The current state of the state machine.
+	 * @param input   The line that was read from the socket.
+	 * @return        The next state for the state machine.
+	 * @throws Exception
+	 */
+	public int invoke(ConnectionThread session, int state, String input) throws Exception {
+		return execute(session, state, input);
+	}
+
+	/**
+	 * Executes the command.
+	 * @param session The session that received the command.
+	 * @param state   The current state of the state machine.
+	 * @param input   The line that was read from the socket.
+	 * @return        The next state for the state machine.
+	 * @throws Exception
+	 */
+	protected abstract int execute(ConnectionThread session, int state, String input) throws Exception;
+}
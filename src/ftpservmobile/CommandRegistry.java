@@ -0,0 +1,218 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ftpservmobile;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+/**
+ * This class maps FTP command verbs to the handlers that execute them.
+ */
+public class CommandRegistry {
+	private Hashtable handlers = new Hashtable();
+	private int nextIndex = 0;      // index given to the next new verb
+
+	/**
+	 * Add a handler, it replaces any handler already registered for its verb.
+	 * Each verb gets its own index, a replacement keeps the index of the
+	 * handler it replaces.
+	 * @param handler
+	 */
+	public synchronized void register(CommandHandler handler) {
+		CommandHandler old = (CommandHandler) handlers.get(handler.getVerb());
+		handler.setIndex((old != null) ? old.getIndex() : nextIndex++);
+		handlers.put(handler.getVerb(), handler);
+	}
+
+	/**
+	 * @param verb Upper case command verb.
+	 * @return     The handler for the verb, or null if it isn't supported.
+	 */
+	public CommandHandler lookup(String verb) {
+		return (CommandHandler) handlers.get(verb);
+	}
+
+	/**
+	 * @return Enumeration of all registered handlers.
+	 */
+	public Enumeration elements() {
+		return handlers.elements();
+	}
+
+	/**
+	 * Prints the number of times each command has been executed to the log.
+	 * @param metrics The statistics the executed commands were recorded in.
+	 */
+	public void logInvocationCounts(Metrics metrics) {
+		for (Enumeration e = elements(); e.hasMoreElements();) {
+			CommandHandler handler = (CommandHandler) e.nextElement();
+			Log.put(Log.INFO, handler.getVerb() + " executed " + metrics.getCommandCount(handler.getIndex()) + " times");
+		}
+	}
+
+	/**
+	 * This will return the command verb of a line read from the socket, 
+	 * in upper case. For example, for 'stor file.txt' the string 'STOR'
+	 * is returned.
+	 * @param input
+	 * @return
+	 */
+	public static String getVerb(String input) {
+		int end = input.indexOf(' ');
+		if (end == -1) {
+			end = input.length();
+		}
+		for (int i = 0; i < end; i++) {
+			char c = input.charAt(i);
+			if (c >= 'a' && c <= 'z') {
+				return input.substring(0, end).toUpperCase();
+			}
+		}
+		return (end == input.length()) ? input : input.substring(0, end);
+	}
+
+	/**
+	 * Creates a registry holding the handlers for all commands supported
+	 * by the server.
+	 * @return
+	 */
+	public static CommandRegistry createDefault() {
+		CommandRegistry registry = new CommandRegistry();
+
+		// These commands can be processed in any state
+		registry.register(new CommandHandler("PWD", CommandHandler.ANY_STATE) {
+			protected int execute(ConnectionThread session, int state, String input) {
+				session.sendLine("257 \"" + session.cwdUrl.substring(session.ROOT_URL.length() - 1) + "\"");
+				return state;
+			}
+		});
+		registry.register(new CommandHandler("TYPE", CommandHandler.ANY_STATE) {
+			protected int execute(ConnectionThread session, int state, String input) throws Exception {
+				return session.validateTypeCommand(state, input);
+			}
+		});
+		registry.register(new CommandHandler("CWD", CommandHandler.ANY_STATE) {
+			protected int execute(ConnectionThread session, int state, String input) throws Exception {
+				return session.validateCwdCommand(state, input);
+			}
+		});
+		registry.register(new CommandHandler("MKD", CommandHandler.ANY_STATE) {
+			protected int execute(ConnectionThread session, int state, String input) throws Exception {
+				return session.validateMkdCommand(state, input);
+			}
+		});
+		registry.register(new CommandHandler("RNFR", CommandHandler.ANY_STATE) {
+			protected int execute(ConnectionThread session, int state, String input) throws Exception {
+				return session.validateRnfrCommand(state, input);
+			}
+		});
+		registry.register(new CommandHandler("NOOP", CommandHandler.ANY_STATE) {
+			protected int execute(ConnectionThread session, int state, String input) {
+				session.sendLine("200 OK");
+				return state;
+			}
+		});
+		registry.register(new CommandHandler("QUIT", CommandHandler.ANY_STATE) {
+			protected int execute(ConnectionThread session, int state, String input) {
+				return FtpState.TERMINATE;
+			}
+		});
+		registry.register(new CommandHandler("USER", CommandHandler.ANY_STATE) {
+			protected int execute(ConnectionThread session, int state, String input) {
+				session.sendLine("230 OK");
+				return state;
+			}
+		});
+		registry.register(new CommandHandler("PASV", CommandHandler.ANY_STATE, true) {
+			protected int execute(ConnectionThread session, int state, String input) {
+				return session.openDataSocket();
+			}
+		});
+		registry.register(new CommandHandler("SIZE", CommandHandler.ANY_STATE) {
+			protected int execute(ConnectionThread session, int state, String input) throws Exception {
+				return session.validateSizeCommand(state, input);
+			}
+		});
+		registry.register(new CommandHandler("MLST", CommandHandler.ANY_STATE) {
+			protected int execute(ConnectionThread session, int state, String input) throws Exception {
+				return session.validateMlstCommand(state, input);
+			}
+		});
+		registry.register(new CommandHandler("FEAT", CommandHandler.ANY_STATE) {
+			protected int execute(ConnectionThread session, int state, String input) {
+				session.sendLine("211-Features:");
+				session.sendLine(" MLST type*;size*;modify*;perm*;");
+				session.sendLine(" SIZE");
+				session.sendLine(" REST STREAM");
+				session.sendLine("211 End");
+				return state;
+			}
+		});
+		registry.register(new CommandHandler("SITE", CommandHandler.ANY_STATE) {
+			protected int execute(ConnectionThread session, int state, String input) throws Exception {
+				return session.validateSiteCommand(state, input);
+			}
+		});
+
+		// A data connection must be already open for these to work
+		registry.register(new CommandHandler("RETR", CommandHandler.PASV_WAIT_FOR_COMMAND, true) {
+			protected int execute(ConnectionThread session, int state, String input) throws Exception {
+				return session.validateRetrCommand(state, input);
+			}
+		});
+		registry.register(new CommandHandler("LIST", CommandHandler.PASV_WAIT_FOR_COMMAND, true) {
+			protected int execute(ConnectionThread session, int state, String input) throws Exception {
+				return session.validateListCommand(state, input);
+			}
+		});
+		registry.register(new CommandHandler("NLST", CommandHandler.PASV_WAIT_FOR_COMMAND, true) {
+			protected int execute(ConnectionThread session, int state, String input) throws Exception {
+				return session.validateNlstCommand(state, input);
+			}
+		});
+		registry.register(new CommandHandler("MLSD", CommandHandler.PASV_WAIT_FOR_COMMAND, true) {
+			protected int execute(ConnectionThread session, int state, String input) throws Exception {
+				return session.validateMlsdCommand(state, input);
+			}
+		});
+		registry.register(new CommandHandler("STOR", CommandHandler.PASV_WAIT_FOR_COMMAND, true) {
+			protected int execute(ConnectionThread session, int state, String input) throws Exception {
+				return session.validateStorCommand(state, input);
+			}
+		});
+
+		// Restart offset for the following RETR or STOR, clients send it 
+		// either side of PASV
+		registry.register(new CommandHandler("REST", CommandHandler.IDLE | CommandHandler.PASV_WAIT_FOR_COMMAND) {
+			protected int execute(ConnectionThread session, int state, String input) {
+				return session.validateRestCommand(state, input);
+			}
+		});
+
+		// Second half of a rename
+		registry.register(new CommandHandler("RNTO", CommandHandler.RNFR_OK) {
+			protected int execute(ConnectionThread session, int state, String input) throws Exception {
+				return session.validateRntoCommand(state, input);
+			}
+		});
+
+		return registry;
+	}
+}
@@ -1,784 +1,1220 @@
-//
-//    Copyright 2010 Paul White
-//
-//    This file is part of FtpServerMobile.
-//
-//    FtpServerMobile is free software: you can redistribute it and/or modify
-//    it under the terms of the GNU General Public License as published by
-//    the Free Software Foundation, either version 3 of the License, or
-//    (at your option) any later version.
-
-//    FtpServerMobile is distributed in the hope that it will be useful,
-//    but WITHOUT ANY WARRANTY; without even the implied warranty of
-//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
-//    GNU General Public License for more details.
-//
-//    You should have received a copy of the GNU General Public License
-//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
-//
-
-package ftpservmobile;
-
-import javax.microedition.io.*;
-import javax.microedition.io.file.FileConnection;
-import java.io.*;
-
-/**
- * This class implements the functionality for a thread that handles the FTP
- * commands received from a client. It does not do any retrieving or storing of
- * files.
- */
-public class ConnectionThread extends Thread {
-	protected StreamConnection client = null;              // The stream connection for the client
-	protected final int SOCKET_IN_BUFFER_SIZE = 4096;      // Size of the buffer used when buffering data from the socket
-	protected PrintStream out = null;                      // The stream used to write to the socket
-	protected InputStream in = null;                       // The stream used to read from the socket
-	protected int state;                                   // Records the current state of the state machine, see FtpState class for possible values
-	protected DataConnectionThread dataConnection = null;
-	protected String ipAddress = null;                     // Records the server's IP address
-	protected boolean shutdownInitiated = false;
-	protected final String ROOT_URL = "file:///";          // The prefix for URL's in the file system
-	protected String cwdUrl = ROOT_URL;                    // Stores the current working directory of the server
-	protected String renameFromPath = null;                // Used to remember the renameFrom path while awaiting the renameTo path
-	protected int oldState = -1;                           // Stores a fall back state for complicated failure cases
-	protected java.util.Timer idleTimer = null;
-	protected final int IDLE_TIMEOUT = 300;                 // Idle timeout in seconds before a client is disconnected
-	protected int dataPort = 5001;							// Initial port used for the data socket
-
-	/**
-	 * Default constructor.
-	 * 
-	 * @param client The StreamConnection that this thread will communicate with.
-	 * @param ipAddress The IP address of the server.
-	 */
-	public ConnectionThread(StreamConnection client, String ipAddress) {
-		super();
-		this.client = client;
-		if (ipAddress.length() == 0) {
-			this.ipAddress = "127,0,0,1";
-			Log.put("ERROR: unable to determine current IP address.");
-		} else {
-			this.ipAddress = ipAddress.replace('.', ',');
-		}
-	}
-
-	/**
-	 * This will send one line down the socket. The newline is
-	 * automatically appended. The output is also copied to the log.
-	 * 
-	 * @param data
-	 */
-	protected void sendLine(String data) {
-		Log.put("Sending [" + data + "]");
-		out.print(data + "\r\n");
-		out.flush();
-	}
-
-	/**
-	 * Stops a running idle timer if it exists and starts a new one.
-	 */
-	protected void resetIdleTimer() {
-		// Cancel old timer if running
-		if (idleTimer != null) {
-			idleTimer.cancel();
-		}
-
-		idleTimer = new java.util.Timer();
-		idleTimer.schedule(new IdleTimerTask(), IDLE_TIMEOUT * 1000);
-	}
-
-	/**
-	 * Read one line from the socket. 
-	 * 
-	 * @return The line that was read from the socket. The newline character(s) are removed automatically.
-	 * @throws Exception Thrown if the socket closed prematurely by the client or the input buffer over fills.
-	 */
-	protected String getLine() throws Exception {
-		resetIdleTimer();
-		char[] buffer = new char[SOCKET_IN_BUFFER_SIZE];
-		int bufferIndex = 0;
-		int lastChar = '\0';
-		int thisChar;
-		String retVal;
-		while ((thisChar = in.read()) != -1) {
-			// Keep filling buffer until a newline char sequence is reached
-			buffer[bufferIndex++] = (char) thisChar;
-			if (thisChar == 10 && lastChar == 13) {
-				// End of line reached, terminate the string
-				buffer[bufferIndex - 2] = '\0';
-				buffer[bufferIndex - 1] = '\0';
-				
-				// Remove the newline char sequence from end of string
-				bufferIndex -= 2;
-
-				break;
-			}
-			lastChar = buffer[bufferIndex - 1];
-
-			if (bufferIndex >= SOCKET_IN_BUFFER_SIZE) {
-				// If the line is too long, print the line, then throw exception
-
-				System.out.print("Received " + bufferIndex + " bytes [");
-				for (int i = 0; i < bufferIndex; i++) {
-					System.out.print((int) buffer[i] + " ");
-				}
-				System.out.println("]");
-				throw new Exception("Input buffer filled after " + bufferIndex
-						+ " bytes.");
-			}
-		}
-
-		if (thisChar == -1) {
-			// The socket was prematurely closed
-			throw new Exception("Socket closed unexpectedly.");
-		}
-
-		retVal = new String(buffer).substring(0, bufferIndex);
-		Log.put("Received " + bufferIndex + " bytes [" + retVal + "]"
-				+ " in state " + state + ", string length = " + retVal.length());
-		return retVal;
-	}
-
-	/**
-	 * Starts the DataConnectionThread which will communicate with the client
-	 * and handle file transfers. 
-	 * 
-	 * @return The next state for the state machine.
-	 */
-	protected int openDataSocket() {
-		dataConnection = new DataConnectionThread(dataPort);
-		dataConnection.start();
-		
-		// Read the port number for the socket the socket that is listening 
-		int port = Integer.parseInt(dataConnection.commandOut.getCommand().getArg());
-		
-		if (port > 0) {
-			dataPort = port + 1;  // next time, use a different port
-			Log.put("Data Connection thread started.");
-			sendLine("227 Entering Passive Mode (" + ipAddress + ","
-					+ (port / 256) + "," + (port % 256) + ")");
-			return FtpState.PASV_WAIT_FOR_COMMAND;
-		} else {
-			sendLine("421 Cannot open data listen port");
-			return FtpState.TERMINATE;
-		}
-	}
-
-	/**
-	 * If the DataConnectionThread was started then this will
-	 * wait for it to terminate.
-	 */
-	protected void closeDataSocket() {
-		if (dataConnection != null && dataConnection.isAlive()) {
-			dataConnection.commandIn.putCommand(new ThreadCommand(
-					FtpCommand.CLOSE));
-			while (dataConnection.isAlive()) {
-				dataConnection.yield();
-				Log.put("Waiting for data connection to close.");
-			}
-			Log.put("Finished waiting for Data Connection Thread to finish.");
-			dataConnection = null;
-		}
-	}
-
-	/**
-	 * Determines the absolute path based on the current working directory
-	 * and the suffix parameter here. If the suffix begins with a / then it
-	 * is assumed to be absolute already. Otherwise it is assumed to be relative.
-	 * The returned path is a fully qualified FileConnection URI. Any trailing /'s 
-	 * are removed.
-	 * 
-	 * @param suffix Absolute or relative path (not a FileConnection URI).  
-	 * @return FileConnection URI for the suffix. 
-	 */
-	protected String getAbsolutePath(String suffix) {
-		String retVal = null;
-		if (suffix == null)
-			return retVal;
-		else if (suffix.startsWith("/")) {
-			// Absolute path, append to file system root
-			suffix = Util.stripTrailingSlashs(suffix.substring(1));
-			retVal = ROOT_URL + suffix;
-		} else if (suffix.length() == 0) {
-			retVal = cwdUrl;
-		} else {
-			// Relative path, append to current working directory
-
-			if (cwdUrl.equals(ROOT_URL)) {
-				retVal = cwdUrl + suffix;
-			} else {
-				retVal = cwdUrl + "/" + suffix;
-			}
-			
-			if (!retVal.equals(ROOT_URL))
-				retVal = Util.stripTrailingSlashs(retVal);
-		}
-
-		return retVal;
-	}
-
-	/**
-	 * Validate's the FTP LIST command. If valid then the command is executed 
-	 * and the appropriate next state for the state machine is returned.
-	 * 
-	 * @param currentState The current state of the state machine.
-	 * @param fullCommand  The line that was read from the socket.
-	 * @return             The next state for the state machine.
-	 * @throws IOException Throws if there was a problem opening the FileConnection.
-	 */
-	protected int validateListCommand(int currentState, String fullCommand)
-			throws IOException {
-		int nextState = FtpState.PASV_WAIT_FOR_COMMAND;
-		boolean validated = false;
-		String arg = stripArgument(fullCommand);
-		String absPath = getAbsolutePath(arg);
-		if (absPath != null) {
-			if (absPath.equals(ROOT_URL)) {
-				validated = true;
-			} else {
-				FileConnection fc = (FileConnection) Connector.open(absPath + "/");
-				if (fc.exists() && fc.isDirectory())
-					validated = true;
-			}
-		}
-
-		if (validated) {
-			// Issue the LIST command to the DataConnectionThread
-			dataConnection.commandIn.putCommand(new ThreadCommand(FtpCommand.LIST, absPath));
-			// Await result
-			sendLine(dataConnection.commandOut.getCommand().getArg());
-			// Close DataConnectionThread
-			dataConnection.commandIn.putCommand(new ThreadCommand(FtpCommand.CLOSE));
-			
-			// Tell client that we have completed the command
-			sendLine("226 OK");
-			nextState = FtpState.IDLE;
-		}
-		return nextState;
-	}
-
-	/**
-	 * Validates the FTP CWD (change working directory) command. If 
-	 * validated okay then the command is executed.
-	 * 
-	 * @param currentState The current state of the state machine.
-	 * @param fullCommand  The line that was read from the socket.
-	 * @return             The next state for the state machine.
-	 * @throws IOException
-	 */
-	protected int validateCwdCommand(int currentState, String fullCommand)
-			throws IOException {
-		int nextState = currentState;
-		boolean validated = false;
-		String arg = stripArgument(fullCommand);
-		String absPath = getAbsolutePath(arg);
-		if (absPath != null) {
-			if (absPath.equals(ROOT_URL)) {
-				validated = true;
-			} else {
-				String path = absPath + "/";
-				Log.put("Check if directory:" + path + ", exists");
-				FileConnection fc = (FileConnection) Connector.open(path);
-				if (fc.exists() && fc.isDirectory())
-					validated = true;
-			}
-		}
-
-		if (validated) {
-			cwdUrl = absPath;
-			sendLine("213 OK");
-		} else {
-			sendLine("550 DIRECTORY NOT FOUND");
-		}
-		return nextState;
-	}
-
-	/**
-	 * Validates the FTP RETR command. If 
-	 * validated okay then the command is executed.
-	 * 
-	 * @param currentState The current state of the state machine.
-	 * @param fullCommand  The line that was read from the socket.
-	 * @return             The next state for the state machine.
-	 * @throws IOException
-	 */
-	protected int validateRetrCommand(int currentState, String fullCommand)
-			throws IOException {
-		int nextState = currentState;
-		boolean validated = false;
-		String arg = stripArgument(fullCommand);
-		String absPath = getAbsolutePath(arg);
-		if (absPath != null) {
-			try {
-				FileConnection fc = (FileConnection) Connector.open(absPath);
-				if (fc.exists() && !fc.isDirectory())
-					validated = true;
-			} catch (java.lang.IllegalArgumentException e) {
-				Log.put("Can't open file connection to:" + absPath);
-			}
-		}
-
-		if (validated) {
-			Log.putPublic("Retrieving file : " + absPath);
-			idleTimer.cancel();
-			
-			// Order DataConnectionThread to act on the command
-			dataConnection.commandIn.putCommand(new ThreadCommand(FtpCommand.RETR, absPath));
-			
-			// Wait for response
-			sendLine(dataConnection.commandOut.getCommand().getArg());
-			
-			// Order DataConnectionThread to continue
-			dataConnection.commandIn.putCommand(new ThreadCommand(FtpCommand.CONTINUE));
-			
-			// Wait for response
-			sendLine(dataConnection.commandOut.getCommand().getArg());
-			
-			// Cause DataConnectionThread to end
-			dataConnection.commandIn.putCommand(new ThreadCommand(FtpCommand.CLOSE));
-			resetIdleTimer();
-		} else {
-			sendLine("553 Incorrect path or not such file");
-		}
-
-		closeDataSocket();
-		nextState = FtpState.IDLE;
-
-		return nextState;
-	}
-
-	/**
-	 * Validates the FTP Size command. If 
-	 * validated okay then the command is executed.
-	 * 
-	 * @param currentState The current state of the state machine.
-	 * @param fullCommand  The line that was read from the socket.
-	 * @return             The next state for the state machine.
-	 * @throws IOException
-	 */
-	protected int validateSizeCommand(int currentState, String fullCommand)
-			throws IOException {
-		int nextState = currentState;
-		boolean validated = false;
-		String arg = stripArgument(fullCommand);
-		String absPath = getAbsolutePath(arg);
-		long fileSize = -1;
-		if (absPath != null) {
-			try {
-				FileConnection fc = (FileConnection) Connector.open(absPath);
-				if (fc.exists() && !fc.isDirectory()) {
-					validated = true;
-					fileSize = fc.fileSize();
-				}
-			} catch (java.lang.IllegalArgumentException e) {
-				Log.put("Can't open file connection to:" + absPath);
-			}
-		}
-
-		if (validated) {
-			sendLine("213 " + fileSize);
-		} else {
-			sendLine("553 Incorrect path or no such file");
-		}
-
-		return nextState;
-	}
-
-	/**
-	 * Checks if the given path is in the root of the file system.
-	 * 
-	 * @param path Fully qualified URI
-	 * @return
-	 */
-	protected boolean isPathInRoot(String path) {
-		return path.lastIndexOf('/') <= ROOT_URL.lastIndexOf('/');
-	}
-
-	/**
-	 * Validates the FTP RNFR (rename from) command. If 
-	 * validated okay then the command is executed. This command is
-	 * part of a two command sequence. First we get RNFR (rename from)
-	 * followed by RNTO (rename to). This allows files and dir's to be
-	 * renamed.
-	 * 
-	 * @param currentState The current state of the state machine.
-	 * @param fullCommand  The line that was read from the socket.
-	 * @return             The next state for the state machine.
-	 * @throws IOException
-	 */
-	protected int validateRnfrCommand(int currentState, String fullCommand)
-			throws IOException {
-		int nextState = currentState;
-		boolean validated = false;
-		String arg = stripArgument(fullCommand);
-		String absPath = getAbsolutePath(arg);
-
-		if (absPath != null && !isPathInRoot(absPath)) {
-			try {
-				FileConnection fc = (FileConnection) Connector.open(absPath);
-
-				if (fc.exists()) {
-					// Ensure file exists
-					validated = true;
-					renameFromPath = absPath;
-				}
-			} catch (java.lang.IllegalArgumentException e) {
-				Log.put("Can't open file connection to:" + absPath);
-			}
-		}
-
-		if (validated) {
-			sendLine("350 Command OK");
-			// Remember what the old state was, we will fall back to that after 
-			// the following RNTO command.
-			oldState = currentState; 
-			nextState = FtpState.RNFR_OK;
-		} else {
-			sendLine("450 Cannot find file");
-		}
-
-		return nextState;
-	}
-
-	/**
-	 * Validates the FTP RNTO (rename to) command. If 
-	 * validated okay then the command is executed. This command is
-	 * part of a two command sequence. First we get RNFR (rename from)
-	 * followed by RNTO (rename to). This allows files and dir's to be
-	 * renamed.
-	 * 
-	 * @param currentState The current state of the state machine.
-	 * @param fullCommand  The line that was read from the socket.
-	 * @return             The next state for the state machine.
-	 * @throws IOException
-	 */
-	protected int validateRntoCommand(int currentState, String fullCommand)
-			throws IOException {
-		int nextState = currentState;
-		boolean validated = false;
-		String arg = stripArgument(fullCommand);
-		String absPath = getAbsolutePath(arg);
-
-		if (absPath != null && !isPathInRoot(absPath)) {
-			try {
-				FileConnection fcTo = (FileConnection) Connector.open(absPath);
-
-				if (!fcTo.exists()) {
-					// Ensure file doesn't exist
-					FileConnection fcFr = (FileConnection) Connector.open(renameFromPath);
-					fcFr.rename(absPath.substring(absPath.lastIndexOf('/') + 1));
-					validated = true;
-				}
-			} catch (java.lang.IllegalArgumentException e) {
-				Log.put("Can't open file connection to:" + absPath);
-			}
-		}
-
-		if (validated) {
-			sendLine("250 Rename action completed");
-			Log.putPublic("Renamed : " + absPath);
-		} else {
-			sendLine("553 Cannot rename to this target filename");
-		}
-
-		nextState = oldState;
-
-		return nextState;
-	}
-
-	protected int validateMkdCommand(int currentState, String fullCommand)
-			throws IOException {
-		int nextState = currentState;
-		boolean validated = false;
-		String arg = stripArgument(fullCommand);
-		String absPath = getAbsolutePath(arg);
-
-		if (absPath != null && !isPathInRoot(absPath)) {
-			try {
-				FileConnection fc = (FileConnection) Connector.open(absPath);
-
-				if (!fc.exists()) {
-					// File file/dir exist, check if we can create it
-					fc.mkdir();
-					validated = true;
-				}
-			} catch (java.lang.IllegalArgumentException e) {
-				Log.put("Can't open file connection to:" + absPath);
-			}
-		}
-
-		if (validated) {
-			sendLine("257 Directory created");
-			Log.putPublic("Created directory : " + absPath);
-		} else {
-			sendLine("550 Cannot create directory here");
-		}
-
-		return nextState;
-	}
-
-	protected int validateStorCommand(int currentState, String fullCommand)
-			throws IOException {
-		int nextState = currentState;
-		boolean validated = false;
-		String arg = stripArgument(fullCommand);
-		String absPath = getAbsolutePath(arg);
-
-		if (absPath != null && !isPathInRoot(absPath)) {
-			try {
-				FileConnection fc = (FileConnection) Connector.open(absPath);
-
-				if (!fc.exists()) {
-					// File doesn't exist, check if we can create it
-					fc.create();
-					validated = true;
-				} else {
-					// File/Dir exists
-					if (!fc.isDirectory() && fc.canWrite()) {
-						// Ensure that it's a writable file
-						validated = true;
-					}
-				}
-			} catch (java.lang.IllegalArgumentException e) {
-				Log.put("Can't open file connection to:" + absPath);
-			}
-		}
-
-		if (validated) {
-			Log.putPublic("Storing file : " + absPath);
-			idleTimer.cancel();
-			dataConnection.commandIn.putCommand(new ThreadCommand(FtpCommand.STOR, absPath));
-			sendLine(dataConnection.commandOut.getCommand().getArg());
-			sendLine(dataConnection.commandOut.getCommand().getArg());
-			dataConnection.commandIn.putCommand(new ThreadCommand(FtpCommand.CLOSE));
-			resetIdleTimer();
-		} else {
-			sendLine("553 Cannot store this file");
-		}
-
-		closeDataSocket();
-		nextState = FtpState.IDLE;
-
-		return nextState;
-	}
-	
-	/**
-	 * Validate the type command. This is used to set the type
-	 * of the data being sent over the data connection. Only 
-	 * (I)mage and (A)scii types are supported here.
-	 * 
-	 * @param currentState
-	 * @param fullCommand
-	 * @return
-	 * @throws IOException
-	 */
-	protected int validateTypeCommand(int currentState, String fullCommand)
-			throws IOException {
-		int nextState = currentState;
-		String arg = stripArgument(fullCommand);
-
-		if (arg.equals("I") || 
-			arg.equals("i") ||
-			arg.equals("A") || 
-			arg.equals("a") )
-		{
-			sendLine("200 OK");
-		}
-		else
-		{
-			sendLine("504 This type is not supported");
-		}
-
-		return nextState;
-	}
-
-	/**
-	 * This will return the first argument after the ftp command. For example,
-	 * in the command 'stor file.txt', the string 'file.txt' is returned. If
-	 * there is no first argument then an empty string is returned ("").
-	 * 
-	 * @param input
-	 * @return
-	 */
-	protected String stripArgument(String input) {
-		// Strip leading or trailing whitespace
-		input = input.trim();
-
-		int startIndex = -1;
-		int endIndex = input.length();
-		for (int index = 0; index < input.length(); index++) {
-			if (startIndex == -1) {
-				if (input.charAt(index) == ' ') {
-					startIndex = index;
-					break;
-				}
-			}
-		}
-
-		String retVal = null;
-
-		if (startIndex == -1)
-			retVal = "";
-		else
-			retVal = input.substring(startIndex + 1, endIndex);
-
-		Log.put("stripArgument returns [" + retVal + "]");
-
-		return retVal;
-	}
-
-	/**
-	 * This method executes a state machine transition. The current
-	 * state is passed in and the new state is returned.
-	 * 
-	 * @param state       The current state
-	 * @return            The next state
-	 * @throws Exception
-	 */
-	protected int processState(int state) throws Exception {
-		// Read a line of input from the socket, this will dictate
-		// what state we should go to next.
-		String input = getLine();
-		
-		int nextState = FtpState.INVALID;
-
-		// These commands can be processed in any state
-		if (input.startsWith("PWD")) {
-			sendLine("257 \"" + cwdUrl.substring(ROOT_URL.length()-1) + "\"");
-			nextState = state;
-		} else if (input.startsWith("TYPE")) {
-			nextState = validateTypeCommand(state, input);
-		} else if (input.startsWith("CWD")) {
-			nextState = validateCwdCommand(state, input);
-		} else if (input.startsWith("MKD")) {
-			nextState = validateMkdCommand(state, input);
-		} else if (input.startsWith("RNFR")) {
-			nextState = validateRnfrCommand(state, input);
-		} else if (input.startsWith("noop")) {
-			sendLine("200 OK");
-			nextState = state;
-		} else if (input.startsWith("QUIT")) {
-			nextState = FtpState.TERMINATE;
-		} else if (input.startsWith("USER")) {
-			sendLine("230 OK");
-			nextState = state;
-		} else if (input.startsWith("PASV")) {
-			nextState = openDataSocket();
-		} else if (input.startsWith("SIZE")) {
-		    nextState = validateSizeCommand(state, input);	
-		}
-
-		// Now handle state specific commands if the generic 
-		// handling above didn't do the job...
-		if (nextState == FtpState.INVALID) {
-			switch (state) {
-			case FtpState.IDLE:
-				break;
-				
-			case FtpState.PASV_WAIT_FOR_COMMAND:
-				// A Data connection must be already open for these to work
-				
-				if (input.startsWith("RETR")) {
-					nextState = validateRetrCommand(state, input);
-				} else if (input.startsWith("LIST")) {
-					nextState = validateListCommand(state, input);
-				} else if (input.startsWith("STOR")) {
-					nextState = validateStorCommand(state, input);
-				} else {
-					sendLine("500 Unrecognised command");
-					nextState = state;
-				}
-				break;
-
-			case FtpState.RNFR_OK:
-				if (input.startsWith("RNTO")) {
-					nextState = validateRntoCommand(state, input);
-				}
-				break;
-
-			default:
-				closeDataSocket();
-				nextState = FtpState.IDLE;
-				throw new Exception("No state exists for state : " + state);
-			}
-		}
-		if (nextState == FtpState.INVALID) {
-			// Handle unrecognised commands
-			sendLine("502 Command not supported");
-			nextState = state;			
-		}
-		Log.put("State transition from " + state + " to " + nextState);
-		return nextState;
-	}
-
-	/**
-	 * This method executes a shutdown of this thread and
-	 * all its resources.
-	 */
-	public synchronized void shutdown() {
-		Log.put("ConnectionThread::shutdown()");
-		idleTimer.cancel();
-		shutdownInitiated = true;
-		state = FtpState.TERMINATE;
-		
-		// Wait for DataConnectionThread to close if necessary
-		closeDataSocket();
-		try {
-			// Close comm's streams, and socket
-			if (out != null)
-				out.close();
-			if (in != null)
-				in.close();
-			if (client != null)
-				client.close();
-		} catch (Throwable ioe) {
-			Log.logException(ioe);
-		}
-	}
-
-	/* (non-Javadoc)
-	 * @see java.lang.Thread#run()
-	 * This is the main loop of the thread.
-	 */
-	public void run() {
-		Log.put("ConnectionThread::run()");
-		Log.putPublic("A user has connected");
-		try {
-			in = client.openInputStream();
-			out = new PrintStream(client.openOutputStream());
-			
-			// Set the initial state for the state machine
-			state = FtpState.IDLE;
-			
-			// Send the ready command to the client
-			sendLine("220 Welcome to the MIDP Ftp Server");
-			
-			// Start processing the state machine
-			while (state != FtpState.TERMINATE) {
-				state = processState(state);
-			}
-		} catch (java.io.InterruptedIOException iioe) {
-			if (!shutdownInitiated) {
-				Log.logException(iioe);
-			}
-		} catch (Throwable ioe) {
-			Log.logException(ioe);
-		} finally {
-			shutdown();
-		}
-		Log.putPublic("A user has disconnected");
-		Log.put("ConnectionThread::run() finished.");
-	}
-
-	/**
-	 * This inner thread is used to implement an idle supervision
-	 * timer on the ConnectionThread. If the timeout expires then
-	 * a shutdown of the thread is initiated.
-	 */
-	class IdleTimerTask extends java.util.TimerTask {
-		public synchronized void run() {
-			Log.put("Idle timer expired");
-			shutdown();
-		}
-	}
-}
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ftpservmobile;
+
+import javax.microedition.io.*;
+import javax.microedition.io.file.FileConnection;
+import java.io.*;
+import java.util.Vector;
+
+/**
+ * This class implements the functionality for a session that handles the FTP
+ * commands received from a client. It does not do any retrieving or storing of
+ * files. Sessions are run by the worker threads of a SessionPool.
+ */
+public class ConnectionThread implements Runnable {
+	// Bytes reserved for each session when sizing the SessionPool. This covers
+	// the control line buffer and the stacks and streams of the threads, the
+	// transfer buffers come out of the BufferPool budget.
+	public static final int SESSION_MEMORY_BUDGET = 32 * 1024;
+
+	// Steps of a transfer, each waits for the next reply of the DataConnectionThread
+	protected static final int TRANSFER_NONE = 0;          // No transfer in progress
+	protected static final int TRANSFER_LIST = 1;          // Listing is being sent
+	protected static final int TRANSFER_RETR_OPEN = 2;     // File is being opened for RETR
+	protected static final int TRANSFER_RETR = 3;          // File is being sent
+	protected static final int TRANSFER_STOR_OPEN = 4;     // File is being opened for STOR
+	protected static final int TRANSFER_STOR = 5;          // File is being received
+
+	protected StreamConnection client = null;              // The stream connection for the client
+	protected final int SOCKET_IN_BUFFER_SIZE = 4096;      // Size of the buffer used when buffering data from the socket
+	protected OutputStream out = null;                     // The stream used to write to the socket
+	protected InputStream in = null;                       // The stream used to read from the socket
+	protected int state;                                   // Records the current state of the state machine, see FtpState class for possible values
+	protected DataConnectionThread dataConnection = null;
+	protected String ipAddress = null;                     // Records the server's IP address
+	protected boolean shutdownInitiated = false;
+	protected final String ROOT_URL = "file:///";          // The prefix for URL's in the file system
+	protected String cwdUrl = ROOT_URL;                    // Stores the current working directory of the server
+	protected String renameFromPath = null;                // Used to remember the renameFrom path while awaiting the renameTo path
+	protected int oldState = -1;                           // Stores a fall back state for complicated failure cases
+	protected long restartOffset = 0;                      // Offset set by REST for the next RETR or STOR
+	protected TimingWheel idleSupervisor = null;           // Server wide supervisor of the idle timers
+	protected TimingWheel.Timeout idleTimer = null;
+	protected final int IDLE_TIMEOUT = 300;                 // Idle timeout in seconds before a client is disconnected
+	protected ControlPoller poller = null;                 // The polled engine that owns this session, null if the session has its own thread
+	protected ControlCodec codec = null;                   // Reads commands from and writes replies to the socket
+	protected boolean pipelining = false;                  // If set, replies to commands already queued behind each other are sent in one write
+	protected boolean deferFlush = false;                  // Set while replies are being held back for pipelining
+	protected int metricsStripe;                           // The stripe of the server statistics this session records into
+	protected int transferStep = TRANSFER_NONE;            // The step of the transfer awaiting a reply of the DataConnectionThread
+	protected String transferPath = null;                  // The file being stored, its cached details are dropped once it is complete
+	protected int transferHandler;                         // The handler that started the transfer, for the statistics
+	protected long transferStartTime;                      // Time the transfer was started, for the statistics
+	protected static CommandRegistry commands = CommandRegistry.createDefault();  // Handlers for the supported commands, shared by all sessions
+	protected static PassivePortAllocator passivePorts = new PassivePortAllocator(5001, 16);  // Ports for the data socket, shared by all sessions
+	protected static MetadataCache fileMetadata = new MetadataCache(256, 10000);  // Details of recently used paths, shared by all sessions
+	protected static FileCache fileContents = new FileCache(64 * 1024, 16 * 1024);  // Contents of small files sent recently, shared by all sessions
+	protected static ListingCache listings = new ListingCache(32 * 1024, 30000);  // Listings of recently listed directories, shared by all sessions
+	protected static BufferPool transferBuffers = new BufferPool(64 * 1024);  // Buffers for file transfers, shared by all sessions
+	protected static Metrics metrics = new Metrics(8);  // Statistics of the whole server, shared by all sessions
+	protected static DataConnectionPool dataConnections = new DataConnectionPool(4, fileMetadata, fileContents, listings, transferBuffers, metrics, 2, 512, 8192);  // Threads serving the data sockets, shared by all sessions
+
+	/**
+	 * Default constructor.
+	 * 
+	 * @param client The StreamConnection that this thread will communicate with.
+	 * @param ipAddress The IP address of the server.
+	 * @param idleSupervisor The timing wheel that supervises the idle timer.
+	 */
+	public ConnectionThread(StreamConnection client, String ipAddress, TimingWheel idleSupervisor) {
+		super();
+		this.client = client;
+		this.idleSupervisor = idleSupervisor;
+		metricsStripe = metrics.stripeFor(this);
+		if (ipAddress.length() == 0) {
+			this.ipAddress = "127,0,0,1";
+			Log.put("ERROR: unable to determine current IP address.");
+		} else {
+			this.ipAddress = ipAddress.replace('.', ',');
+		}
+	}
+
+	/**
+	 * This will send one line down the socket. The newline is
+	 * automatically appended. The output is also copied to the log.
+	 * When pipelining, the line may be held back and sent together
+	 * with the replies to the following commands.
+	 * 
+	 * @param data
+	 */
+	protected void sendLine(String data) {
+		if (Log.isEnabled(Log.DEBUG)) {
+			Log.put("Sending [" + data + "]");
+		}
+		try {
+			codec.writeLine(data);
+			if (!deferFlush) {
+				codec.flush();
+			}
+		} catch (IOException e) {
+			// The next getLine() will fail and end the session
+			Log.put(Log.WARN, "Failed to send [" + data + "] : " + e.toString());
+		}
+	}
+
+	/**
+	 * Restarts the idle timer, it is created the first time round.
+	 */
+	protected void resetIdleTimer() {
+		if (idleTimer == null) {
+			idleTimer = idleSupervisor.schedule(new IdleTimerTask(), IDLE_TIMEOUT * 1000);
+		} else {
+			idleTimer.reset(IDLE_TIMEOUT * 1000);
+		}
+	}
+
+	/**
+	 * Enables or disables pipelining. When enabled, the replies to commands
+	 * that the client has sent back-to-back are coalesced into a single
+	 * write, as long as none of them uses the data connection.
+	 * 
+	 * @param pipelining
+	 */
+	public void setPipelining(boolean pipelining) {
+		this.pipelining = pipelining;
+	}
+
+	/**
+	 * Hands this session to the polled control channel engine. The session
+	 * will then process one command each time it is run.
+	 * 
+	 * @param poller The engine that owns this session.
+	 */
+	public void setPoller(ControlPoller poller) {
+		this.poller = poller;
+	}
+
+	/**
+	 * Used by the polled engine to check if this session can be run without
+	 * blocking. Any input available on the socket is read ahead by the codec.
+	 * 
+	 * @return True if a full command has been received, the session has yet to 
+	 *         be opened or the socket has failed. During a transfer, true if 
+	 *         the DataConnectionThread has replied.
+	 */
+	protected boolean isReady() {
+		if (codec == null || shutdownInitiated) {
+			return true;
+		}
+		if (transferStep != TRANSFER_NONE) {
+			DataConnectionThread transfer = dataConnection;
+			return transfer == null || transfer.commandOut.hasCommand();
+		}
+		try {
+			if (!codec.readAvailable()) {
+				return true;
+			}
+		} catch (IOException e) {
+			// Let getLine() report the failure
+			return true;
+		}
+		// If the buffer is full without a newline let getLine() report the overflow
+		return codec.hasLine() || codec.isFull();
+	}
+
+	/**
+	 * Read one line from the socket. 
+	 * 
+	 * @return The line that was read from the socket. The newline character(s) are removed automatically.
+	 * @throws Exception Thrown if the socket closed prematurely by the client or the input buffer over fills.
+	 */
+	protected String getLine() throws Exception {
+		resetIdleTimer();
+		String retVal = codec.readLine();
+		if (Log.isEnabled(Log.DEBUG)) {
+			Log.put("Received [" + retVal + "]"
+					+ " in state " + state + ", string length = " + retVal.length());
+		}
+		return retVal;
+	}
+
+	/**
+	 * Starts the DataConnectionThread which will communicate with the client
+	 * and handle file transfers. 
+	 * 
+	 * @return The next state for the state machine.
+	 */
+	protected int openDataSocket() {
+		// A new PASV replaces any data connection that wasn't used
+		closeDataSocket();
+
+		PassivePortAllocator.PassivePort passivePort = passivePorts.allocate();
+		if (passivePort != null) {
+			String clientAddress = null;
+			try {
+				if (client instanceof SocketConnection) {
+					clientAddress = ((SocketConnection) client).getAddress();
+				}
+			} catch (IOException e) {
+				Log.put("Unable to determine the client address.");
+			}
+			dataConnection = dataConnections.acquire(passivePort, clientAddress);
+			if (dataConnection == null) {
+				passivePort.release();
+				sendLine("421 Cannot open data listen port");
+				return FtpState.TERMINATE;
+			}
+			
+			int port = passivePort.getPort();
+			Log.put("Data connection assigned.");
+			sendLine("227 Entering Passive Mode (" + ipAddress + ","
+					+ (port / 256) + "," + (port % 256) + ")");
+			return FtpState.PASV_WAIT_FOR_COMMAND;
+		} else {
+			sendLine("421 Cannot open data listen port");
+			return FtpState.TERMINATE;
+		}
+	}
+
+	/**
+	 * If a DataConnectionThread was assigned then this will wait
+	 * for it to close the data connection and give it back to the pool.
+	 */
+	protected synchronized void closeDataSocket() {
+		if (dataConnection != null) {
+			// Closing the communicator rather than putting a CLOSE command
+			// is safe when shutdown() is called from another thread.
+			dataConnection.commandIn.close();
+			// A session thread waiting for a reply is woken and aborts
+			// the transfer, its own closeDataSocket() waits for this one.
+			dataConnection.commandOut.close();
+			// The client may never connect to the data socket, don't let
+			// the thread wait for it. When shutting down don't wait for a
+			// transfer to a client that may have stopped either.
+			if (shutdownInitiated) {
+				dataConnection.abortTransfer();
+			} else {
+				dataConnection.abortAccept();
+			}
+			Log.put("Waiting for data connection to close.");
+			dataConnection.awaitCompletion();
+			if (Log.isEnabled(Log.DEBUG)) {
+				Log.put("Data connection commands in: " + dataConnection.commandIn
+						+ "; replies out: " + dataConnection.commandOut);
+			}
+			ThreadCommunicator replies = dataConnection.commandOut;
+			metrics.recordHandoffs(metricsStripe, replies.getHandoffCount(),
+					replies.getTotalLatency(), replies.getMaxLatency());
+			dataConnections.release(dataConnection);
+			dataConnection = null;
+		}
+	}
+
+	/**
+	 * Wait for the next reply of the DataConnectionThread and send it to
+	 * the client. If the thread ended without replying, because the
+	 * transfer failed or the data connection was closed, the client is
+	 * told that the transfer was aborted instead. Any replies held back
+	 * are sent before waiting, in the order of the commands.
+	 *
+	 * @return False if the transfer was aborted.
+	 */
+	protected boolean sendDataReply() {
+		// Replies held back by pipelining go out first, the client may be
+		// waiting for them before it uses the data connection.
+		if (codec.hasPendingOutput()) {
+			try {
+				codec.flush();
+			} catch (IOException e) {
+				Log.put(Log.WARN, "Failed to send held back replies : " + e.toString());
+			}
+		}
+		ThreadCommand reply = dataConnection.commandOut.getCommand();
+		if (reply.getCommand() != FtpCommand.REPLY) {
+			sendLine("426 Connection closed; transfer aborted");
+			return false;
+		}
+		sendLine(reply.getArg());
+		return true;
+	}
+
+	/**
+	 * Order the DataConnectionThread to act on a command. The session 
+	 * doesn't wait here for the replies, continueTransfer() takes the
+	 * following steps. The polled engine runs it once a reply has 
+	 * arrived, so the session doesn't hold a worker of the SessionPool
+	 * while the data is sent. Otherwise processState() runs it until the
+	 * transfer is complete.
+	 * 
+	 * @param step    The first step of the transfer.
+	 * @param command The command for the DataConnectionThread.
+	 */
+	protected void startTransfer(int step, ThreadCommand command) {
+		transferStep = step;
+		if (poller != null) {
+			dataConnection.commandOut.setPoller(poller);
+		}
+		dataConnection.commandIn.putCommand(command);
+	}
+
+	/**
+	 * Send the next reply of the DataConnectionThread to the client and 
+	 * take the next step of the transfer. Waits if the reply hasn't 
+	 * arrived yet.
+	 */
+	protected void continueTransfer() {
+		if (shutdownInitiated || dataConnection == null) {
+			// The session was shut down during the transfer
+			endTransfer();
+			return;
+		}
+		boolean replied = sendDataReply();
+		switch (transferStep) {
+		case TRANSFER_LIST:
+			if (replied) {
+				// Close DataConnectionThread
+				dataConnection.commandIn.close();
+				
+				// Tell client that we have completed the command
+				sendLine("226 OK");
+			} else {
+				closeDataSocket();
+			}
+			break;
+		case TRANSFER_RETR_OPEN:
+			if (replied) {
+				// Order DataConnectionThread to continue
+				transferStep = TRANSFER_RETR;
+				dataConnection.commandIn.putCommand(new ThreadCommand(FtpCommand.CONTINUE));
+				return;
+			}
+			resetIdleTimer();
+			closeDataSocket();
+			break;
+		case TRANSFER_STOR_OPEN:
+			if (replied) {
+				transferStep = TRANSFER_STOR;
+				return;
+			}
+			resetIdleTimer();
+			closeDataSocket();
+			break;
+		default:
+			resetIdleTimer();
+			closeDataSocket();
+			break;
+		}
+		metrics.recordCommand(metricsStripe, transferHandler, System.currentTimeMillis() - transferStartTime);
+		endTransfer();
+	}
+
+	/**
+	 * Forget the transfer, a stored file may have changed even if the 
+	 * transfer failed.
+	 */
+	protected void endTransfer() {
+		if (transferPath != null) {
+			fileMetadata.invalidate(transferPath);
+			fileContents.invalidate(transferPath);
+			listings.invalidate(transferPath);
+			transferPath = null;
+		}
+		transferStep = TRANSFER_NONE;
+	}
+
+	/**
+	 * Determines the absolute path based on the current working directory
+	 * and the suffix parameter here. If the suffix begins with a / then it
+	 * is assumed to be absolute already. Otherwise it is assumed to be relative.
+	 * The returned path is a fully qualified FileConnection URI. Any trailing /'s 
+	 * are removed.
+	 * 
+	 * @param suffix Absolute or relative path (not a FileConnection URI).  
+	 * @return FileConnection URI for the suffix. 
+	 */
+	protected String getAbsolutePath(String suffix) {
+		String retVal = null;
+		if (suffix == null)
+			return retVal;
+		else if (suffix.startsWith("/")) {
+			// Absolute path, append to file system root
+			suffix = Util.stripTrailingSlashs(suffix.substring(1));
+			retVal = ROOT_URL + suffix;
+		} else if (suffix.length() == 0) {
+			retVal = cwdUrl;
+		} else {
+			// Relative path, append to current working directory
+
+			if (cwdUrl.equals(ROOT_URL)) {
+				retVal = cwdUrl + suffix;
+			} else {
+				retVal = cwdUrl + "/" + suffix;
+			}
+			
+			if (!retVal.equals(ROOT_URL))
+				retVal = Util.stripTrailingSlashs(retVal);
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Validate's the FTP LIST command. If valid then the command is executed 
+	 * and the appropriate next state for the state machine is returned.
+	 * 
+	 * @param currentState The current state of the state machine.
+	 * @param fullCommand  The line that was read from the socket.
+	 * @return             The next state for the state machine.
+	 * @throws IOException Throws if there was a problem opening the FileConnection.
+	 */
+	protected int validateListCommand(int currentState, String fullCommand)
+			throws IOException {
+		int nextState = FtpState.PASV_WAIT_FOR_COMMAND;
+		boolean validated = false;
+		String arg = stripArgument(fullCommand);
+		String absPath = getAbsolutePath(arg);
+		if (absPath != null) {
+			if (absPath.equals(ROOT_URL)) {
+				validated = true;
+			} else {
+				FileMetadata metadata = fileMetadata.lookup(absPath + "/");
+				if (metadata.exists && metadata.isDirectory)
+					validated = true;
+			}
+		}
+
+		if (validated) {
+			// Issue the LIST command to the DataConnectionThread
+			startTransfer(TRANSFER_LIST, new ThreadCommand(FtpCommand.LIST, absPath));
+			nextState = FtpState.IDLE;
+		}
+		return nextState;
+	}
+
+	/**
+	 * Validate's the FTP NLST command. Only the names in the directory are
+	 * sent, the last part of the path may be a pattern using * and ? to
+	 * select the names. If valid then the command is executed and the
+	 * appropriate next state for the state machine is returned.
+	 * 
+	 * @param currentState The current state of the state machine.
+	 * @param fullCommand  The line that was read from the socket.
+	 * @return             The next state for the state machine.
+	 * @throws IOException Throws if there was a problem opening the FileConnection.
+	 */
+	protected int validateNlstCommand(int currentState, String fullCommand)
+			throws IOException {
+		int nextState = FtpState.PASV_WAIT_FOR_COMMAND;
+		boolean validated = false;
+		String arg = stripArgument(fullCommand);
+		if (arg.startsWith("-")) {
+			// Options meant for ls, there is nothing to do with them
+			arg = "";
+		}
+
+		String filter = null;
+		int lastSlash = arg.lastIndexOf('/');
+		String lastPart = arg.substring(lastSlash + 1);
+		if (lastPart.indexOf('*') != -1 || lastPart.indexOf('?') != -1) {
+			filter = lastPart;
+			arg = arg.substring(0, lastSlash + 1);
+		}
+
+		String absPath = getAbsolutePath(arg);
+		if (absPath != null) {
+			if (absPath.equals(ROOT_URL)) {
+				validated = true;
+			} else {
+				FileMetadata metadata = fileMetadata.lookup(absPath + "/");
+				if (metadata.exists && metadata.isDirectory)
+					validated = true;
+			}
+		}
+
+		if (validated) {
+			startTransfer(TRANSFER_LIST, new ThreadCommand(FtpCommand.NLST, absPath, filter));
+			nextState = FtpState.IDLE;
+		} else {
+			sendLine("450 Cannot find file");
+		}
+		return nextState;
+	}
+
+	/**
+	 * Validate's the FTP MLSD command. The facts of every entry in the
+	 * directory are sent over the data connection. If valid then the
+	 * command is executed and the appropriate next state for the state
+	 * machine is returned.
+	 * 
+	 * @param currentState The current state of the state machine.
+	 * @param fullCommand  The line that was read from the socket.
+	 * @return             The next state for the state machine.
+	 * @throws IOException Throws if there was a problem opening the FileConnection.
+	 */
+	protected int validateMlsdCommand(int currentState, String fullCommand)
+			throws IOException {
+		int nextState = FtpState.PASV_WAIT_FOR_COMMAND;
+		boolean validated = false;
+		String arg = stripArgument(fullCommand);
+		String absPath = getAbsolutePath(arg);
+		if (absPath != null) {
+			if (absPath.equals(ROOT_URL)) {
+				validated = true;
+			} else {
+				FileMetadata metadata = fileMetadata.lookup(absPath + "/");
+				if (metadata.exists && metadata.isDirectory)
+					validated = true;
+			}
+		}
+
+		if (validated) {
+			startTransfer(TRANSFER_LIST, new ThreadCommand(FtpCommand.MLSD, absPath));
+			nextState = FtpState.IDLE;
+		} else {
+			sendLine("550 DIRECTORY NOT FOUND");
+		}
+		return nextState;
+	}
+
+	/**
+	 * Validates the FTP CWD (change working directory) command. If 
+	 * validated okay then the command is executed.
+	 * 
+	 * @param currentState The current state of the state machine.
+	 * @param fullCommand  The line that was read from the socket.
+	 * @return             The next state for the state machine.
+	 * @throws IOException
+	 */
+	protected int validateCwdCommand(int currentState, String fullCommand)
+			throws IOException {
+		int nextState = currentState;
+		boolean validated = false;
+		String arg = stripArgument(fullCommand);
+		String absPath = getAbsolutePath(arg);
+		if (absPath != null) {
+			if (absPath.equals(ROOT_URL)) {
+				validated = true;
+			} else {
+				String path = absPath + "/";
+				if (Log.isEnabled(Log.DEBUG)) {
+					Log.put("Check if directory:" + path + ", exists");
+				}
+				FileMetadata metadata = fileMetadata.lookup(path);
+				if (metadata.exists && metadata.isDirectory)
+					validated = true;
+			}
+		}
+
+		if (validated) {
+			cwdUrl = absPath;
+			sendLine("213 OK");
+		} else {
+			sendLine("550 DIRECTORY NOT FOUND");
+		}
+		return nextState;
+	}
+
+	/**
+	 * Validates the FTP RETR command. If 
+	 * validated okay then the command is executed.
+	 * 
+	 * @param currentState The current state of the state machine.
+	 * @param fullCommand  The line that was read from the socket.
+	 * @return             The next state for the state machine.
+	 * @throws IOException
+	 */
+	protected int validateRetrCommand(int currentState, String fullCommand)
+			throws IOException {
+		int nextState = currentState;
+		boolean validated = false;
+		String arg = stripArgument(fullCommand);
+		String absPath = getAbsolutePath(arg);
+		if (absPath != null) {
+			try {
+				FileMetadata metadata = fileMetadata.lookup(absPath);
+				if (metadata.exists && !metadata.isDirectory && restartOffset <= metadata.size)
+					validated = true;
+			} catch (java.lang.IllegalArgumentException e) {
+				if (Log.isEnabled(Log.DEBUG)) {
+					Log.put("Can't open file connection to:" + absPath);
+				}
+			}
+		}
+
+		if (validated) {
+			Log.putPublic("Retrieving file : " + absPath);
+			idleTimer.cancel();
+			
+			// Order DataConnectionThread to act on the command, the data 
+			// socket is closed once the transfer is complete
+			startTransfer(TRANSFER_RETR_OPEN, new ThreadCommand(FtpCommand.RETR, absPath, restartOffset));
+		} else {
+			sendLine("553 Incorrect path or not such file");
+			closeDataSocket();
+		}
+
+		restartOffset = 0;
+		nextState = FtpState.IDLE;
+
+		return nextState;
+	}
+
+	/**
+	 * Validates the FTP Size command. If 
+	 * validated okay then the command is executed.
+	 * 
+	 * @param currentState The current state of the state machine.
+	 * @param fullCommand  The line that was read from the socket.
+	 * @return             The next state for the state machine.
+	 * @throws IOException
+	 */
+	protected int validateSizeCommand(int currentState, String fullCommand)
+			throws IOException {
+		int nextState = currentState;
+		boolean validated = false;
+		String arg = stripArgument(fullCommand);
+		String absPath = getAbsolutePath(arg);
+		long fileSize = -1;
+		if (absPath != null) {
+			try {
+				FileMetadata metadata = fileMetadata.lookup(absPath);
+				if (metadata.exists && !metadata.isDirectory) {
+					validated = true;
+					fileSize = metadata.size;
+				}
+			} catch (java.lang.IllegalArgumentException e) {
+				if (Log.isEnabled(Log.DEBUG)) {
+					Log.put("Can't open file connection to:" + absPath);
+				}
+			}
+		}
+
+		if (validated) {
+			sendLine("213 " + fileSize);
+		} else {
+			sendLine("553 Incorrect path or no such file");
+		}
+
+		return nextState;
+	}
+
+	/**
+	 * Validates the FTP MLST command. The facts of a single file or
+	 * directory are sent over the control connection.
+	 * 
+	 * @param currentState The current state of the state machine.
+	 * @param fullCommand  The line that was read from the socket.
+	 * @return             The next state for the state machine.
+	 * @throws IOException
+	 */
+	protected int validateMlstCommand(int currentState, String fullCommand)
+			throws IOException {
+		String arg = stripArgument(fullCommand);
+		String absPath = getAbsolutePath(arg);
+		FileMetadata metadata = null;
+		if (absPath != null && !absPath.equals(ROOT_URL)) {
+			try {
+				metadata = fileMetadata.lookup(absPath);
+			} catch (java.lang.IllegalArgumentException e) {
+				if (Log.isEnabled(Log.DEBUG)) {
+					Log.put("Can't open file connection to:" + absPath);
+				}
+			}
+		}
+
+		if (metadata != null && metadata.exists) {
+			String path = absPath.substring(ROOT_URL.length() - 1);
+			sendLine("250- Listing " + path);
+			sendLine(" " + metadata.formatFacts(path));
+			sendLine("250 End");
+		} else {
+			sendLine("550 No such file or directory");
+		}
+		return currentState;
+	}
+
+	/**
+	 * Validates the FTP SITE command. SITE STATS sends a snapshot of the
+	 * server statistics over the control connection, other SITE commands
+	 * are not supported.
+	 * 
+	 * @param currentState The current state of the state machine.
+	 * @param fullCommand  The line that was read from the socket.
+	 * @return             The next state for the state machine.
+	 */
+	protected int validateSiteCommand(int currentState, String fullCommand) {
+		String arg = stripArgument(fullCommand).trim().toUpperCase();
+		if (!arg.equals("STATS")) {
+			sendLine("502 Command not supported");
+			return currentState;
+		}
+
+		sendLine("211-Server statistics");
+		Vector lines = metrics.report(commands);
+		for (int i = 0; i < lines.size(); i++) {
+			sendLine((String) lines.elementAt(i));
+		}
+		sendLine(" Data workers busy " + dataConnections.getBusyCount()
+				+ ", data port bind failures " + passivePorts.getBindFailures());
+		sendLine(" Transfer buffers " + transferBuffers);
+		sendLine(" Metadata cache hits " + fileMetadata.getHits() + ", misses " + fileMetadata.getMisses());
+		sendLine(" File cache " + fileContents);
+		sendLine(" Listing cache hits " + listings.getHits() + ", misses " + listings.getMisses());
+		sendLine("211 End");
+		return currentState;
+	}
+
+	/**
+	 * Checks if the given path is in the root of the file system.
+	 * 
+	 * @param path Fully qualified URI
+	 * @return
+	 */
+	protected boolean isPathInRoot(String path) {
+		return path.lastIndexOf('/') <= ROOT_URL.lastIndexOf('/');
+	}
+
+	/**
+	 * Validates the FTP RNFR (rename from) command. If 
+	 * validated okay then the command is executed. This command is
+	 * part of a two command sequence. First we get RNFR (rename from)
+	 * followed by RNTO (rename to). This allows files and dir's to be
+	 * renamed.
+	 * 
+	 * @param currentState The current state of the state machine.
+	 * @param fullCommand  The line that was read from the socket.
+	 * @return             The next state for the state machine.
+	 * @throws IOException
+	 */
+	protected int validateRnfrCommand(int currentState, String fullCommand)
+			throws IOException {
+		int nextState = currentState;
+		boolean validated = false;
+		String arg = stripArgument(fullCommand);
+		String absPath = getAbsolutePath(arg);
+
+		if (absPath != null && !isPathInRoot(absPath)) {
+			try {
+				if (fileMetadata.lookup(absPath).exists) {
+					// Ensure file exists
+					validated = true;
+					renameFromPath = absPath;
+				}
+			} catch (java.lang.IllegalArgumentException e) {
+				if (Log.isEnabled(Log.DEBUG)) {
+					Log.put("Can't open file connection to:" + absPath);
+				}
+			}
+		}
+
+		if (validated) {
+			sendLine("350 Command OK");
+			// Remember what the old state was, we will fall back to that after 
+			// the following RNTO command.
+			oldState = currentState; 
+			nextState = FtpState.RNFR_OK;
+		} else {
+			sendLine("450 Cannot find file");
+		}
+
+		return nextState;
+	}
+
+	/**
+	 * Validates the FTP RNTO (rename to) command. If 
+	 * validated okay then the command is executed. This command is
+	 * part of a two command sequence. First we get RNFR (rename from)
+	 * followed by RNTO (rename to). This allows files and dir's to be
+	 * renamed.
+	 * 
+	 * @param currentState The current state of the state machine.
+	 * @param fullCommand  The line that was read from the socket.
+	 * @return             The next state for the state machine.
+	 * @throws IOException
+	 */
+	protected int validateRntoCommand(int currentState, String fullCommand)
+			throws IOException {
+		int nextState = currentState;
+		boolean validated = false;
+		String arg = stripArgument(fullCommand);
+		String absPath = getAbsolutePath(arg);
+
+		if (absPath != null && !isPathInRoot(absPath)) {
+			try {
+				if (!fileMetadata.lookup(absPath).exists) {
+					// Ensure file doesn't exist
+					FileConnection fcFr = (FileConnection) Connector.open(renameFromPath);
+					try {
+						fcFr.rename(absPath.substring(absPath.lastIndexOf('/') + 1));
+					} finally {
+						fcFr.close();
+						fileMetadata.invalidate(renameFromPath);
+						fileMetadata.invalidate(absPath);
+						fileContents.invalidate(renameFromPath);
+						fileContents.invalidate(absPath);
+						listings.invalidate(renameFromPath);
+						listings.invalidate(absPath);
+					}
+					validated = true;
+				}
+			} catch (java.lang.IllegalArgumentException e) {
+				if (Log.isEnabled(Log.DEBUG)) {
+					Log.put("Can't open file connection to:" + absPath);
+				}
+			}
+		}
+
+		if (validated) {
+			sendLine("250 Rename action completed");
+			Log.putPublic("Renamed : " + absPath);
+		} else {
+			sendLine("553 Cannot rename to this target filename");
+		}
+
+		nextState = oldState;
+
+		return nextState;
+	}
+
+	protected int validateMkdCommand(int currentState, String fullCommand)
+			throws IOException {
+		int nextState = currentState;
+		boolean validated = false;
+		String arg = stripArgument(fullCommand);
+		String absPath = getAbsolutePath(arg);
+
+		if (absPath != null && !isPathInRoot(absPath)) {
+			try {
+				FileConnection fc = (FileConnection) Connector.open(absPath);
+				try {
+					if (!fc.exists()) {
+						// File file/dir exist, check if we can create it
+						fc.mkdir();
+						validated = true;
+					}
+				} finally {
+					fc.close();
+					fileMetadata.invalidate(absPath);
+					listings.invalidate(absPath);
+				}
+			} catch (java.lang.IllegalArgumentException e) {
+				if (Log.isEnabled(Log.DEBUG)) {
+					Log.put("Can't open file connection to:" + absPath);
+				}
+			}
+		}
+
+		if (validated) {
+			sendLine("257 Directory created");
+			Log.putPublic("Created directory : " + absPath);
+		} else {
+			sendLine("550 Cannot create directory here");
+		}
+
+		return nextState;
+	}
+
+	protected int validateStorCommand(int currentState, String fullCommand)
+			throws IOException {
+		int nextState = currentState;
+		boolean validated = false;
+		boolean badOffset = false;
+		String arg = stripArgument(fullCommand);
+		String absPath = getAbsolutePath(arg);
+
+		if (absPath != null && !isPathInRoot(absPath)) {
+			try {
+				FileConnection fc = (FileConnection) Connector.open(absPath);
+				try {
+					if (!fc.exists() && restartOffset > 0) {
+						// There is nothing to resume
+						badOffset = true;
+					} else if (!fc.exists()) {
+						// File doesn't exist, check if we can create it
+						try {
+							fc.create();
+							validated = true;
+						} catch (IOException e) {
+							Log.put(Log.WARN, "Can't create file:" + absPath + " : " + e.getMessage());
+						}
+					} else {
+						// File/Dir exists
+						if (!fc.isDirectory() && fc.canWrite()) {
+							// Ensure that it's a writable file, resumed no
+							// further than its end, as openOutputStream()
+							// would append beyond it.
+							if (restartOffset <= fc.fileSize()) {
+								validated = true;
+							} else {
+								badOffset = true;
+							}
+						}
+					}
+				} finally {
+					fc.close();
+				}
+			} catch (java.lang.IllegalArgumentException e) {
+				if (Log.isEnabled(Log.DEBUG)) {
+					Log.put("Can't open file connection to:" + absPath);
+				}
+			}
+		}
+
+		if (validated) {
+			Log.putPublic("Storing file : " + absPath);
+			idleTimer.cancel();
+			transferPath = absPath;
+			startTransfer(TRANSFER_STOR_OPEN, new ThreadCommand(FtpCommand.STOR, absPath, restartOffset));
+		} else {
+			if (badOffset) {
+				sendLine("554 Invalid restart offset");
+			} else {
+				sendLine("553 Cannot store this file");
+			}
+			fileMetadata.invalidate(absPath);
+			fileContents.invalidate(absPath);
+			listings.invalidate(absPath);
+			closeDataSocket();
+		}
+		restartOffset = 0;
+		nextState = FtpState.IDLE;
+
+		return nextState;
+	}
+	
+	/**
+	 * Validates the FTP REST (restart) command. The offset given is used 
+	 * by the following RETR or STOR command to resume an interrupted
+	 * transfer.
+	 * 
+	 * @param currentState The current state of the state machine.
+	 * @param fullCommand  The line that was read from the socket.
+	 * @return             The next state for the state machine.
+	 */
+	protected int validateRestCommand(int currentState, String fullCommand) {
+		String arg = stripArgument(fullCommand);
+		long offset = -1;
+		try {
+			offset = Long.parseLong(arg);
+		} catch (NumberFormatException e) {
+			if (Log.isEnabled(Log.DEBUG)) {
+				Log.put("Invalid restart offset:" + arg);
+			}
+		}
+
+		if (offset >= 0) {
+			restartOffset = offset;
+			sendLine("350 Restarting at " + offset);
+		} else {
+			restartOffset = 0;
+			sendLine("501 Invalid restart offset");
+		}
+		return currentState;
+	}
+
+	/**
+	 * Validate the type command. This is used to set the type
+	 * of the data being sent over the data connection. Only 
+	 * (I)mage and (A)scii types are supported here.
+	 * 
+	 * @param currentState
+	 * @param fullCommand
+	 * @return
+	 * @throws IOException
+	 */
+	protected int validateTypeCommand(int currentState, String fullCommand)
+			throws IOException {
+		int nextState = currentState;
+		String arg = stripArgument(fullCommand);
+
+		if (arg.equals("I") || 
+			arg.equals("i") ||
+			arg.equals("A") || 
+			arg.equals("a") )
+		{
+			sendLine("200 OK");
+		}
+		else
+		{
+			sendLine("504 This type is not supported");
+		}
+
+		return nextState;
+	}
+
+	/**
+	 * This will return the first argument after the ftp command. For example,
+	 * in the command 'stor file.txt', the string 'file.txt' is returned. If
+	 * there is no first argument then an empty string is returned ("").
+	 * 
+	 * @param input
+	 * @return
+	 */
+	protected String stripArgument(String input) {
+		// Strip leading or trailing whitespace
+		input = input.trim();
+
+		int startIndex = -1;
+		int endIndex = input.length();
+		for (int index = 0; index < input.length(); index++) {
+			if (startIndex == -1) {
+				if (input.charAt(index) == ' ') {
+					startIndex = index;
+					break;
+				}
+			}
+		}
+
+		String retVal = null;
+
+		if (startIndex == -1)
+			retVal = "";
+		else
+			retVal = input.substring(startIndex + 1, endIndex);
+
+		if (Log.isEnabled(Log.DEBUG)) {
+			Log.put("stripArgument returns [" + retVal + "]");
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * This method executes a state machine transition. The current
+	 * state is passed in and the new state is returned.
+	 * 
+	 * @param state       The current state
+	 * @return            The next state
+	 * @throws Exception
+	 */
+	protected int processState(int state) throws Exception {
+		// Read a line of input from the socket, this will dictate
+		// what state we should go to next.
+		String input = getLine();
+		
+		int nextState = FtpState.INVALID;
+
+		if (state != FtpState.IDLE && state != FtpState.PASV_WAIT_FOR_COMMAND
+				&& state != FtpState.RNFR_OK) {
+			closeDataSocket();
+			throw new Exception("No state exists for state : " + state);
+		}
+
+		CommandHandler handler = commands.lookup(CommandRegistry.getVerb(input));
+
+		// Hold back the reply if another command is already waiting, unless
+		// a transfer depends on the client seeing it.
+		deferFlush = pipelining && codec.hasLine()
+				&& (handler == null || !handler.usesDataConnection());
+		if (!deferFlush && codec.hasPendingOutput()) {
+			codec.flush();
+		}
+
+		if (handler != null && handler.isValidIn(state)) {
+			long startTime = System.currentTimeMillis();
+			nextState = handler.invoke(this, state, input);
+			if (transferStep == TRANSFER_NONE) {
+				metrics.recordCommand(metricsStripe, handler.getIndex(), System.currentTimeMillis() - startTime);
+			} else {
+				// A transfer is timed once it is complete
+				transferHandler = handler.getIndex();
+				transferStartTime = startTime;
+				if (poller == null) {
+					// The session has its own thread, wait here for the transfer
+					while (transferStep != TRANSFER_NONE) {
+						continueTransfer();
+					}
+				}
+			}
+		} else if (state == FtpState.PASV_WAIT_FOR_COMMAND) {
+			sendLine("500 Unrecognised command");
+			nextState = state;
+		} else {
+			// Handle unrecognised commands
+			sendLine("502 Command not supported");
+			nextState = state;
+		}
+		if (deferFlush) {
+			// Send the held back replies once the queued commands are used up
+			deferFlush = false;
+			if (!codec.hasLine() || nextState == FtpState.TERMINATE) {
+				codec.flush();
+			}
+		}
+		if (Log.isEnabled(Log.DEBUG)) {
+			Log.put("State transition from " + state + " to " + nextState);
+		}
+		return nextState;
+	}
+
+	/**
+	 * This method executes a shutdown of this thread and
+	 * all its resources.
+	 */
+	public synchronized void shutdown() {
+		Log.put("ConnectionThread::shutdown()");
+		if (idleTimer != null)
+			idleTimer.cancel();
+		shutdownInitiated = true;
+		state = FtpState.TERMINATE;
+		
+		// Wait for DataConnectionThread to close if necessary
+		closeDataSocket();
+		try {
+			// Close comm's streams, and socket
+			if (out != null)
+				out.close();
+			if (in != null)
+				in.close();
+			if (client != null)
+				client.close();
+		} catch (Throwable ioe) {
+			Log.logException(ioe);
+		}
+	}
+
+	/**
+	 * Opens the streams for the client and sends the welcome message.
+	 * 
+	 * @throws IOException
+	 */
+	protected void open() throws IOException {
+		Log.put("ConnectionThread::open()");
+		Log.putPublic("A user has connected");
+		in = client.openInputStream();
+		out = client.openOutputStream();
+		codec = new ControlCodec(in, out, SOCKET_IN_BUFFER_SIZE);
+		metrics.sessionOpened(metricsStripe);
+		
+		// Set the initial state for the state machine
+		state = FtpState.IDLE;
+		
+		// Send the ready command to the client
+		sendLine("220 Welcome to the MIDP Ftp Server");
+	}
+
+	/**
+	 * Releases the session once the state machine has terminated or failed.
+	 */
+	protected void close() {
+		shutdown();
+		if (poller != null) {
+			poller.release(this);
+		}
+		if (codec != null) {
+			metrics.sessionClosed(metricsStripe);
+		}
+		Log.putPublic("A user has disconnected");
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 * This is the main loop of the session. When the session is owned by
+	 * the polled engine only one command or step of a transfer is 
+	 * processed per run.
+	 */
+	public void run() {
+		Log.put("ConnectionThread::run()");
+		try {
+			if (poller != null) {
+				if (in == null) {
+					open();
+				} else if (transferStep != TRANSFER_NONE) {
+					continueTransfer();
+				} else {
+					state = processState(state);
+				}
+				if (state != FtpState.TERMINATE) {
+					// Wait for the next command or reply to arrive
+					poller.register(this);
+					return;
+				}
+			} else {
+				open();
+				
+				// Start processing the state machine
+				while (state != FtpState.TERMINATE) {
+					state = processState(state);
+				}
+			}
+		} catch (java.io.InterruptedIOException iioe) {
+			if (!shutdownInitiated) {
+				Log.logException(iioe);
+			}
+		} catch (Throwable ioe) {
+			Log.logException(ioe);
+		}
+		close();
+		Log.put("ConnectionThread::run() finished.");
+	}
+
+	/**
+	 * This inner class is run by the idle supervisor when the idle
+	 * timer of the ConnectionThread expires. It initiates a shutdown 
+	 * of the session.
+	 */
+	class IdleTimerTask implements Runnable {
+		public synchronized void run() {
+			Log.put("Idle timer expired");
+			shutdown();
+		}
+	}
+}
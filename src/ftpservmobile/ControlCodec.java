@@ -0,0 +1,263 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ftpservmobile;
+
+import java.io.*;
+import java.util.Hashtable;
+
+/**
+ * This class reads commands from and writes replies to the control
+ * socket of a session. Input is read in blocks into a buffer that is
+ * reused for every command, replies are collected in an output buffer
+ * until flushed. The fixed replies are encoded once and shared by
+ * all sessions.
+ */
+public class ControlCodec {
+	private static final int OUT_BUFFER_SIZE = 1024;       // Size of the buffer used for replies
+	private static final byte[] NEWLINE = { 13, 10 };
+
+	// Replies that never change, these are only encoded once
+	private static final String[] FIXED_REPLIES = {
+		"150 OK",
+		"200 OK",
+		"213 OK",
+		"220 Welcome to the MIDP Ftp Server",
+		"226 OK",
+		"226 File received",
+		"230 OK",
+		"125 Ready to receive",
+		"250 Rename action completed",
+		"257 Directory created",
+		"350 Command OK",
+		"421 Cannot open data listen port",
+		"426 Connection closed; transfer aborted",
+		"450 Cannot find file",
+		"500 Unrecognised command",
+		"501 Invalid restart offset",
+		"502 Command not supported",
+		"504 This type is not supported",
+		"550 Cannot create directory here",
+		"550 DIRECTORY NOT FOUND",
+		"550 No such file or directory",
+		"553 Cannot rename to this target filename",
+		"553 Cannot store this file",
+		"553 Incorrect path or no such file",
+		"553 Incorrect path or not such file",
+		"554 Invalid restart offset"
+	};
+	private static Hashtable encodedReplies = new Hashtable();
+
+	static {
+		for (int i = 0; i < FIXED_REPLIES.length; i++) {
+			encodedReplies.put(FIXED_REPLIES[i], (FIXED_REPLIES[i] + "\r\n").getBytes());
+		}
+	}
+
+	private InputStream in = null;
+	private OutputStream out = null;
+	private byte[] inBuffer = null;
+	private int inStart = 0;         // index of the first unread byte in inBuffer
+	private int inEnd = 0;           // index after the last byte read into inBuffer
+	private int scanIndex = 0;       // where to continue looking for the end of the line
+	private int lineEnd = -1;        // index of the CR ending the next line, -1 if not found yet
+	private byte[] outBuffer = new byte[OUT_BUFFER_SIZE];
+	private int outLength = 0;
+
+	/**
+	 * Constructor.
+	 * @param in           The stream used to read from the socket.
+	 * @param out          The stream used to write to the socket.
+	 * @param inBufferSize Max length of a command including its newline.
+	 */
+	public ControlCodec(InputStream in, OutputStream out, int inBufferSize) {
+		this.in = in;
+		this.out = out;
+		inBuffer = new byte[inBufferSize];
+	}
+
+	/**
+	 * Move the unread bytes to the front of the input buffer.
+	 */
+	private void compact() {
+		if (inStart > 0) {
+			System.arraycopy(inBuffer, inStart, inBuffer, 0, inEnd - inStart);
+			inEnd -= inStart;
+			scanIndex -= inStart;
+			if (lineEnd != -1) {
+				lineEnd -= inStart;
+			}
+			inStart = 0;
+		}
+	}
+
+	/**
+	 * Read whatever input is available on the socket without blocking.
+	 * @return False if the socket has been closed.
+	 * @throws IOException
+	 */
+	public boolean readAvailable() throws IOException {
+		int available = in.available();
+		if (available > 0) {
+			compact();
+			int space = inBuffer.length - inEnd;
+			if (space > 0) {
+				int count = in.read(inBuffer, inEnd, (available < space) ? available : space);
+				if (count == -1) {
+					return false;
+				}
+				inEnd += count;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return True if a complete line has been received and not yet read.
+	 */
+	public boolean hasLine() {
+		if (lineEnd != -1) {
+			return true;
+		}
+		if (scanIndex <= inStart) {
+			scanIndex = inStart + 1;
+		}
+		for (; scanIndex < inEnd; scanIndex++) {
+			if (inBuffer[scanIndex] == 10 && inBuffer[scanIndex - 1] == 13) {
+				lineEnd = scanIndex - 1;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return True if the input buffer has filled up without a complete line.
+	 */
+	public boolean isFull() {
+		return inEnd - inStart == inBuffer.length && !hasLine();
+	}
+
+	/**
+	 * Read one line, blocking until it has been received. The newline
+	 * character sequence is removed.
+	 * @return The line read.
+	 * @throws Exception Thrown if the socket closed prematurely or the line is too long.
+	 */
+	public String readLine() throws Exception {
+		while (!hasLine()) {
+			if (isFull()) {
+				throw new Exception("Input buffer filled after " + inBuffer.length + " bytes.");
+			}
+			compact();
+			int count = in.read(inBuffer, inEnd, inBuffer.length - inEnd);
+			if (count == -1) {
+				throw new Exception("Socket closed unexpectedly.");
+			}
+			inEnd += count;
+		}
+
+		String line = new String(inBuffer, inStart, lineEnd - inStart);
+		inStart = lineEnd + 2;
+		lineEnd = -1;
+		if (inStart == inEnd) {
+			inStart = 0;
+			inEnd = 0;
+		}
+		scanIndex = inStart;
+		return line;
+	}
+
+	/**
+	 * Add the given bytes to the output buffer, it is flushed to the
+	 * socket if it fills up.
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	public void write(byte[] data, int offset, int length) throws IOException {
+		if (outLength + length > outBuffer.length) {
+			flush();
+			if (length > outBuffer.length) {
+				out.write(data, offset, length);
+				return;
+			}
+		}
+		System.arraycopy(data, offset, outBuffer, outLength, length);
+		outLength += length;
+	}
+
+	/**
+	 * Add one line to the output buffer, the newline is appended
+	 * automatically.
+	 * @param line
+	 * @throws IOException
+	 */
+	public void writeLine(String line) throws IOException {
+		byte[] encoded = (byte[]) encodedReplies.get(line);
+		if (encoded != null) {
+			write(encoded, 0, encoded.length);
+			return;
+		}
+
+		int length = line.length();
+		for (int i = 0; i < length; i++) {
+			if (line.charAt(i) > 127) {
+				// Not plain ASCII, let the platform encode it
+				encoded = line.getBytes();
+				write(encoded, 0, encoded.length);
+				write(NEWLINE, 0, NEWLINE.length);
+				return;
+			}
+		}
+		if (outLength + length + 2 > outBuffer.length) {
+			flush();
+		}
+		if (length + 2 > outBuffer.length) {
+			encoded = line.getBytes();
+			write(encoded, 0, encoded.length);
+		} else {
+			for (int i = 0; i < length; i++) {
+				outBuffer[outLength++] = (byte) line.charAt(i);
+			}
+		}
+		write(NEWLINE, 0, NEWLINE.length);
+	}
+
+	/**
+	 * @return True if there are replies in the output buffer that haven't
+	 *         been written to the socket.
+	 */
+	public boolean hasPendingOutput() {
+		return outLength > 0;
+	}
+
+	/**
+	 * Write the output buffer to the socket.
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		if (outLength > 0) {
+			out.write(outBuffer, 0, outLength);
+			outLength = 0;
+		}
+		out.flush();
+	}
+}
@@ -0,0 +1,229 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ftpservmobile;
+
+import java.util.Vector;
+
+/**
+ * This class implements the polled control channel engine. Instead of
+ * tying up a thread per client while it waits for the next command, all
+ * idle sessions are watched by this one thread. When a session has a
+ * complete command waiting it is handed to the SessionPool, which runs a
+ * single step of its state machine and then gives the session back.
+ *
+ * The connection API has no readiness notification, so sessions are
+ * polled for available input every few milliseconds. Nor does it report
+ * end of stream without a blocking read, a client that disconnects while
+ * idle is noticed when the connection's available() reports the pending
+ * end of stream, otherwise when the idle timer expires.
+ *
+ * A session that has started a transfer waits here too, for the reply of
+ * its DataConnectionThread, so a slow transfer doesn't hold a worker of
+ * the SessionPool. Clients connecting while the max number of sessions
+ * is connected wait in a backlog, without their welcome message, until
+ * a session ends.
+ */
+public class ControlPoller extends Thread {
+	private Vector waiting = new Vector();     // sessions waiting for their next command
+	private Vector backlog = new Vector();     // sessions waiting for another session to end
+	private SessionPool sessionPool = null;    // runs the sessions once a command is ready
+	private int maxSessions;                   // max number of sessions this engine will accept
+	private int backlogLimit;                  // max number of sessions waiting in the backlog
+	private int sessionCount = 0;              // number of sessions currently owned by this engine
+	private int pollInterval;                  // time in ms to wait between polls when all sessions are idle
+	private boolean shutdownInitiated = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param sessionPool  The pool that runs ready sessions.
+	 * @param maxSessions  Max number of sessions that may be connected at once.
+	 * @param backlogLimit Max number of sessions waiting for a session to end.
+	 * @param pollInterval Time in ms to wait between polls when nothing is ready.
+	 */
+	public ControlPoller(SessionPool sessionPool, int maxSessions, int backlogLimit, int pollInterval) {
+		super();
+		this.sessionPool = sessionPool;
+		this.maxSessions = maxSessions;
+		this.backlogLimit = backlogLimit;
+		this.pollInterval = pollInterval;
+	}
+
+	/**
+	 * Take ownership of a newly connected session. If the max number of
+	 * sessions is connected it waits in the backlog.
+	 *
+	 * @param session The new session.
+	 * @return        False if the backlog is full as well.
+	 */
+	public synchronized boolean accept(ConnectionThread session) {
+		if (shutdownInitiated) {
+			return false;
+		}
+		if (sessionCount >= maxSessions) {
+			if (backlog.size() >= backlogLimit) {
+				return false;
+			}
+			backlog.addElement(session);
+			return true;
+		}
+		admit(session);
+		return true;
+	}
+
+	private void admit(ConnectionThread session) {
+		sessionCount++;
+		session.setPoller(this);
+		waiting.addElement(session);
+		notify();
+	}
+
+	/**
+	 * Give a session back to the poller after it has processed a command.
+	 *
+	 * @param session The session to watch for further commands.
+	 */
+	public void register(ConnectionThread session) {
+		synchronized (this) {
+			if (!shutdownInitiated) {
+				waiting.addElement(session);
+				notify();
+				return;
+			}
+		}
+		// We are shutting down, the session won't be run again
+		session.close();
+	}
+
+	/**
+	 * Called when a session has terminated.
+	 *
+	 * @param session The terminated session.
+	 */
+	public synchronized void release(ConnectionThread session) {
+		sessionCount--;
+		if (!shutdownInitiated && !backlog.isEmpty()) {
+			ConnectionThread next = (ConnectionThread) backlog.elementAt(0);
+			backlog.removeElementAt(0);
+			admit(next);
+		}
+	}
+
+	/**
+	 * Poll the sessions now instead of at the end of the poll interval.
+	 * Called when a DataConnectionThread replies to a waiting session.
+	 */
+	public synchronized void wake() {
+		notify();
+	}
+
+	/**
+	 * @return Number of sessions currently connected through this engine,
+	 *         not counting the backlog.
+	 */
+	public synchronized int getSessionCount() {
+		return sessionCount;
+	}
+
+	/**
+	 * Shuts down the poller and every session that is waiting for input,
+	 * for a transfer or in the backlog. Sessions currently being run by
+	 * the SessionPool are shut down by the pool itself.
+	 */
+	public void shutdown() {
+		Log.put("ControlPoller::shutdown()");
+		ConnectionThread[] idle;
+		ConnectionThread[] queued;
+		synchronized (this) {
+			shutdownInitiated = true;
+			idle = new ConnectionThread[waiting.size()];
+			waiting.copyInto(idle);
+			waiting.removeAllElements();
+			queued = new ConnectionThread[backlog.size()];
+			backlog.copyInto(queued);
+			backlog.removeAllElements();
+			notify();
+		}
+		for (int i = 0; i < idle.length; i++) {
+			idle[i].close();
+		}
+		// Sessions in the backlog were never opened or counted
+		for (int i = 0; i < queued.length; i++) {
+			queued[i].close();
+		}
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Log.logException(e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 * Main loop, poll the waiting sessions and dispatch those that are ready.
+	 */
+	public void run() {
+		Log.put("ControlPoller::run()");
+		Vector failed = new Vector();
+		while (true) {
+			boolean dispatched = false;
+			synchronized (this) {
+				if (shutdownInitiated) {
+					break;
+				}
+				for (int i = waiting.size() - 1; i >= 0; i--) {
+					ConnectionThread session = (ConnectionThread) waiting.elementAt(i);
+					boolean ready;
+					try {
+						ready = session.isReady();
+					} catch (RuntimeException e) {
+						// Don't let one broken session stop the polling of the others
+						Log.logException(e);
+						waiting.removeElementAt(i);
+						failed.addElement(session);
+						continue;
+					}
+
+					// A session stays here if the pool's backlog is full, it
+					// will be offered again on the next poll.
+					if (ready && sessionPool.submit(session)) {
+						waiting.removeElementAt(i);
+						dispatched = true;
+					}
+				}
+				if (!dispatched && failed.isEmpty()) {
+					try {
+						wait(pollInterval);
+					} catch (InterruptedException e) {
+						Log.logException(e);
+					}
+				}
+			}
+
+			// Closing a session waits for its data connection, do it
+			// without holding the lock.
+			for (int i = 0; i < failed.size(); i++) {
+				((ConnectionThread) failed.elementAt(i)).close();
+			}
+			failed.removeAllElements();
+		}
+		Log.put("ControlPoller::run() finished.");
+	}
+}
@@ -0,0 +1,159 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ftpservmobile;
+
+import java.util.Vector;
+
+/**
+ * This class keeps a pool of DataConnectionThreads shared by all
+ * sessions. Instead of starting a new thread for every PASV a session
+ * takes an idle worker, gives it the job of serving one data connection
+ * and hands it back once the worker has signalled that the job is done.
+ * Workers are started as they are first needed, up to a fixed maximum.
+ */
+public class DataConnectionPool {
+	private static final long JOIN_TIMEOUT = 5000;   // ms to wait for each worker to finish on shutdown
+
+	private Vector idle = new Vector();          // workers waiting for a job
+	private Vector workers = new Vector();       // every worker started so far
+	private int maxWorkers;                      // max number of workers to start
+	private MetadataCache fileMetadata = null;   // handed to every worker
+	private FileCache fileCache = null;          // handed to every worker
+	private ListingCache listingCache = null;    // handed to every worker
+	private BufferPool bufferPool = null;        // where the workers lease their transfer buffers
+	private Metrics metrics = null;              // where the workers record their transfers
+	private int bufferCount;                     // number of transfer buffers of each worker
+	private int minChunkSize;                    // bounds of the chunk size used by transfers
+	private int maxChunkSize;                    // also the size of each transfer buffer
+	private boolean shutdownInitiated = false;
+
+	/**
+	 * Constructor.
+	 * @param maxWorkers   Max number of data connections served at once.
+	 * @param fileMetadata Cache used by the workers to look up the details of files.
+	 * @param fileCache    Cache of the contents of small files sent by the workers.
+	 * @param listingCache Cache of the directory listings sent by the workers.
+	 * @param bufferPool   Pool the workers lease their listing and transfer buffers from.
+	 * @param metrics      Server statistics the workers record their transfers in.
+	 * @param bufferCount  Number of buffers each worker uses for file transfers.
+	 * @param minChunkSize Smallest chunk size in bytes transfers may use.
+	 * @param maxChunkSize Largest chunk size in bytes transfers may use, the size of each buffer.
+	 */
+	public DataConnectionPool(int maxWorkers, MetadataCache fileMetadata, FileCache fileCache,
+			ListingCache listingCache, BufferPool bufferPool, Metrics metrics, int bufferCount,
+			int minChunkSize, int maxChunkSize) {
+		this.maxWorkers = maxWorkers;
+		this.fileMetadata = fileMetadata;
+		this.fileCache = fileCache;
+		this.listingCache = listingCache;
+		this.bufferPool = bufferPool;
+		this.metrics = metrics;
+		this.bufferCount = bufferCount;
+		this.minChunkSize = minChunkSize;
+		this.maxChunkSize = maxChunkSize;
+	}
+
+	/**
+	 * Take a worker and start it serving a data connection. If every
+	 * worker is busy then wait until one is released.
+	 * @param passivePort   The allocated port that the client will connect to.
+	 * @param clientAddress Address of the client, null to accept any address.
+	 * @return              The worker, or null if the pool has been shut down.
+	 */
+	public synchronized DataConnectionThread acquire(PassivePortAllocator.PassivePort passivePort,
+			String clientAddress) {
+		while (!shutdownInitiated && idle.isEmpty() && workers.size() >= maxWorkers) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Log.logException(e);
+			}
+		}
+		if (shutdownInitiated) {
+			return null;
+		}
+
+		DataConnectionThread worker;
+		if (idle.isEmpty()) {
+			worker = new DataConnectionThread(fileMetadata, fileCache, listingCache, bufferPool, metrics,
+					bufferCount, minChunkSize, maxChunkSize);
+			workers.addElement(worker);
+			worker.start();
+			if (Log.isEnabled(Log.DEBUG)) {
+				Log.put("Started data connection worker " + workers.size() + " of " + maxWorkers);
+			}
+		} else {
+			worker = (DataConnectionThread) idle.lastElement();
+			idle.removeElementAt(idle.size() - 1);
+		}
+		worker.assign(passivePort, clientAddress);
+		return worker;
+	}
+
+	/**
+	 * Give a worker back to the pool. The caller must have waited for
+	 * the worker to finish its job first.
+	 * @param worker
+	 */
+	public synchronized void release(DataConnectionThread worker) {
+		if (idle.contains(worker)) {
+			// Released twice, it must not be handed out twice
+			Log.put(Log.WARN, "Data connection worker released twice.");
+			return;
+		}
+		if (shutdownInitiated) {
+			worker.terminate();
+			return;
+		}
+		idle.addElement(worker);
+		notify();
+	}
+
+	/**
+	 * @return Number of workers currently serving a data connection.
+	 */
+	public synchronized int getBusyCount() {
+		return workers.size() - idle.size();
+	}
+
+	/**
+	 * Stops every worker. The sessions should have been shut down first,
+	 * a worker that is still busy stops once its job is done.
+	 */
+	public void shutdown() {
+		Log.put("DataConnectionPool::shutdown()");
+		DataConnectionThread[] all;
+		synchronized (this) {
+			shutdownInitiated = true;
+			all = new DataConnectionThread[workers.size()];
+			workers.copyInto(all);
+			for (int i = 0; i < idle.size(); i++) {
+				((DataConnectionThread) idle.elementAt(i)).terminate();
+			}
+			idle.removeAllElements();
+			notifyAll();
+		}
+		for (int i = 0; i < all.length; i++) {
+			if (!all[i].awaitFinish(JOIN_TIMEOUT)) {
+				Log.put(Log.WARN, "Data connection worker did not stop in time.");
+			}
+		}
+	}
+}
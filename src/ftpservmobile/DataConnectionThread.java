@@ -1,408 +1,967 @@
-//
-//    Copyright 2010 Paul White
-//
-//    This file is part of FtpServerMobile.
-//
-//    FtpServerMobile is free software: you can redistribute it and/or modify
-//    it under the terms of the GNU General Public License as published by
-//    the Free Software Foundation, either version 3 of the License, or
-//    (at your option) any later version.
-
-//    FtpServerMobile is distributed in the hope that it will be useful,
-//    but WITHOUT ANY WARRANTY; without even the implied warranty of
-//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
-//    GNU General Public License for more details.
-//
-//    You should have received a copy of the GNU General Public License
-//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
-//
-
-package ftpservmobile;
-
-import java.io.*;
-import java.util.Date;
-
-import javax.microedition.io.Connector;
-import javax.microedition.io.StreamConnection;
-import javax.microedition.io.StreamConnectionNotifier;
-import javax.microedition.io.file.FileConnection;
-
-/**
- * This class implements a thread which is used to
- * communicate over the ftp data socket. Files are
- * sent and received over this socket.
- */
-public class DataConnectionThread extends Thread {
-	private StreamConnection connection = null;   // this is the connection that we open on the socket
-	public ThreadCommunicator commandIn = null;   // used for IPC: this thread reads from this ThreadCommunicator
-	public ThreadCommunicator commandOut = null;  // used for IPC: this thread writes to this ThreadCommunicator 
-	private int port;                             // the socket port number that this thread will listen on, the actual
-												  // socket number maybe above this value.
-	private PrintStream socketOPrintStream = null;
-	private InputStream socketIStream = null;	
-	private OutputStream socketOStream = null;
-	
-	private void log(String str) {
-		Log.put(str);
-	}
-	
-	/**
-	 * Constructor.
-	 * @param port First port which we will attempt to start listening on
-	 */
-	public DataConnectionThread(int port) {
-		super();
-		this.port = port;
-		commandIn = new ThreadCommunicator();
-		commandOut = new ThreadCommunicator();
-	}
-	
-	
-	/**
-	 * This will return a string representing the file info for a given file.
-	 * This contains information such as file size, filename etc. 
-	 * @param path Fully qualified path to a file eg. file:///root1/file1.txt
-	 * @return Formatted string representing the file info.
-	 * @throws IOException
-	 */
-	public String getFileInfo(String path) throws IOException
-	{
-	    FileConnection fc = (FileConnection) Connector.open(path);
-
-	    // Ensure the file exists
-	    if (!fc.exists()) {
-	        fc.close();
-	        return null;
-	    }
-	   
-	    String permissions = "";
-	    long fileSize;
-	    if (fc.isDirectory()) 
-	    {
-	    	permissions += "d";
-	    	fileSize = 0;
-	    }
-	    else 
-	    {
-	    	permissions += "-";
-	    	fileSize = fc.fileSize();
-	    }
-	   
-	    if (fc.canRead()) permissions += "r";
-	    else permissions += "-";
-
-	    if (fc.canWrite()) permissions += "w";
-	    else permissions += "-";   
-	   
-	    permissions += "------- ";
-	  
-	    fc.close();
-	    return formatListDetails(permissions, Long.toString(fileSize), Util.stripTrailingSlashs(fc.getName()));
-	}	
-	
-	/**
-	 * This formats a string for the file info from the arguments passed in.
-	 * @param permissions Permissions associated with the file.
-	 * @param size        File size
-	 * @param name        File name
-	 * @return
-	 */
-	protected String formatListDetails(String permissions,
-			String size,
-			String name)
-	{
-		return permissions + "    2 0          5                 " + size + " Apr 14  2001 " + name;
-	}
-	
-	
-	/**
-	 * Handle the List ftp command. This will send info on the files in 
-	 * the specified directory over the data socket.
-	 * @param path    Fully qualified directory path.
-	 * @return        Currently not used.
-	 * @throws IOException
-	 */
-	public boolean processListCommand(String path) throws IOException
-	{
-		Log.put("Enter processListCommand");
-		if (path.equals("file:///"))
-		{
-			// There is special handling for the path representing the
-			// root of the file system. We should list all the file system roots.
-			Log.put("Process list command for filesystem root");
-			java.util.Enumeration enum = javax.microedition.io.file.FileSystemRegistry.listRoots();
-			for (; enum.hasMoreElements();) {
-				String thisChild = (String) enum.nextElement();
-				thisChild = thisChild.substring(0,
-						(thisChild.charAt(thisChild.length()-1)=='/')? (thisChild.length()-1) : (thisChild.length())
-								);
-				String details = formatListDetails("drw-------", "0", thisChild);
-				
-				Log.put(details);
-				socketOPrintStream.print(details + "\r\n");
-				socketOPrintStream.flush();
-			}			
-		}
-		else {
-			// Produce a directory listing for the specified path.
-			Log.put("Process list command for absolute path");
-			path += "/";
-		    FileConnection fc = (FileConnection) Connector.open(path);
-
-		    if (!fc.exists()) {
-		        fc.close();
-		        return false;
-		    }
-		   
-		    for (java.util.Enumeration contents = fc.list() ; contents.hasMoreElements() ;) {
-		        String thisItem = path + contents.nextElement(); //"file://" + fc.getPath() + contents.nextElement();
-		        String details = getFileInfo(thisItem);
-		        Log.put(details);
-		        // Send directory listing over the socket
-		        socketOPrintStream.print(details + "\r\n");
-		        socketOPrintStream.flush();
-		    }
-
-		    fc.close();		      
-		}
-		commandOut.putCommand(new ThreadCommand(FtpCommand.REPLY, "150 OK"));
-		return true;
-	}	
-
-	
-	/**
-	 * Handle the retrieve ftp command for the specified path. This
-	 * will send the file over the data socket.
-	 * @param path  Fully qualified path to the file to be retrieved.
-	 * @return      Currently not used.
-	 * @throws IOException
-	 */
-	public boolean processRetrCommand(String path) throws IOException
-	{
-		Log.put("Enter processRetrCommand");
-
-		// Check that the file exists
-		FileConnection fc = (FileConnection) Connector.open(path);
-		if (!fc.exists() || fc.isDirectory()) {
-			fc.close();
-			return false;
-		}
-		
-		// Tell the client that we are about to start sending data
-		commandOut.putCommand(new ThreadCommand(FtpCommand.REPLY, "150 OK"));
-		
-		// Wait until until that last command is sent to the client, then continue
-		if (commandIn.getCommand().getCommand() == FtpCommand.CONTINUE) {
-			InputStream inputFileStream = fc.openInputStream();		
-			int bytesInBuffer;
-			int bytesRead = 0;
-			long fileSize = fc.fileSize();
-			
-			Log.put("Starting transfer of file, size = " + fileSize);
-			
-			// I had the buffer size at 1024, but it wouldn't work 
-			// for loopback connections for some reason. I got error 10053.
-			// A value of 64 seems to work for all connections.
-			final int transferBufferSize = 2048;
-			
-			Date date = new java.util.Date();
-			long startTime = date.getTime();
-			
-			int percentLastPrinted = 0;
-			byte[] transferBuffer = new byte[transferBufferSize];
-			while ((bytesInBuffer = inputFileStream.read(transferBuffer)) != -1)
-			{
-				bytesRead += bytesInBuffer;
-				int percent = (int) (((double)bytesRead / (double)fileSize) * 100.0);
-				if (percent % 10 == 0 && percentLastPrinted != percent)
-				{
-					percentLastPrinted = percent;
-					Log.put(percent + "% complete (" + bytesRead + " bytes)");
-				}
-				
-				socketOStream.write(transferBuffer, 0, bytesInBuffer);	
-				socketOStream.flush();
-			}	
-			// Print some useful info to log so we can monitor transfer speeds
-			date = new java.util.Date();
-			long endTime = date.getTime();
-			double durationSec = (endTime - startTime) / 1000.0;
-			Log.put("Sent file: ["+path+"] Time taken: "+ durationSec + 
-					" seconds, average speed: " + (((double)fileSize) / (durationSec * 1024.0) ) + " KB/sec");	
-			commandOut.putCommand(new ThreadCommand(FtpCommand.REPLY, "226 OK"));
-		}
-		fc.close();	      
-
-		return true;
-	}		
-
-	
-	/**
-	 * Process the ftp store command for the specified path.
-	 * @param path Fully qualified path to the file to be stored on the server.
-	 * @return     Currently not used.
-	 * @throws IOException
-	 */
-	public boolean processStorCommand(String path) throws IOException
-	{
-		Log.put("Enter processStorCommand");
-
-		// Check that the file exists
-		FileConnection fc = (FileConnection) Connector.open(path);
-		
-		// Create the file if it doesn't exists, if it
-		// does exist then clear it.
-		if (fc.exists() && !fc.isDirectory()) {
-			fc.truncate(0);
-		} else {
-			fc.create();
-		}
-		
-		// Ensure the file now exists
-		if (!fc.exists() || fc.isDirectory()) {
-			fc.close();
-			return false;
-		}
-				
-		OutputStream outputFileStream = fc.openOutputStream();
-		
-		// Tell the client that we are ready to receive data from socket
-		commandOut.putCommand(new ThreadCommand(FtpCommand.REPLY, "125 Ready to receive"));
-		
-		int bytesReceived = 0;
-		Log.put("About to receive file: " + path);
-		
-		int transferBufferSize = 2048;
-		byte [] transferBuffer = new byte[transferBufferSize];
-		int bytesInBuffer;
-		
-		Date date = new java.util.Date();
-		long startTime = date.getTime();
-		while ((bytesInBuffer = socketIStream.read(transferBuffer)) != -1) {
-			bytesReceived += bytesInBuffer;
-			if (bytesReceived % (1024*1024) == 0) {
-				Log.put("Received " + bytesReceived + " bytes.");
-			}
-			outputFileStream.write(transferBuffer, 0, bytesInBuffer);
-		}
-		outputFileStream.flush();
-		outputFileStream.close();
-		fc.close();
-		
-		// Print some useful info to log
-		date = new java.util.Date();
-		long endTime = date.getTime();
-		double durationSec = (endTime - startTime) / 1000.0;
-		Log.put("File transfer complete ["+path+"] Time taken: "+ durationSec + 
-				" seconds, average speed: " + (((double)bytesReceived) / (durationSec * 1024.0) ) + " KB/sec");
-		
-		commandOut.putCommand(new ThreadCommand(FtpCommand.REPLY, "226 File received"));
-		
-		return true;
-	}		
-	
-	/**
-	 * This method is used to cleanly shutdown this thread and
-	 * exit it gracefully.
-	 * @param connection The connection being shutdown.
-	 */
-	private void shutdown(StreamConnection connection) {		
-		try {
-			// Close all related streams...
-			
-			if (socketOPrintStream != null) socketOPrintStream.close();
-			if (socketOStream != null) socketOStream.close();
-			
-			if (socketIStream != null) socketIStream.close();
-			
-			if (connection != null) connection.close();
-			log("Data connection closed.");
-		}
-		catch (Throwable ioe) {
-			Log.logException(ioe);
-		}		
-	}
-	
-	/* (non-Javadoc)
-	 * @see java.lang.Thread#run()
-	 */
-	public void run() 
-	{
-		log("DataConnectionThread::run()");
-		try 
-		{
-			// Create the server listening socket 
-			StreamConnectionNotifier scn = null;
-			int openAttempts = 10;
-			while (openAttempts-- > 0)
-			{
-				try {
-					String portStr = "socket://:"+String.valueOf(port);
-					log("Opening socket: "+portStr);
-					scn = (StreamConnectionNotifier)Connector.open(portStr);
-					commandOut.putCommand(new ThreadCommand(FtpCommand.RESULT, String.valueOf(port) ));					
-					break;
-				}
-				catch (java.io.IOException ioe) {
-					Log.put("IOException when opening socket. Try a different port.");					
-				}
-				port++;
-			}
-			
-			if (openAttempts < 0) {
-				// We failed to find a free port
-				commandOut.putCommand(new ThreadCommand(FtpCommand.RESULT, "-1" ));				
-				throw new Exception("Unable to open listen data port.");
-			}
-			
-			log("Data connection is listening.");
-
-			
-			connection = (StreamConnection) scn.acceptAndOpen();
-			log("Connection accepted on data socket.");
-			// Close the notifier, this means that any further connections 
-			// to this port won't be notified to this app. Streams already
-			// derived from the connection remain open.
-			scn.close();
-			
-			// Open input and output streams for the socket...
-			socketIStream = connection.openInputStream();
-			socketOStream = connection.openOutputStream();
-			socketOPrintStream = new PrintStream(socketOStream);					
-			
-			boolean killThread = false;
-			while (!killThread) {
-				// Wait for orders...
-				ThreadCommand thisCommand = commandIn.getCommand();
-				switch (thisCommand.getCommand()) {
-				case FtpCommand.LIST:
-					log("LIST command received.");
-					processListCommand(thisCommand.getArg());					
-					break;
-				case FtpCommand.CLOSE:
-					log("CLOSE command received.");	
-					killThread = true;
-					break;
-				case FtpCommand.RETR:
-					log("RETR command received.");
-					processRetrCommand(thisCommand.getArg());					
-					break;	
-				case FtpCommand.STOR:
-					log("STOR command received.");
-					processStorCommand(thisCommand.getArg());					
-					break;
-				default:
-						log("Unknown command received.");
-						break;
-				}		
-			}
-		}
-		catch (Throwable ioe) {
-			Log.logException(ioe);
-		}
-		finally {
-			shutdown(connection);
-		}
-		log("Data connection thread finished.");
-	}
-}
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ftpservmobile;
+
+import java.io.*;
+import java.util.Date;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.SocketConnection;
+import javax.microedition.io.StreamConnection;
+import javax.microedition.io.StreamConnectionNotifier;
+import javax.microedition.io.file.FileConnection;
+
+/**
+ * This class implements a thread which is used to
+ * communicate over the ftp data socket. Files are
+ * sent and received over this socket. The thread
+ * belongs to a DataConnectionPool and serves one
+ * data connection after another.
+ */
+public class DataConnectionThread extends Thread {
+	public static final int LIST_BUFFER_SIZE = 4096;     // lines of a listing are sent in blocks of this size
+
+	private StreamConnection connection = null;   // this is the connection that we open on the socket
+	private PassivePortAllocator.PassivePort passivePort = null;  // the port listened on, released once the client connects
+	private String clientAddress = null;          // address of the client, connections from elsewhere are refused
+	private boolean acceptAborted = false;        // set if we stopped waiting for the client to connect
+	private MetadataCache fileMetadata = null;    // details of recently used paths, shared by all sessions
+	private FileCache fileCache = null;           // contents of small files sent recently, shared by all sessions
+	private ListingCache listingCache = null;     // listings of recently listed directories, shared by all sessions
+	private BufferPool bufferPool = null;         // where the buffers for listings and transfers come from
+	private Metrics metrics = null;               // server statistics, each transfer is recorded
+	private int metricsStripe;                    // the stripe of the statistics this thread records into
+	private boolean jobAssigned = false;          // set when a new data connection is to be served
+	private boolean jobDone = true;               // cleared while a data connection is being served
+	private boolean terminated = false;           // set when the pool no longer needs this thread
+	private boolean finished = false;             // set when run() has returned
+	private TransferPipeline pipeline = null;     // copies file data, kept for every transfer of this thread
+	private byte[][] listBuffers = null;          // leased while a listing is sent
+	private byte[] listBuffer = null;             // lines of the listing not yet sent
+	private int listLength = 0;
+	private ByteArrayOutputStream renderedListing = null;  // copy of the listing for the cache, null if not cached
+	public ThreadCommunicator commandIn = null;   // used for IPC: this thread reads from this ThreadCommunicator
+	public ThreadCommunicator commandOut = null;  // used for IPC: this thread writes to this ThreadCommunicator 
+	private InputStream socketIStream = null;	
+	private OutputStream socketOStream = null;
+	
+	private void log(String str) {
+		Log.put(str);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param fileMetadata  Cache used to look up the details of files
+	 * @param fileCache     Cache of the contents of small files
+	 * @param listingCache  Cache of the listings of directories
+	 * @param bufferPool    Pool the transfer buffers are leased from
+	 * @param metrics       Server statistics the transfers are recorded in
+	 * @param bufferCount   Number of buffers used by file transfers
+	 * @param minChunkSize  Smallest chunk size file transfers may use
+	 * @param maxChunkSize  Largest chunk size file transfers may use
+	 */
+	public DataConnectionThread(MetadataCache fileMetadata, FileCache fileCache, ListingCache listingCache,
+			BufferPool bufferPool, Metrics metrics, int bufferCount, int minChunkSize, int maxChunkSize) {
+		super();
+		this.fileMetadata = fileMetadata;
+		this.fileCache = fileCache;
+		this.listingCache = listingCache;
+		this.bufferPool = bufferPool;
+		this.metrics = metrics;
+		metricsStripe = metrics.stripeFor(this);
+		pipeline = new TransferPipeline(bufferPool, bufferCount, minChunkSize, maxChunkSize);
+		commandIn = new ThreadCommunicator();
+		commandOut = new ThreadCommunicator();
+	}
+
+	/**
+	 * Give this thread the job of serving the next data connection.
+	 * Only called by the pool while the thread is idle.
+	 * @param passivePort   The allocated port that the client will connect to
+	 * @param clientAddress Address of the client, null to accept any address
+	 */
+	synchronized void assign(PassivePortAllocator.PassivePort passivePort, String clientAddress) {
+		this.passivePort = passivePort;
+		this.clientAddress = clientAddress;
+		connection = null;
+		acceptAborted = false;
+		commandIn.reset();
+		commandOut.reset();
+		jobDone = false;
+		jobAssigned = true;
+		notifyAll();
+	}
+
+	/**
+	 * Tell the thread to finish once it is idle. Only called by the pool.
+	 */
+	synchronized void terminate() {
+		terminated = true;
+		notifyAll();
+	}
+
+	/**
+	 * Wait until a job is assigned.
+	 * @return False if the thread should finish instead.
+	 */
+	private synchronized boolean awaitJob() {
+		while (!jobAssigned && !terminated) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Log.logException(e);
+			}
+		}
+		if (!jobAssigned) {
+			return false;
+		}
+		jobAssigned = false;
+		return true;
+	}
+
+	/**
+	 * Wait until the current data connection has been closed.
+	 */
+	public synchronized void awaitCompletion() {
+		while (!jobDone) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Log.logException(e);
+			}
+		}
+	}
+
+	private synchronized void completeJob() {
+		jobDone = true;
+		notifyAll();
+	}
+
+	/**
+	 * Wait for the thread to finish, but no longer than the given time.
+	 * CLDC has no timed join().
+	 * @param timeout Max time to wait in ms.
+	 * @return        True if the thread has finished.
+	 */
+	synchronized boolean awaitFinish(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		long remaining = timeout;
+		while (!finished && remaining > 0) {
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Log.logException(e);
+			}
+			remaining = deadline - System.currentTimeMillis();
+		}
+		return finished;
+	}
+	
+	
+	/**
+	 * This will return a string representing the file info for a given file.
+	 * This contains information such as file size, filename etc. 
+	 * @param path Fully qualified path to a file eg. file:///root1/file1.txt
+	 * @return Formatted string representing the file info.
+	 * @throws IOException
+	 */
+	public String getFileInfo(String path) throws IOException
+	{
+	    FileMetadata metadata = fileMetadata.lookup(path);
+
+	    // Ensure the file exists
+	    if (!metadata.exists) {
+	        return null;
+	    }
+	   
+	    String name = Util.stripTrailingSlashs(path);
+	    return formatFileInfo(metadata, name.substring(name.lastIndexOf('/') + 1));
+	}
+
+	/**
+	 * This will return a string representing the file info for the given
+	 * details of a file.
+	 * @param metadata The details of the file.
+	 * @param name     File name
+	 * @return Formatted string representing the file info.
+	 */
+	protected String formatFileInfo(FileMetadata metadata, String name)
+	{
+	    String permissions = "";
+	    long fileSize;
+	    if (metadata.isDirectory) 
+	    {
+	    	permissions += "d";
+	    	fileSize = 0;
+	    }
+	    else 
+	    {
+	    	permissions += "-";
+	    	fileSize = metadata.size;
+	    }
+	   
+	    if (metadata.canRead) permissions += "r";
+	    else permissions += "-";
+
+	    if (metadata.canWrite) permissions += "w";
+	    else permissions += "-";   
+	   
+	    permissions += "------- ";
+	  
+	    return formatListDetails(permissions, Long.toString(fileSize), name);
+	}	
+	
+	/**
+	 * This formats a string for the file info from the arguments passed in.
+	 * @param permissions Permissions associated with the file.
+	 * @param size        File size
+	 * @param name        File name
+	 * @return
+	 */
+	protected String formatListDetails(String permissions,
+			String size,
+			String name)
+	{
+		return permissions + "    2 0          5                 " + size + " Apr 14  2001 " + name;
+	}
+	
+	
+	/**
+	 * Handle the List ftp command. This will send info on the files in 
+	 * the specified directory over the data socket. The lines are collected
+	 * in a buffer and sent a buffer at a time, the listing of a directory
+	 * is kept in the listing cache for the next time.
+	 * @param path    Fully qualified directory path.
+	 * @return        False if the path was not found, nothing was sent.
+	 * @throws IOException
+	 */
+	public boolean processListCommand(String path) throws IOException
+	{
+		Log.put("Enter processListCommand");
+		if (path.equals("file:///"))
+		{
+			// There is special handling for the path representing the
+			// root of the file system. We should list all the file system roots.
+			Log.put("Process list command for filesystem root");
+			startListing(false);
+			try {
+				java.util.Enumeration roots = javax.microedition.io.file.FileSystemRegistry.listRoots();
+				for (; roots.hasMoreElements();) {
+					String thisChild = (String) roots.nextElement();
+					thisChild = thisChild.substring(0,
+							(thisChild.charAt(thisChild.length()-1)=='/')? (thisChild.length()-1) : (thisChild.length())
+									);
+					putListLine(formatListDetails("drw-------", "0", thisChild));
+				}
+				finishListing();
+			} finally {
+				endListing();
+			}
+		}
+		else {
+			path += "/";
+			byte[] cached = listingCache.get(path);
+			if (cached != null) {
+				if (Log.isEnabled(Log.DEBUG)) {
+					Log.put("Sending cached listing of " + path);
+				}
+				socketOStream.write(cached, 0, cached.length);
+				socketOStream.flush();
+			} else {
+				// Produce a directory listing for the specified path.
+				Log.put("Process list command for absolute path");
+			    FileConnection fc = (FileConnection) Connector.open(path);
+
+			    if (!fc.exists()) {
+			        fc.close();
+			        return false;
+			    }
+
+			    long renderTime = System.currentTimeMillis();
+			    int renderGeneration = listingCache.getGeneration();
+			    int entryCount = 0;
+			    startListing(true);
+			    try {
+			    	for (java.util.Enumeration contents = fc.list() ; contents.hasMoreElements() ;) {
+			    		String name = (String) contents.nextElement();
+			    		// Probed directly, a large directory would only push
+			    		// everything else out of the metadata cache.
+			    		FileMetadata metadata = FileMetadata.probe(path + name);
+			    		if (metadata.exists) {
+			    			putListLine(formatFileInfo(metadata, Util.stripTrailingSlashs(name)));
+			    			entryCount++;
+			    		}
+			    	}
+			    	byte[] rendered = finishListing();
+			    	if (rendered != null) {
+			    		listingCache.put(path, rendered, renderTime, renderGeneration);
+			    	}
+			    } finally {
+			    	endListing();
+			    	fc.close();
+			    }
+			    if (Log.isEnabled(Log.DEBUG)) {
+			    	Log.put("Listed " + entryCount + " entries of " + path);
+			    }
+			}
+		}
+		commandOut.putCommand(new ThreadCommand(FtpCommand.REPLY, "150 OK"));
+		return true;
+	}	
+
+	
+	/**
+	 * Handle the NLST ftp command. Only the names in the directory are
+	 * sent, no entry is looked at on its own.
+	 * @param path    Fully qualified directory path.
+	 * @param filter  Pattern the names must match, null for all names.
+	 * @return        False if the path was not found, nothing was sent.
+	 * @throws IOException
+	 */
+	public boolean processNlstCommand(String path, String filter) throws IOException
+	{
+		Log.put("Enter processNlstCommand");
+		FileConnection fc = null;
+		java.util.Enumeration names;
+		if (path.equals("file:///")) {
+			names = javax.microedition.io.file.FileSystemRegistry.listRoots();
+		} else {
+			fc = (FileConnection) Connector.open(path + "/");
+			if (!fc.exists()) {
+				fc.close();
+				return false;
+			}
+			// The file system can filter on * itself, a ? is checked below
+			names = (filter != null && filter.indexOf('?') == -1) ? fc.list(filter, false) : fc.list();
+		}
+
+		int nameCount = 0;
+		startListing(false);
+		try {
+			while (names.hasMoreElements()) {
+				String name = Util.stripTrailingSlashs((String) names.nextElement());
+				if (filter == null || Util.matchesGlob(name, filter)) {
+					putListLine(name);
+					nameCount++;
+				}
+			}
+			finishListing();
+		} finally {
+			endListing();
+			if (fc != null) {
+				fc.close();
+			}
+		}
+		if (Log.isEnabled(Log.DEBUG)) {
+			Log.put("Listed " + nameCount + " names of " + path);
+		}
+		commandOut.putCommand(new ThreadCommand(FtpCommand.REPLY, "150 OK"));
+		return true;
+	}
+
+	/**
+	 * Handle the MLSD ftp command. The facts of every entry in the
+	 * directory are sent over the data socket, in one pass over the
+	 * directory.
+	 * @param path    Fully qualified directory path.
+	 * @return        False if the path was not found, nothing was sent.
+	 * @throws IOException
+	 */
+	public boolean processMlsdCommand(String path) throws IOException
+	{
+		Log.put("Enter processMlsdCommand");
+		FileConnection fc = null;
+		java.util.Enumeration names;
+		String dirPath;
+		if (path.equals("file:///")) {
+			names = javax.microedition.io.file.FileSystemRegistry.listRoots();
+			dirPath = path;
+		} else {
+			dirPath = path + "/";
+			fc = (FileConnection) Connector.open(dirPath);
+			if (!fc.exists()) {
+				fc.close();
+				return false;
+			}
+			names = fc.list();
+		}
+
+		int entryCount = 0;
+		startListing(false);
+		try {
+			while (names.hasMoreElements()) {
+				String name = (String) names.nextElement();
+				FileMetadata metadata = FileMetadata.probe(dirPath + name);
+				if (metadata.exists) {
+					putListLine(metadata.formatFacts(Util.stripTrailingSlashs(name)));
+					entryCount++;
+				}
+			}
+			finishListing();
+		} finally {
+			endListing();
+			if (fc != null) {
+				fc.close();
+			}
+		}
+		if (Log.isEnabled(Log.DEBUG)) {
+			Log.put("Listed facts of " + entryCount + " entries of " + path);
+		}
+		commandOut.putCommand(new ThreadCommand(FtpCommand.REPLY, "150 OK"));
+		return true;
+	}
+
+	/**
+	 * Lease the buffer that the lines of a listing are collected in.
+	 * @param cache True if a copy of the listing should be kept for the listing cache.
+	 */
+	private void startListing(boolean cache)
+	{
+		listBuffers = bufferPool.lease(1, LIST_BUFFER_SIZE);
+		listBuffer = listBuffers[0];
+		listLength = 0;
+		renderedListing = cache ? new ByteArrayOutputStream() : null;
+	}
+
+	/**
+	 * Add one line to the listing, the newline is appended automatically.
+	 * @param line
+	 * @throws IOException
+	 */
+	private void putListLine(String line) throws IOException
+	{
+		int length = line.length();
+		byte[] encoded = null;
+		for (int i = 0; i < length; i++) {
+			if (line.charAt(i) > 127) {
+				// Not plain ASCII, let the platform encode it
+				encoded = (line + "\r\n").getBytes();
+				break;
+			}
+		}
+
+		int size = (encoded != null) ? encoded.length : length + 2;
+		if (listLength + size > listBuffer.length) {
+			flushListBuffer();
+		}
+		if (size > listBuffer.length) {
+			if (encoded == null) {
+				encoded = (line + "\r\n").getBytes();
+			}
+			writeListing(encoded, 0, encoded.length);
+		} else if (encoded != null) {
+			System.arraycopy(encoded, 0, listBuffer, listLength, size);
+			listLength += size;
+		} else {
+			for (int i = 0; i < length; i++) {
+				listBuffer[listLength++] = (byte) line.charAt(i);
+			}
+			listBuffer[listLength++] = 13;
+			listBuffer[listLength++] = 10;
+		}
+	}
+
+	/**
+	 * Send part of the listing and keep a copy of it if the listing
+	 * is to be cached and still small enough.
+	 * @throws IOException
+	 */
+	private void writeListing(byte[] data, int offset, int length) throws IOException
+	{
+		socketOStream.write(data, offset, length);
+		if (renderedListing != null) {
+			if (renderedListing.size() + length > listingCache.getMaxListingSize()) {
+				renderedListing = null;
+			} else {
+				renderedListing.write(data, offset, length);
+			}
+		}
+	}
+
+	private void flushListBuffer() throws IOException
+	{
+		if (listLength > 0) {
+			writeListing(listBuffer, 0, listLength);
+			listLength = 0;
+		}
+	}
+
+	/**
+	 * Send the rest of the listing.
+	 * @return The whole listing, or null if it isn't to be cached.
+	 * @throws IOException
+	 */
+	private byte[] finishListing() throws IOException
+	{
+		flushListBuffer();
+		socketOStream.flush();
+		return (renderedListing != null) ? renderedListing.toByteArray() : null;
+	}
+
+	/**
+	 * Give back the buffer of the listing.
+	 */
+	private void endListing()
+	{
+		if (listBuffers != null) {
+			bufferPool.release(listBuffers);
+		}
+		listBuffers = null;
+		listBuffer = null;
+		renderedListing = null;
+	}
+
+	
+	/**
+	 * Handle the retrieve ftp command for the specified path. This
+	 * will send the file over the data socket.
+	 * @param path   Fully qualified path to the file to be retrieved.
+	 * @param offset Number of bytes at the start of the file to skip (REST).
+	 * @return       False if the path was not found, nothing was sent.
+	 * @throws IOException
+	 */
+	public boolean processRetrCommand(String path, long offset) throws IOException
+	{
+		Log.put("Enter processRetrCommand");
+
+		// Check that the file exists
+		FileConnection fc = (FileConnection) Connector.open(path);
+		if (!fc.exists() || fc.isDirectory()) {
+			fc.close();
+			return false;
+		}
+		
+		// Tell the client that we are about to start sending data
+		commandOut.putCommand(new ThreadCommand(FtpCommand.REPLY, "150 OK"));
+		
+		// Wait until until that last command is sent to the client, then continue
+		if (commandIn.getCommand().getCommand() == FtpCommand.CONTINUE) {
+			long fileSize = fc.fileSize();
+			long lastModified = fc.lastModified();
+			
+			Date date = new java.util.Date();
+			long startTime = date.getTime();
+			
+			// Small files are kept in memory once read, they are
+			// sent from there as long as the file is unchanged. Other
+			// files aren't looked up, they would only count as misses.
+			long bytesSent;
+			byte[] contents = null;
+			boolean cacheHit = false;
+			if (fileCache.isCacheable(fileSize, lastModified)) {
+				contents = fileCache.get(path, fileSize, lastModified);
+				cacheHit = (contents != null);
+				if (contents == null) {
+					contents = readContents(fc, (int) fileSize);
+					if (contents != null) {
+						fileCache.put(path, contents, lastModified);
+					}
+				}
+			}
+			if (contents != null) {
+				int start = (offset < contents.length) ? (int) offset : contents.length;
+				if (Log.isEnabled(Log.DEBUG)) {
+					Log.put("Sending file from memory, size = " + fileSize + ", offset = " + start);
+				}
+				socketOStream.write(contents, start, contents.length - start);
+				socketOStream.flush();
+				bytesSent = contents.length - start;
+				if (cacheHit) {
+					fileCache.addBytesSaved(bytesSent);
+				}
+			} else {
+				bytesSent = streamFile(fc, offset, fileSize);
+			}
+			
+			// Print some useful info to log so we can monitor transfer speeds
+			date = new java.util.Date();
+			long endTime = date.getTime();
+			double durationSec = (endTime - startTime) / 1000.0;
+			Log.put(Log.INFO, "Sent file: ["+path+"] Time taken: "+ durationSec + 
+					" seconds, average speed: " + (((double)bytesSent) / (durationSec * 1024.0) ) + " KB/sec");	
+			metrics.recordTransfer(metricsStripe, Metrics.DOWNLOAD, bytesSent, endTime - startTime);
+			if (contents == null) {
+				logTransferStats();
+			}
+			commandOut.putCommand(new ThreadCommand(FtpCommand.REPLY, "226 OK"));
+		}
+		fc.close();	      
+
+		return true;
+	}		
+
+	
+	/**
+	 * Read the whole of a small file into memory.
+	 * @param fc   The file.
+	 * @param size Size of the file.
+	 * @return     The contents, or null if the file didn't have the expected size.
+	 * @throws IOException
+	 */
+	private byte[] readContents(FileConnection fc, int size) throws IOException
+	{
+		byte[] contents = new byte[size];
+		InputStream inputFileStream = fc.openInputStream();
+		try {
+			int length = 0;
+			while (length < size) {
+				int count = inputFileStream.read(contents, length, size - length);
+				if (count == -1) {
+					return null;
+				}
+				length += count;
+			}
+			if (inputFileStream.read() != -1) {
+				return null;
+			}
+		} finally {
+			inputFileStream.close();
+		}
+		return contents;
+	}
+
+	/**
+	 * Send a file over the data socket straight from the file system.
+	 * @param fc       The file.
+	 * @param offset   Number of bytes at the start of the file to skip (REST).
+	 * @param fileSize Size of the file.
+	 * @return         Number of bytes sent.
+	 * @throws IOException
+	 */
+	private long streamFile(FileConnection fc, long offset, long fileSize) throws IOException
+	{
+		InputStream inputFileStream = fc.openInputStream();
+		try {
+			long bytesRead = 0;
+			
+			// Skip the part of the file the client already has
+			while (bytesRead < offset) {
+				long skipped = inputFileStream.skip(offset - bytesRead);
+				if (skipped <= 0) {
+					break;
+				}
+				bytesRead += skipped;
+			}
+			
+			if (Log.isEnabled(Log.DEBUG)) {
+				Log.put("Starting transfer of file, size = " + fileSize + ", offset = " + bytesRead);
+			}
+			
+			// The file is read while the previous chunk is being sent,
+			// the socket is only flushed once the whole file has been written.
+			return pipeline.transfer(inputFileStream, socketOStream, fileSize - bytesRead);
+		} finally {
+			inputFileStream.close();
+		}
+	}
+
+	
+	/**
+	 * Process the ftp store command for the specified path.
+	 * @param path   Fully qualified path to the file to be stored on the server.
+	 * @param offset Position in the file where writing starts (REST).
+	 * @return       False if the path was not found or the offset is
+	 *               past its end, nothing was received.
+	 * @throws IOException
+	 */
+	public boolean processStorCommand(String path, long offset) throws IOException
+	{
+		Log.put("Enter processStorCommand");
+
+		// Check that the file exists
+		FileConnection fc = (FileConnection) Connector.open(path);
+		
+		// Create the file if it doesn't exists, if it
+		// does exist then clear it from the restart offset on.
+		// An offset past the end can't be resumed, the data would
+		// be appended at the end instead.
+		if (fc.exists() && !fc.isDirectory()) {
+			if (offset > fc.fileSize()) {
+				fc.close();
+				return false;
+			}
+			if (offset < fc.fileSize()) {
+				fc.truncate(offset);
+			}
+		} else if (offset > 0) {
+			fc.close();
+			return false;
+		} else {
+			fc.create();
+		}
+		
+		// Ensure the file now exists
+		if (!fc.exists() || fc.isDirectory()) {
+			fc.close();
+			return false;
+		}
+				
+		OutputStream outputFileStream = (offset > 0) ? fc.openOutputStream(offset) : fc.openOutputStream();
+		
+		// Tell the client that we are ready to receive data from socket
+		commandOut.putCommand(new ThreadCommand(FtpCommand.REPLY, "125 Ready to receive"));
+		
+		if (Log.isEnabled(Log.DEBUG)) {
+			Log.put("About to receive file: " + path);
+		}
+		
+		Date date = new java.util.Date();
+		long startTime = date.getTime();
+		// The socket is read while the previous chunk is being written
+		// to the file, the file is written a whole buffer at a time.
+		long bytesReceived;
+		try {
+			bytesReceived = pipeline.transfer(socketIStream, outputFileStream, -1);
+		} finally {
+			outputFileStream.close();
+			fc.close();
+		}
+		
+		// Print some useful info to log
+		date = new java.util.Date();
+		long endTime = date.getTime();
+		double durationSec = (endTime - startTime) / 1000.0;
+		Log.put(Log.INFO, "File transfer complete ["+path+"] Time taken: "+ durationSec + 
+				" seconds, average speed: " + (((double)bytesReceived) / (durationSec * 1024.0) ) + " KB/sec");
+		
+		metrics.recordTransfer(metricsStripe, Metrics.UPLOAD, bytesReceived, endTime - startTime);
+		logTransferStats();
+		
+		commandOut.putCommand(new ThreadCommand(FtpCommand.REPLY, "226 File received"));
+		
+		return true;
+	}		
+	
+	/**
+	 * Log the chunk size chosen for the last transfer, the throughput
+	 * reached and how long each side waited for the other.
+	 */
+	private void logTransferStats() {
+		Log.put(Log.INFO, "Transfer chunk size " + pipeline.getChunkSize() + " bytes, throughput "
+				+ pipeline.getThroughput() + " bytes/sec");
+		Log.put(Log.INFO, "Transfer stalls: file/socket reader " + pipeline.getReaderStall()
+				+ " ms, writer " + pipeline.getWriterStall() + " ms");
+	}
+
+	/**
+	 * This method is used to cleanly shutdown this thread and
+	 * exit it gracefully.
+	 * @param connection The connection being shutdown.
+	 */
+	private void shutdown(StreamConnection connection) {		
+		try {
+			// Close all related streams...
+			
+			if (socketOStream != null) socketOStream.close();
+			
+			if (socketIStream != null) socketIStream.close();
+			
+			if (connection != null) connection.close();
+			log("Data connection closed.");
+			socketOStream = null;
+			socketIStream = null;
+		}
+		catch (Throwable ioe) {
+			Log.logException(ioe);
+		}		
+	}
+	
+	/**
+	 * Return the passive port to the allocator, its listening socket is
+	 * left open for the next data connection.
+	 */
+	private synchronized void releasePort() {
+		if (passivePort != null) {
+			passivePort.release();
+			passivePort = null;
+		}
+	}
+
+	/**
+	 * Wait for the client to connect to the listening socket. Connections
+	 * from any other address are turned away.
+	 * @return The connection, or null if the wait was aborted.
+	 * @throws IOException
+	 */
+	private StreamConnection acceptAndOpen() throws IOException {
+		while (true) {
+			StreamConnectionNotifier notifier;
+			synchronized (this) {
+				if (acceptAborted) {
+					return null;
+				}
+				notifier = passivePort.getListener();
+			}
+			StreamConnection accepted;
+			try {
+				accepted = notifier.acceptAndOpen();
+			} catch (IOException e) {
+				if (acceptAborted) {
+					return null;
+				}
+				throw e;
+			}
+			if (clientAddress != null && accepted instanceof SocketConnection
+					&& !clientAddress.equals(((SocketConnection) accepted).getAddress())) {
+				log("Data connection from unexpected address refused.");
+				accepted.close();
+			} else {
+				return accepted;
+			}
+		}
+	}
+
+	/**
+	 * If this thread is still waiting for the client to connect then
+	 * the wait is abandoned and the data connection is finished.
+	 */
+	public synchronized void abortAccept() {
+		if (connection == null && passivePort != null) {
+			acceptAborted = true;
+			passivePort.close();
+		}
+	}
+
+	/**
+	 * Close the data connection even if a transfer is still running, a
+	 * read or write blocked on a client that has stopped then fails.
+	 * Used when the session is shut down.
+	 */
+	public void abortTransfer() {
+		OutputStream os;
+		InputStream is;
+		StreamConnection open;
+		synchronized (this) {
+			abortAccept();
+			if (jobDone) {
+				return;
+			}
+			os = socketOStream;
+			is = socketIStream;
+			open = connection;
+		}
+		try {
+			// The socket stays open while its streams are open
+			if (os != null) os.close();
+			if (is != null) is.close();
+			if (open != null) open.close();
+		} catch (IOException e) {
+			Log.logException(e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 * Serve each data connection assigned by the pool.
+	 */
+	public void run() 
+	{
+		log("DataConnectionThread::run()");
+		try {
+			while (awaitJob()) {
+				try {
+					serve();
+				} finally {
+					completeJob();
+				}
+			}
+			pipeline.shutdown();
+			log("Data connection thread finished.");
+		} finally {
+			synchronized (this) {
+				finished = true;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Serve one data connection, from accepting the client until the
+	 * session closes the connection.
+	 */
+	private void serve()
+	{
+		try 
+		{
+			if (Log.isEnabled(Log.DEBUG)) {
+				log("Data connection is listening on port " + passivePort.getPort());
+			}
+
+			connection = acceptAndOpen();
+			if (connection == null) {
+				log("Wait for data connection aborted.");
+				return;
+			}
+			log("Connection accepted on data socket.");
+			// Give the port back, the next data connection can use it
+			// while this one carries on.
+			releasePort();
+			
+			// Open input and output streams for the socket...
+			socketIStream = connection.openInputStream();
+			socketOStream = connection.openOutputStream();
+			
+			boolean killThread = false;
+			while (!killThread) {
+				// Wait for orders...
+				ThreadCommand thisCommand = commandIn.getCommand();
+				switch (thisCommand.getCommand()) {
+				case FtpCommand.LIST:
+					log("LIST command received.");
+					killThread = !processListCommand(thisCommand.getArg());
+					break;
+				case FtpCommand.NLST:
+					log("NLST command received.");
+					killThread = !processNlstCommand(thisCommand.getArg(), thisCommand.getFilter());
+					break;
+				case FtpCommand.MLSD:
+					log("MLSD command received.");
+					killThread = !processMlsdCommand(thisCommand.getArg());
+					break;
+				case FtpCommand.CLOSE:
+					log("CLOSE command received.");	
+					killThread = true;
+					break;
+				case FtpCommand.RETR:
+					log("RETR command received.");
+					killThread = !processRetrCommand(thisCommand.getArg(), thisCommand.getOffset());
+					break;	
+				case FtpCommand.STOR:
+					log("STOR command received.");
+					killThread = !processStorCommand(thisCommand.getArg(), thisCommand.getOffset());
+					break;
+				default:
+						log("Unknown command received.");
+						break;
+				}		
+			}
+		}
+		catch (Throwable ioe) {
+			Log.logException(ioe);
+		}
+		finally {
+			// The session may be waiting for a reply, it is told that the
+			// transfer was aborted once the replies already sent are read.
+			commandOut.close();
+			releasePort();
+			shutdown(connection);
+		}
+	}
+}
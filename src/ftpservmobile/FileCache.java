@@ -0,0 +1,199 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ftpservmobile;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * This class keeps the contents of small files that are downloaded
+ * repeatedly, so that RETR can send them from memory instead of reading
+ * them from flash every time. The total size of the cached files is
+ * limited, the least recently used files are dropped first. Each entry
+ * records the size and modification time of the file when it was read,
+ * it is only used while the file still has both. The server must also
+ * invalidate a path whenever it changes it.
+ */
+public class FileCache {
+	private Hashtable entries = new Hashtable();   // Entry keyed by path
+	private Entry lru = new Entry(null, null, 0);  // head of the list of entries, most recently used first
+	private int maxBytes;                          // max total size of the cached files
+	private int maxFileSize;                       // larger files are never cached
+	private int usedBytes = 0;
+	private int hits = 0;
+	private int misses = 0;
+	private long bytesSaved = 0;                   // bytes sent from memory instead of read from a file
+
+	/**
+	 * Constructor.
+	 * @param maxBytes    Max total size of the cached files.
+	 * @param maxFileSize Max size of a single cached file.
+	 */
+	public FileCache(int maxBytes, int maxFileSize) {
+		this.maxBytes = maxBytes;
+		this.maxFileSize = maxFileSize;
+		lru.next = lru;
+		lru.prev = lru;
+	}
+
+	/**
+	 * @param size         Size of the file.
+	 * @param lastModified Modification time of the file, 0 if not known.
+	 * @return             True if a file like this would be cached.
+	 */
+	public boolean isCacheable(long size, long lastModified) {
+		// Without a modification time a changed file can't be detected
+		return lastModified != 0 && size <= maxFileSize && size <= maxBytes;
+	}
+
+	/**
+	 * Get the contents of a file if they are cached and still current.
+	 * Only files that pass isCacheable() should be looked up, every
+	 * lookup that doesn't find the file counts as a miss.
+	 * @param path         Fully qualified path of the file.
+	 * @param size         Current size of the file.
+	 * @param lastModified Current modification time of the file.
+	 * @return             The contents, or null if not cached.
+	 */
+	public synchronized byte[] get(String path, long size, long lastModified) {
+		Entry entry = (Entry) entries.get(path);
+		if (entry != null) {
+			if (entry.data.length == size && entry.lastModified == lastModified) {
+				hits++;
+				unlink(entry);
+				linkFirst(entry);
+				return entry.data;
+			}
+			// The file has changed since it was cached
+			remove(entry);
+		}
+		misses++;
+		return null;
+	}
+
+	/**
+	 * Add the contents of a file, less recently used files are dropped
+	 * to make room.
+	 * @param path         Fully qualified path of the file.
+	 * @param data         The contents of the file.
+	 * @param lastModified Modification time of the file when it was read.
+	 */
+	public synchronized void put(String path, byte[] data, long lastModified) {
+		if (!isCacheable(data.length, lastModified)) {
+			return;
+		}
+		Entry old = (Entry) entries.get(path);
+		if (old != null) {
+			remove(old);
+		}
+		while (usedBytes + data.length > maxBytes) {
+			remove(lru.prev);
+		}
+		Entry entry = new Entry(path, data, lastModified);
+		entries.put(path, entry);
+		linkFirst(entry);
+		usedBytes += data.length;
+	}
+
+	/**
+	 * Remove a changed path from the cache. Anything below the path is
+	 * removed too, in case it is a directory that was renamed.
+	 * @param path Fully qualified path, with or without a trailing /
+	 */
+	public synchronized void invalidate(String path) {
+		path = Util.stripTrailingSlashs(path);
+		String dirPath = path + "/";
+		Vector stale = new Vector();
+		for (Enumeration e = entries.keys(); e.hasMoreElements();) {
+			String cached = (String) e.nextElement();
+			if (cached.equals(path) || cached.startsWith(dirPath)) {
+				stale.addElement(entries.get(cached));
+			}
+		}
+		for (int i = 0; i < stale.size(); i++) {
+			remove((Entry) stale.elementAt(i));
+		}
+	}
+
+	/**
+	 * Record bytes that were sent from the cache.
+	 * @param bytes
+	 */
+	public synchronized void addBytesSaved(long bytes) {
+		bytesSaved += bytes;
+	}
+
+	private void remove(Entry entry) {
+		entries.remove(entry.path);
+		unlink(entry);
+		usedBytes -= entry.data.length;
+	}
+
+	private void linkFirst(Entry entry) {
+		entry.next = lru.next;
+		entry.prev = lru;
+		lru.next.prev = entry;
+		lru.next = entry;
+	}
+
+	private void unlink(Entry entry) {
+		entry.prev.next = entry.next;
+		entry.next.prev = entry.prev;
+		entry.next = null;
+		entry.prev = null;
+	}
+
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	public synchronized long getBytesSaved() {
+		return bytesSaved;
+	}
+
+	public synchronized String toString() {
+		int lookups = hits + misses;
+		return hits + " hits, " + misses + " misses (" + ((lookups > 0) ? hits * 100 / lookups : 0)
+				+ "% hit ratio), " + bytesSaved + " bytes saved, " + usedBytes + " of " + maxBytes
+				+ " bytes used";
+	}
+
+	/**
+	 * The cached contents of one file.
+	 */
+	private static class Entry {
+		private String path;
+		private byte[] data;
+		private long lastModified;
+		private Entry next = null;   // neighbours in the list of entries
+		private Entry prev = null;
+
+		private Entry(String path, byte[] data, long lastModified) {
+			this.path = path;
+			this.data = data;
+			this.lastModified = lastModified;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ftpservmobile;
+
+import java.io.IOException;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.file.FileConnection;
+
+/**
+ * This class holds the details of a file or directory that the
+ * server looks up when validating and executing commands.
+ */
+public class FileMetadata {
+	public boolean exists = false;
+	public boolean isDirectory = false;
+	public boolean canRead = false;
+	public boolean canWrite = false;
+	public long size = 0;             // file size in bytes, 0 for directories
+	public long lastModified = 0;     // time in ms since the epoch, 0 if unknown
+	long probeTime;                   // when these details were read from the file system
+
+	/**
+	 * Format these details as the facts of an MLST or MLSD entry,
+	 * followed by the name of the entry.
+	 * @param name The name of the entry.
+	 * @return     The facts and the name.
+	 */
+	public String formatFacts(String name) {
+		StringBuffer facts = new StringBuffer();
+		if (isDirectory) {
+			facts.append("type=dir;");
+		} else {
+			facts.append("type=file;size=").append(size).append(';');
+		}
+		if (lastModified != 0) {
+			facts.append("modify=").append(Util.formatGmtTime(lastModified)).append(';');
+		}
+		facts.append("perm=");
+		if (isDirectory) {
+			// Enter and list, create files and directories, rename
+			if (canRead) facts.append("el");
+			if (canWrite) facts.append("cmf");
+		} else {
+			// Retrieve, store and rename
+			if (canRead) facts.append('r');
+			if (canWrite) facts.append("wf");
+		}
+		facts.append("; ").append(name);
+		return facts.toString();
+	}
+
+	/**
+	 * Reads the details of the specified path from the file system.
+	 * @param path Fully qualified path, directories should end with a /
+	 * @return     The details read.
+	 * @throws IOException
+	 */
+	public static FileMetadata probe(String path) throws IOException {
+		FileMetadata metadata = new FileMetadata();
+		FileConnection fc = (FileConnection) Connector.open(path);
+		try {
+			metadata.exists = fc.exists();
+			if (metadata.exists) {
+				metadata.isDirectory = fc.isDirectory();
+				if (!metadata.isDirectory) {
+					metadata.size = fc.fileSize();
+				}
+				metadata.canRead = fc.canRead();
+				metadata.canWrite = fc.canWrite();
+				metadata.lastModified = fc.lastModified();
+			}
+		} finally {
+			fc.close();
+		}
+		metadata.probeTime = System.currentTimeMillis();
+		return metadata;
+	}
+}
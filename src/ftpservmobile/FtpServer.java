@@ -1,153 +1,313 @@
-//
-//    Copyright 2010 Paul White
-//
-//    This file is part of FtpServerMobile.
-//
-//    FtpServerMobile is free software: you can redistribute it and/or modify
-//    it under the terms of the GNU General Public License as published by
-//    the Free Software Foundation, either version 3 of the License, or
-//    (at your option) any later version.
-
-//    FtpServerMobile is distributed in the hope that it will be useful,
-//    but WITHOUT ANY WARRANTY; without even the implied warranty of
-//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
-//    GNU General Public License for more details.
-//
-//    You should have received a copy of the GNU General Public License
-//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
-//
-package ftpservmobile;
-
-import java.util.*;
-import javax.microedition.midlet.*;
-import javax.microedition.lcdui.*;
-import javax.microedition.io.*;
-
-import java.io.*;
-
-/**
- * This class is the top level class for the FtpServer. 
- */
-public class FtpServer extends MIDlet implements CommandListener {
-
-	private Command exitCommand;
-	private TextBox tb;
-	private StreamConnection streamConnection = null;
-	private ConnectionThread connection = null;
-
-	/**
-	 * Default constructor, this creates some GUI elements and creates the
-	 * Log object which will handle the logging for the system from here on.
-	 */
-	public FtpServer() {
-		exitCommand = new Command("Exit", Command.EXIT, 1);
-		tb = new TextBox("Simple FTP Server", "FTP Server started\n", 100, 0);
-		new Log(tb, true);
-		
-		// Change whether or not we are running in debug mode here
-		Log.setDebugModeStatus(true);
-
-		// Get current time and date and write it to log
-		Date d = new java.util.Date();
-		Calendar c = Calendar.getInstance();
-		c.setTime(d);
-		int month = c.get(Calendar.MONTH) + 1;
-		String time = c.get(Calendar.DAY_OF_MONTH) + "/" + month + "/"
-				+ c.get(Calendar.YEAR) + " " + c.get(Calendar.HOUR_OF_DAY)
-				+ ":" + c.get(Calendar.MINUTE) + ":" + c.get(Calendar.SECOND);
-		Log.put("Log started " + time);
-	}
-
-	/* (non-Javadoc)
-	 * @see javax.microedition.midlet.MIDlet#destroyApp(boolean)
-	 */
-	protected void destroyApp(boolean unconditional)
-			throws MIDletStateChangeException {
-		Log.put("Destroying app...");
-		shutdown();
-	}
-
-	/**
-	 * Initiates a shutdown of this MIDlet.
-	 */
-	protected void shutdown() {
-		Log.put("Start shutdown()");
-		try {
-			if (connection != null) {
-				Log.put("Force connection thread to die.");
-				connection.shutdown();
-				while (connection.isAlive()) {
-					Log.put("Still waiting on connection thread to die.");
-					connection.yield();
-				}
-				Log.put("Connection thread is dead.");
-			}
-		} catch (Exception e) {
-			Log.logException(e);
-		}
-		Log.put("Notifying app destroyed...");
-		notifyDestroyed();
-	}
-
-	/* (non-Javadoc)
-	 * @see javax.microedition.midlet.MIDlet#pauseApp()
-	 */
-	protected void pauseApp() {
-		Log.put("Application paused by gui");
-	}
-
-	/* (non-Javadoc)
-	 * @see javax.microedition.midlet.MIDlet#startApp()
-	 */
-	protected void startApp() throws MIDletStateChangeException {
-		// Deal with some GUI stuff here
-		tb.addCommand(exitCommand);
-		tb.setCommandListener(this);
-		Display.getDisplay(this).setCurrent(tb);
-		
-		try {
-			// Create the server listening socket for port 21
-			final int LISTEN_PORT = 21;
-			ServerSocketConnection scn = (ServerSocketConnection) Connector.open("socket://:" + LISTEN_PORT);
-			Log.putPublic("IP address is " + scn.getLocalAddress() + ":" + LISTEN_PORT);
-			Log.put("Stream connection is open.");
-
-			// Main loop of MIDlet here:
-			while (true) {
-				// Wait for a client to connect:
-				StreamConnection sc = (StreamConnection) scn.acceptAndOpen();
-				
-				// We currently only allow one client
-				if (connection == null || connection.isAlive() == false) {
-					Log.put("Connection accepted.");
-					streamConnection = sc;
-					connection = new ConnectionThread(streamConnection, scn.getLocalAddress());
-					connection.start();
-					Log.put("Connection thread started.");
-				} else {
-					Log.put("Connection refused, only one client allowed.");
-					sc.close();
-				}
-			}
-		} catch (IOException e) {
-			Log.logException(e);
-		}
-	}
-
-	/* (non-Javadoc)
-	 * @see javax.microedition.lcdui.CommandListener#commandAction(javax.microedition.lcdui.Command, javax.microedition.lcdui.Displayable)
-	 * 
-	 * Handle commands from the GUI here.
-	 * 
-	 */
-	public void commandAction(Command cmd, Displayable disp) {
-		Log.put("Command received from gui:" + cmd.getLabel());
-		if (cmd == exitCommand) {
-			try {
-				destroyApp(false);
-			} catch (MIDletStateChangeException e) {
-				Log.logException(e);
-			}
-		}
-	}
-}
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+package ftpservmobile;
+
+import java.util.*;
+import javax.microedition.midlet.*;
+import javax.microedition.lcdui.*;
+import javax.microedition.io.*;
+
+import java.io.*;
+
+/**
+ * This class is the top level class for the FtpServer. 
+ */
+public class FtpServer extends MIDlet implements CommandListener {
+
+	private Command exitCommand;
+	private TextBox tb;
+	private SessionPool sessionPool = null;
+	private ControlPoller poller = null;        // only used by the polled engine
+	private TimingWheel idleSupervisor = null;  // supervises the idle timers of all sessions
+	private ServerSocketConnection listener = null;
+	private volatile boolean shuttingDown = false;
+
+	/**
+	 * Default constructor, this creates some GUI elements and creates the
+	 * Log object which will handle the logging for the system from here on.
+	 */
+	public FtpServer() {
+		exitCommand = new Command("Exit", Command.EXIT, 1);
+		tb = new TextBox("Simple FTP Server", "FTP Server started\n", 100, 0);
+		new Log(tb, getBooleanProperty("FtpServer-DebugMode", false));
+		Log.setLevel(Log.parseLevel(getAppProperty("FtpServer-LogLevel"), Log.INFO));
+
+		// Get current time and date and write it to log
+		Date d = new java.util.Date();
+		Calendar c = Calendar.getInstance();
+		c.setTime(d);
+		int month = c.get(Calendar.MONTH) + 1;
+		String time = c.get(Calendar.DAY_OF_MONTH) + "/" + month + "/"
+				+ c.get(Calendar.YEAR) + " " + c.get(Calendar.HOUR_OF_DAY)
+				+ ":" + c.get(Calendar.MINUTE) + ":" + c.get(Calendar.SECOND);
+		Log.put(Log.INFO, "Log started " + time);
+	}
+
+	/* (non-Javadoc)
+	 * @see javax.microedition.midlet.MIDlet#destroyApp(boolean)
+	 */
+	protected void destroyApp(boolean unconditional)
+			throws MIDletStateChangeException {
+		Log.put("Destroying app...");
+		shutdown();
+	}
+
+	/**
+	 * Initiates a shutdown of this MIDlet.
+	 */
+	protected void shutdown() {
+		Log.put("Start shutdown()");
+		shuttingDown = true;
+		try {
+			if (listener != null) {
+				// Ends the accept loop of startApp()
+				listener.close();
+			}
+			if (poller != null) {
+				Log.put("Stop polling sessions.");
+				poller.shutdown();
+			}
+			if (sessionPool != null) {
+				Log.put("Force sessions to close.");
+				sessionPool.shutdown();
+				Log.put("Sessions are closed.");
+			}
+			if (idleSupervisor != null) {
+				idleSupervisor.shutdown();
+			}
+			ConnectionThread.dataConnections.shutdown();
+			ConnectionThread.passivePorts.close();
+			ConnectionThread.commands.logInvocationCounts(ConnectionThread.metrics);
+			Log.put(Log.INFO, "Transfer buffers: " + ConnectionThread.transferBuffers);
+			Log.put(Log.INFO, "Metadata cache hits " + ConnectionThread.fileMetadata.getHits()
+					+ ", misses " + ConnectionThread.fileMetadata.getMisses());
+			Log.put(Log.INFO, "File cache: " + ConnectionThread.fileContents);
+			Log.put(Log.INFO, "Listing cache hits " + ConnectionThread.listings.getHits()
+					+ ", misses " + ConnectionThread.listings.getMisses());
+		} catch (Exception e) {
+			Log.logException(e);
+		}
+		Log.put("Notifying app destroyed...");
+		Log.shutdown();
+		notifyDestroyed();
+	}
+
+	/* (non-Javadoc)
+	 * @see javax.microedition.midlet.MIDlet#pauseApp()
+	 */
+	protected void pauseApp() {
+		Log.put("Application paused by gui");
+	}
+
+	/**
+	 * Reads an integer attribute from the application descriptor.
+	 * 
+	 * @param name         Name of the attribute.
+	 * @param defaultValue Value used if the attribute is missing or invalid.
+	 * @return             The value of the attribute.
+	 */
+	protected int getIntProperty(String name, int defaultValue) {
+		String value = getAppProperty(name);
+		if (value != null) {
+			try {
+				return Integer.parseInt(value.trim());
+			} catch (NumberFormatException e) {
+				Log.put("Invalid value for " + name + ": " + value);
+			}
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Reads a true/false attribute from the application descriptor.
+	 * 
+	 * @param name         Name of the attribute.
+	 * @param defaultValue Value used if the attribute is missing.
+	 * @return             The value of the attribute.
+	 */
+	protected boolean getBooleanProperty(String name, boolean defaultValue) {
+		String value = getAppProperty(name);
+		if (value != null) {
+			return value.trim().equals("true");
+		}
+		return defaultValue;
+	}
+
+	/* (non-Javadoc)
+	 * @see javax.microedition.midlet.MIDlet#startApp()
+	 */
+	protected void startApp() throws MIDletStateChangeException {
+		// Deal with some GUI stuff here
+		tb.addCommand(exitCommand);
+		tb.setCommandListener(this);
+		Display.getDisplay(this).setCurrent(tb);
+		
+		// Size the session pool from the application descriptor and the memory we have
+		int maxSessions = SessionPool.sizeForMemory(
+				getIntProperty("FtpServer-MaxSessions", 4),
+				ConnectionThread.SESSION_MEMORY_BUDGET);
+
+		boolean pipelining = getBooleanProperty("FtpServer-Pipelining", false);
+
+		// Set up the range of ports used for passive data connections
+		ConnectionThread.passivePorts = new PassivePortAllocator(
+				getIntProperty("FtpServer-PassivePortStart", 5001),
+				getIntProperty("FtpServer-PassivePortCount", 16));
+		ConnectionThread.passivePorts.prebind(getIntProperty("FtpServer-PassivePortPrebind", 2));
+
+		// Transfers start with 2048 byte chunks and adapt within these bounds
+		int transferBufferCount = getIntProperty("FtpServer-TransferBuffers", 2);
+		int maxChunkSize = getIntProperty("FtpServer-TransferChunkMax", 8192);
+
+		// All transfer and listing buffers come out of one budget, it must hold at least one of each
+		int transferMemory = getIntProperty("FtpServer-TransferMemory", 64 * 1024);
+		int transferSize = Math.max(BufferPool.getLeaseSize(transferBufferCount, maxChunkSize),
+				BufferPool.getLeaseSize(1, DataConnectionThread.LIST_BUFFER_SIZE));
+		if (transferMemory < transferSize) {
+			Log.put("Transfer memory raised to " + transferSize + " bytes.");
+			transferMemory = transferSize;
+		}
+		ConnectionThread.transferBuffers = new BufferPool(transferMemory);
+
+		// Small files that are downloaded again are sent from memory
+		ConnectionThread.fileContents = new FileCache(
+				getIntProperty("FtpServer-FileCacheSize", 64 * 1024),
+				getIntProperty("FtpServer-FileCacheMaxFile", 16 * 1024));
+
+		// Listings of directories are kept for a while, until something in them changes
+		ConnectionThread.listings = new ListingCache(
+				getIntProperty("FtpServer-ListingCacheSize", 32 * 1024),
+				getIntProperty("FtpServer-ListingCacheAge", 30000));
+
+		// Statistics are split so that sessions and data workers seldom share a lock
+		ConnectionThread.metrics = new Metrics(getIntProperty("FtpServer-MetricsStripes", 8));
+
+		// Data connections are served by a pool of threads that is reused for every PASV
+		ConnectionThread.dataConnections = new DataConnectionPool(
+				getIntProperty("FtpServer-DataWorkers", maxSessions), ConnectionThread.fileMetadata,
+				ConnectionThread.fileContents, ConnectionThread.listings, ConnectionThread.transferBuffers,
+				ConnectionThread.metrics, transferBufferCount,
+				getIntProperty("FtpServer-TransferChunkMin", 512), maxChunkSize);
+
+		// One second resolution is plenty for idle timeouts of several minutes
+		idleSupervisor = new TimingWheel(1000, 64);
+		idleSupervisor.start();
+
+		// Select the control channel engine. The thread engine runs each session
+		// on its own pool worker, the poll engine shares a few workers between
+		// all sessions and only uses one while a command is being processed.
+		// Either way clients beyond the max number of sessions wait in a backlog.
+		int sessionBacklog = getIntProperty("FtpServer-SessionBacklog", 4);
+		if ("poll".equals(getAppProperty("FtpServer-Engine"))) {
+			sessionPool = new SessionPool(getIntProperty("FtpServer-PollWorkers", 2), maxSessions);
+			poller = new ControlPoller(sessionPool, maxSessions, sessionBacklog,
+					getIntProperty("FtpServer-PollInterval", 20));
+			poller.start();
+			Log.put("Using the poll engine.");
+		} else {
+			sessionPool = new SessionPool(maxSessions, sessionBacklog);
+			Log.put("Using the thread engine.");
+		}
+
+		try {
+			// Create the server listening socket, port 21 unless the descriptor says otherwise
+			final int LISTEN_PORT = getIntProperty("FtpServer-ListenPort", 21);
+			ServerSocketConnection scn = (ServerSocketConnection) Connector.open("socket://:" + LISTEN_PORT);
+			listener = scn;
+			Log.putPublic("IP address is " + scn.getLocalAddress() + ":" + LISTEN_PORT);
+			Log.put("Stream connection is open.");
+
+			// Main loop of MIDlet here:
+			while (!shuttingDown) {
+				// Wait for a client to connect:
+				StreamConnection sc = scn.acceptAndOpen();
+				
+				// Hand the client to the engine, it waits in the backlog if 
+				// the max number of sessions is connected.
+				ConnectionThread connection = new ConnectionThread(sc, getLocalAddress(sc, scn), idleSupervisor);
+				connection.setPipelining(pipelining);
+				boolean accepted = (poller != null) ? poller.accept(connection) : sessionPool.submit(connection);
+				if (accepted) {
+					Log.put("Connection accepted.");
+				} else {
+					Log.put("Connection refused, too many sessions.");
+					refuse(sc);
+				}
+			}
+		} catch (IOException e) {
+			if (!shuttingDown) {
+				Log.logException(e);
+			}
+		}
+	}
+
+	/**
+	 * Finds the address a client has connected to, this is the address it
+	 * is sent for passive data connections. On a host with several
+	 * interfaces it depends on the client.
+	 * 
+	 * @param sc  The connection of the client.
+	 * @param scn The listening socket, its address is used if the connection doesn't know its own.
+	 * @return    The IP address.
+	 * @throws IOException
+	 */
+	protected String getLocalAddress(StreamConnection sc, ServerSocketConnection scn) throws IOException {
+		if (sc instanceof SocketConnection) {
+			String address = ((SocketConnection) sc).getLocalAddress();
+			if (address != null && address.length() > 0) {
+				return address;
+			}
+		}
+		return scn.getLocalAddress();
+	}
+
+	/**
+	 * Tells a client that there are too many users and closes its connection.
+	 * 
+	 * @param sc The connection of the refused client.
+	 */
+	protected void refuse(StreamConnection sc) {
+		try {
+			OutputStream os = sc.openOutputStream();
+			os.write("421 Too many users, try again later\r\n".getBytes());
+			os.flush();
+			os.close();
+			sc.close();
+		} catch (IOException e) {
+			Log.logException(e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see javax.microedition.lcdui.CommandListener#commandAction(javax.microedition.lcdui.Command, javax.microedition.lcdui.Displayable)
+	 * 
+	 * Handle commands from the GUI here.
+	 * 
+	 */
+	public void commandAction(Command cmd, Displayable disp) {
+		Log.put("Command received from gui:" + cmd.getLabel());
+		if (cmd == exitCommand) {
+			try {
+				destroyApp(false);
+			} catch (MIDletStateChangeException e) {
+				Log.logException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,152 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ftpservmobile;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * This class caches the rendered LIST output of recently listed
+ * directories, so that listing a directory again doesn't look at every
+ * entry in it again. The server must invalidate a directory whenever it
+ * changes something in it. Listings also expire after a while as other
+ * applications on the device may change the file system too. The total
+ * size of the cached listings is limited, the oldest are dropped first.
+ */
+public class ListingCache {
+	private Hashtable entries = new Hashtable();   // Listing keyed by directory path
+	private Vector order = new Vector();           // paths in the order they were added, oldest first
+	private int maxBytes;                          // max total size of the cached listings
+	private long maxAge;                           // time in ms after which a directory is listed again
+	private int usedBytes = 0;
+	private int hits = 0;
+	private int misses = 0;
+	private int generation = 0;                    // incremented on every invalidation
+
+	/**
+	 * Constructor.
+	 * @param maxBytes Max total size of the cached listings.
+	 * @param maxAge   Time in ms that a listing remains valid.
+	 */
+	public ListingCache(int maxBytes, long maxAge) {
+		this.maxBytes = maxBytes;
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * @return Size of the largest listing that can be cached.
+	 */
+	public int getMaxListingSize() {
+		return maxBytes;
+	}
+
+	/**
+	 * Get the listing of a directory if it is cached and not too old.
+	 * @param path Fully qualified path of the directory, ending with a /
+	 * @return     The rendered listing, or null if not cached.
+	 */
+	public synchronized byte[] get(String path) {
+		Listing listing = (Listing) entries.get(path);
+		if (listing != null && System.currentTimeMillis() - listing.renderTime < maxAge) {
+			hits++;
+			return listing.data;
+		}
+		misses++;
+		return null;
+	}
+
+	/**
+	 * @return The current generation, to be passed to put() by a caller
+	 *         that is about to read a directory.
+	 */
+	public synchronized int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Add the listing of a directory, the oldest listings are dropped
+	 * to make room. The listing is dropped instead if anything was
+	 * invalidated since the directory was read, it may be stale.
+	 * @param path       Fully qualified path of the directory, ending with a /
+	 * @param data       The rendered listing.
+	 * @param renderTime When the directory was read.
+	 * @param generation The generation before the directory was read.
+	 */
+	public synchronized void put(String path, byte[] data, long renderTime, int generation) {
+		if (generation != this.generation || data.length > maxBytes) {
+			return;
+		}
+		remove(path);
+		while (usedBytes + data.length > maxBytes) {
+			remove((String) order.firstElement());
+		}
+		entries.put(path, new Listing(data, renderTime));
+		order.addElement(path);
+		usedBytes += data.length;
+	}
+
+	private void remove(String path) {
+		Listing listing = (Listing) entries.remove(path);
+		if (listing != null) {
+			order.removeElement(path);
+			usedBytes -= listing.data.length;
+		}
+	}
+
+	/**
+	 * Called when a path has been created, changed or renamed. The
+	 * listing of the directory holding it is removed, and if the path is
+	 * a directory the listings of everything below it are removed too.
+	 * @param path Fully qualified path, with or without a trailing /
+	 */
+	public synchronized void invalidate(String path) {
+		generation++;
+		path = Util.stripTrailingSlashs(path);
+		remove(path.substring(0, path.lastIndexOf('/') + 1));
+		String dirPath = path + "/";
+		for (int i = order.size() - 1; i >= 0; i--) {
+			String cached = (String) order.elementAt(i);
+			if (cached.startsWith(dirPath)) {
+				remove(cached);
+			}
+		}
+	}
+
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	/**
+	 * The rendered listing of one directory.
+	 */
+	private static class Listing {
+		private byte[] data;
+		private long renderTime;    // when the directory was read
+
+		private Listing(byte[] data, long renderTime) {
+			this.data = data;
+			this.renderTime = renderTime;
+		}
+	}
+}
@@ -1,201 +1,359 @@
-//
-//    Copyright 2010 Paul White
-//
-//    This file is part of FtpServerMobile.
-//
-//    FtpServerMobile is free software: you can redistribute it and/or modify
-//    it under the terms of the GNU General Public License as published by
-//    the Free Software Foundation, either version 3 of the License, or
-//    (at your option) any later version.
-
-//    FtpServerMobile is distributed in the hope that it will be useful,
-//    but WITHOUT ANY WARRANTY; without even the implied warranty of
-//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
-//    GNU General Public License for more details.
-//
-//    You should have received a copy of the GNU General Public License
-//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
-//
-
-package ftpservmobile;
-
-import javax.microedition.midlet.*;
-import javax.microedition.lcdui.*;
-import javax.microedition.io.*;
-import javax.microedition.io.file.FileConnection;
-import java.io.*;
-
-/**
- * This class is used to handle logging in a uniform way across
- * all classes associated with the FTP Server.  This class acts
- * as a singleton. 
- */
-public class Log {
-	private static Log log = null;            // used to refer to the singleton object
-	private TextBox tb = null;                // refers to the text box in the gui
-	private static final int TB_MAX = 300;    // max number of chars allowed in the text box in the gui
-	private PrintStream filePrintStream = null;
-	private OutputStream fileOutputStream = null;
-	private FileConnection fileCon = null;
-	private boolean debugMode = true;         // controls what level of logging we perform
-	
-	/**
-	 * Constructor. This creates the singleton instance, it opens the
-	 * streams to the output log file also.
-	 * @param textBox         The text box in the gui that will be updated with log entries
-	 * @param debugMode
-	 */
-	public Log(TextBox textBox, boolean debugMode) {
-		if (log == null) {
-			this.tb = textBox;
-			textBox.setMaxSize(TB_MAX);
-			log = this;            // set the singleton reference
-			
-			try {
-				// Place the log file on the last of the file system roots.
-				java.util.Enumeration enum = javax.microedition.io.file.FileSystemRegistry.listRoots();
-				String lastRoot = "";
-				for (;enum.hasMoreElements();) {
-					lastRoot = (String) enum.nextElement();			
-				}
-				
-				// Open the file connection for the log file
-				String dumpLogName = "ftpLog.txt";
-				String dumpLogPath = "file:///"+lastRoot+dumpLogName;
-				fileCon = (FileConnection) Connector.open(dumpLogPath);
-				if (!fileCon.exists())
-				{
-					put("Created file "+dumpLogPath);					
-					fileCon.create();
-				}
-				else
-				{
-					fileCon.truncate(0);
-				}
-				
-				putPublic("Logfile: "+dumpLogPath);
-
-				// open the output streams for the log file
-				fileOutputStream = fileCon.openOutputStream();
-				filePrintStream = new PrintStream(fileOutputStream);
-
-			} catch (Exception e) {
-				Log.logException(e);
-			}			
-		}
-	}	
-	
-	private static Log instance() {
-		return log;
-	}
-
-	/**
-	 * Updates the gui text box with the specified string.
-	 * @param preparedString
-	 */
-	private void printToTextBox(String preparedString) {
-		try {		
-			// Print to text box in gui
-			TextBox tb = instance().tb;			
-			
-			// Delete old text from the text box
-			if (tb.size() + preparedString.length() > TB_MAX) {
-				tb.delete(0, (preparedString.length()<=tb.size()) ? preparedString.length() : tb.size() );				
-			}
-			
-			// Only insert text if it's not too long
-			if (preparedString.length() < TB_MAX)
-			{
-				tb.insert(preparedString, tb.size());
-			}
-			else
-			{
-				System.out.print("ERROR: can't write to dumpLog. String too long. Length = " + preparedString.length() + " :"+preparedString);
-			}
-		} catch (Exception e) {
-			Log.logException(e);
-		}		
-	}
-	
-	/**
-	 * Prints the specified string to the log file.
-	 * @param preparedString String to be printed.
-	 */
-	private void printToFile(String preparedString)
-	{
-		try {
-			// Print to file
-			if (instance().filePrintStream != null) {			
-				instance().filePrintStream.print(preparedString);
-			}
-			else 
-			{
-				System.out.print("ERROR: can't write to dumpLog");
-			}		
-		} catch (Exception e) {
-			Log.logException(e);
-		}
-	}
-	
-	/**
-	 * This method decide's where a log entry should be printed based 
-	 * on the type of trace and if debug mode is enabled.
-	 * @param str        String to be printed.
-	 * @param userTrace  Indicates if this trace should be shown to the user.
-	 */
-	private synchronized void print(String str, boolean userTrace)
-	{
-		// Prepare print string
-		str = "["+str+"]\r\n";
-		
-		printToFile(str);
-		if (debugMode || userTrace) {
-			// When in debug mode print all info to the 
-			// text box and stdout for diagnostic purposes; also, if
-			// it's a 'public' trace print it there also so the 
-			// user can see useful information printed.
-			
-			printToTextBox(str);
-			
-			// Print to stdout, useful in simulator only
-			System.out.print(str);
-		}
-	}
-	
-	/**
-	 * Prints the specified string to the text box and log
-	 * @param str
-	 */
-	public synchronized static void putPublic(String str)
-	{
-		instance().print(str, true);
-	}
-	
-	/**
-	 * Internal trace not to be shown to user unless debug mode 
-	 * is enabled.
-	 * @param str
-	 */
-	public synchronized static void put(String str) {
-		instance().print(str, false);
-	}
-	
-	/**
-	 * Exceptions are traced uniformly using this method.
-	 * @param ex
-	 */
-	public synchronized static void logException(Throwable ex)
-	{
-		ex.printStackTrace();
-		put("Exception : " + ex.toString());
-		putPublic("An exception has occurred.");
-	}
-	
-	/**
-	 * Enable or disable debug mode.
-	 * @param debugMode
-	 */
-	public synchronized static void setDebugModeStatus(boolean debugMode) {
-		instance().debugMode = debugMode;
-	}
-}
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ftpservmobile;
+
+import javax.microedition.lcdui.*;
+import javax.microedition.io.*;
+import javax.microedition.io.file.FileConnection;
+import java.io.*;
+
+/**
+ * This class is used to handle logging in a uniform way across
+ * all classes associated with the FTP Server.  This class acts
+ * as a singleton. 
+ *
+ * Entries are added to a ring buffer and written out by a background
+ * thread in batches, so a thread logging never waits for the file, the
+ * text box or stdout. Only a very short lock is taken to claim a slot,
+ * when the buffer is full the entry is dropped and counted instead.
+ * Entries below the active level are discarded straight away, callers
+ * on busy paths check isEnabled() first so that the message isn't even
+ * built.
+ */
+public class Log implements Runnable {
+	// Levels, an entry is kept if its level is at least the active level
+	public static final int DEBUG = 0;
+	public static final int INFO = 1;
+	public static final int WARN = 2;
+	public static final int ERROR = 3;
+	private static final String[] LEVEL_NAMES = { "debug", "info", "warn", "error" };
+
+	private static final int CAPACITY = 256;        // must be a power of two
+	private static final int MASK = CAPACITY - 1;
+	private static final int FLUSH_INTERVAL = 250;  // ms, max time an entry waits to be written
+
+	private static Log log = null;            // used to refer to the singleton object
+	private static volatile int level = DEBUG;
+	private TextBox tb = null;                // refers to the text box in the gui
+	private static final int TB_MAX = 300;    // max number of chars allowed in the text box in the gui
+	private OutputStream fileOutputStream = null;
+	private FileConnection fileCon = null;
+	private volatile boolean debugMode = true;  // if set every entry is also shown in the gui and on stdout
+
+	private Object claimLock = new Object();  // held while a slot is claimed, the writer waits on it
+	private String[] entries = new String[CAPACITY];
+	private boolean[] userTraces = new boolean[CAPACITY];  // set for entries the user should see
+	private volatile int head = 0;            // next entry to write, only changed by the writer
+	private int tail = 0;                     // next free slot, changed with claimLock held
+	private int dropped = 0;                  // entries lost because the buffer was full
+	private boolean closed = false;
+	private Thread writer = null;
+	
+	/**
+	 * Constructor. This creates the singleton instance, it opens the
+	 * streams to the output log file also.
+	 * @param textBox         The text box in the gui that will be updated with log entries
+	 * @param debugMode
+	 */
+	public Log(TextBox textBox, boolean debugMode) {
+		if (log == null) {
+			this.tb = textBox;
+			this.debugMode = debugMode;
+			textBox.setMaxSize(TB_MAX);
+			log = this;            // set the singleton reference
+			
+			try {
+				// Place the log file on the last of the file system roots.
+				java.util.Enumeration roots = javax.microedition.io.file.FileSystemRegistry.listRoots();
+				String lastRoot = "";
+				for (;roots.hasMoreElements();) {
+					lastRoot = (String) roots.nextElement();			
+				}
+				
+				// Open the file connection for the log file
+				String dumpLogName = "ftpLog.txt";
+				String dumpLogPath = "file:///"+lastRoot+dumpLogName;
+				fileCon = (FileConnection) Connector.open(dumpLogPath);
+				if (!fileCon.exists())
+				{
+					put("Created file "+dumpLogPath);					
+					fileCon.create();
+				}
+				else
+				{
+					fileCon.truncate(0);
+				}
+				
+				putPublic("Logfile: "+dumpLogPath);
+
+				// open the output stream for the log file
+				fileOutputStream = fileCon.openOutputStream();
+
+			} catch (Exception e) {
+				Log.logException(e);
+			}
+
+			writer = new Thread(this);
+			writer.start();
+		}
+	}	
+	
+	private static Log instance() {
+		return log;
+	}
+
+	/**
+	 * Updates the gui text box with the specified string.
+	 * @param preparedString
+	 */
+	private void printToTextBox(String preparedString) {
+		try {		
+			// Delete old text from the text box
+			if (tb.size() + preparedString.length() > TB_MAX) {
+				tb.delete(0, (preparedString.length()<=tb.size()) ? preparedString.length() : tb.size() );				
+			}
+			
+			// Only insert text if it's not too long
+			if (preparedString.length() < TB_MAX)
+			{
+				tb.insert(preparedString, tb.size());
+			}
+			else
+			{
+				System.out.print("ERROR: can't write to dumpLog. String too long. Length = " + preparedString.length() + " :"+preparedString);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}		
+	}
+	
+	/**
+	 * Add an entry to the ring buffer, it is dropped if the buffer is full.
+	 * @param str        String to be printed.
+	 * @param userTrace  Indicates if this trace should be shown to the user.
+	 */
+	private void append(String str, boolean userTrace)
+	{
+		synchronized (claimLock) {
+			if (tail - head == CAPACITY) {
+				dropped++;
+				return;
+			}
+			entries[tail & MASK] = str;
+			userTraces[tail & MASK] = userTrace;
+			tail++;
+			if (tail - head == CAPACITY / 2) {
+				// Filling up, don't wait for the next flush
+				claimLock.notify();
+			}
+		}
+	}
+
+	/**
+	 * Write all buffered entries. Only called by the writer thread.
+	 */
+	private void drain()
+	{
+		int end;
+		int lost;
+		synchronized (claimLock) {
+			end = tail;
+			lost = dropped;
+			dropped = 0;
+		}
+		if (head == end && lost == 0) {
+			return;
+		}
+
+		StringBuffer batch = new StringBuffer();
+		for (int h = head; h != end; h++) {
+			String str = "[" + entries[h & MASK] + "]\r\n";
+			boolean userTrace = userTraces[h & MASK];
+			entries[h & MASK] = null;
+			batch.append(str);
+			if (debugMode || userTrace) {
+				// When in debug mode print all info to the 
+				// text box and stdout for diagnostic purposes; also, if
+				// it's a 'public' trace print it there also so the 
+				// user can see useful information printed.
+				printToTextBox(str);
+				
+				// Print to stdout, useful in simulator only
+				System.out.print(str);
+			}
+		}
+		head = end;
+		if (lost > 0) {
+			batch.append("[" + lost + " log entries dropped]\r\n");
+		}
+
+		try {
+			if (fileOutputStream != null) {
+				fileOutputStream.write(batch.toString().getBytes());
+				fileOutputStream.flush();
+			} else {
+				System.out.print("ERROR: can't write to dumpLog");
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 * The writer thread, writes the buffered entries every so often.
+	 */
+	public void run()
+	{
+		while (true) {
+			boolean finished;
+			synchronized (claimLock) {
+				if (tail == head && !closed) {
+					try {
+						claimLock.wait(FLUSH_INTERVAL);
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+				finished = closed;
+			}
+			drain();
+			if (finished) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @param entryLevel
+	 * @return True if entries of the given level are kept. Check this before
+	 *         building a message that is costly to format.
+	 */
+	public static boolean isEnabled(int entryLevel)
+	{
+		return entryLevel >= level;
+	}
+
+	/**
+	 * Set the lowest level of the entries that are kept.
+	 * @param newLevel
+	 */
+	public static void setLevel(int newLevel)
+	{
+		level = newLevel;
+	}
+
+	/**
+	 * @param name         Name of a level, e.g. "info".
+	 * @param defaultLevel Returned if the name isn't known.
+	 * @return             The level.
+	 */
+	public static int parseLevel(String name, int defaultLevel)
+	{
+		if (name != null) {
+			name = name.trim().toLowerCase();
+			for (int i = 0; i < LEVEL_NAMES.length; i++) {
+				if (LEVEL_NAMES[i].equals(name)) {
+					return i;
+				}
+			}
+		}
+		return defaultLevel;
+	}
+	
+	/**
+	 * Prints the specified string to the text box and log
+	 * @param str
+	 */
+	public static void putPublic(String str)
+	{
+		if (log != null && INFO >= level) {
+			instance().append(str, true);
+		}
+	}
+	
+	/**
+	 * Internal trace not to be shown to user unless debug mode 
+	 * is enabled.
+	 * @param str
+	 */
+	public static void put(String str) {
+		if (log != null && DEBUG >= level) {
+			instance().append(str, false);
+		}
+	}
+
+	/**
+	 * Internal trace at the given level, not to be shown to user
+	 * unless debug mode is enabled.
+	 * @param entryLevel
+	 * @param str
+	 */
+	public static void put(int entryLevel, String str) {
+		if (log != null && entryLevel >= level) {
+			instance().append(str, false);
+		}
+	}
+	
+	/**
+	 * Exceptions are traced uniformly using this method.
+	 * @param ex
+	 */
+	public static void logException(Throwable ex)
+	{
+		ex.printStackTrace();
+		put(ERROR, "Exception : " + ex.toString());
+		putPublic("An exception has occurred.");
+	}
+	
+	/**
+	 * Enable or disable debug mode.
+	 * @param debugMode
+	 */
+	public static void setDebugModeStatus(boolean debugMode) {
+		instance().debugMode = debugMode;
+	}
+
+	/**
+	 * Write out everything still buffered and close the log file.
+	 * Entries added after this are never written.
+	 */
+	public static void shutdown() {
+		Log instance = instance();
+		if (instance == null || instance.writer == null) {
+			return;
+		}
+		synchronized (instance.claimLock) {
+			instance.closed = true;
+			instance.claimLock.notify();
+		}
+		try {
+			instance.writer.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		try {
+			if (instance.fileOutputStream != null) instance.fileOutputStream.close();
+			if (instance.fileCon != null) instance.fileCon.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,114 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ftpservmobile;
+
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * This class caches the FileMetadata of recently used paths so that the
+ * file system isn't probed several times for the same path while a
+ * command is validated and executed. The server must invalidate a path
+ * whenever it changes it. Entries also expire after a short time as
+ * other applications on the device may change the file system too.
+ */
+public class MetadataCache {
+	private Hashtable entries = new Hashtable();   // FileMetadata keyed by path
+	private Vector order = new Vector();           // paths in the order they were added, oldest first
+	private int maxEntries;
+	private long maxAge;                           // time in ms after which an entry is probed again
+	private int hits = 0;
+	private int misses = 0;
+	private int generation = 0;                    // incremented on every invalidation
+
+	/**
+	 * Constructor.
+	 * @param maxEntries Max number of paths held.
+	 * @param maxAge     Time in ms that an entry remains valid.
+	 */
+	public MetadataCache(int maxEntries, long maxAge) {
+		this.maxEntries = maxEntries;
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * Get the details of the given path, the file system is only probed
+	 * if they aren't already cached.
+	 * @param path Fully qualified path, directories should end with a /
+	 * @return     The details of the path.
+	 * @throws IOException
+	 */
+	public FileMetadata lookup(String path) throws IOException {
+		int probeGeneration;
+		synchronized (this) {
+			FileMetadata metadata = (FileMetadata) entries.get(path);
+			if (metadata != null && System.currentTimeMillis() - metadata.probeTime < maxAge) {
+				hits++;
+				return metadata;
+			}
+			misses++;
+			probeGeneration = generation;
+		}
+
+		// Probe without holding the lock, other sessions can carry on
+		FileMetadata metadata = FileMetadata.probe(path);
+		synchronized (this) {
+			if (probeGeneration != generation) {
+				// Something changed while we were probing, don't cache a stale result
+				return metadata;
+			}
+			if (entries.put(path, metadata) == null) {
+				order.addElement(path);
+				if (order.size() > maxEntries) {
+					entries.remove(order.firstElement());
+					order.removeElementAt(0);
+				}
+			}
+		}
+		return metadata;
+	}
+
+	/**
+	 * Remove a changed path from the cache. Anything below the path is
+	 * removed too, in case it is a directory that was renamed.
+	 * @param path Fully qualified path, with or without a trailing /
+	 */
+	public synchronized void invalidate(String path) {
+		generation++;
+		path = Util.stripTrailingSlashs(path);
+		String dirPath = path + "/";
+		for (int i = order.size() - 1; i >= 0; i--) {
+			String cached = (String) order.elementAt(i);
+			if (cached.equals(path) || cached.startsWith(dirPath)) {
+				entries.remove(cached);
+				order.removeElementAt(i);
+			}
+		}
+	}
+
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	public synchronized int getMisses() {
+		return misses;
+	}
+}
@@ -0,0 +1,294 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ftpservmobile;
+
+import java.util.Enumeration;
+import java.util.Vector;
+
+/**
+ * This class collects the statistics of the whole server: how often each
+ * command is executed and how long it takes, how much data is transferred
+ * in each direction and how many sessions are open. The counters are split
+ * into stripes, each with its own lock. A session or data worker always
+ * records into the same stripe, so threads seldom wait for each other.
+ * Reading the statistics adds up all the stripes.
+ */
+public class Metrics {
+	public static final int DOWNLOAD = 0;
+	public static final int UPLOAD = 1;
+	public static final int MAX_VERBS = 32;          // commands with a higher index are not recorded
+
+	// Upper bound in ms of each latency bucket, the last bucket takes everything above
+	private static final long[] LATENCY_LIMITS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000 };
+	private static final int BUCKETS = LATENCY_LIMITS.length + 1;
+	private static final String[] DIRECTION_NAMES = { "Download", "Upload" };
+
+	private Stripe[] stripes = null;
+	private int mask;
+
+	/**
+	 * Constructor.
+	 * @param stripeCount Number of stripes, rounded up to a power of two.
+	 */
+	public Metrics(int stripeCount) {
+		int count = 1;
+		while (count < stripeCount) {
+			count <<= 1;
+		}
+		mask = count - 1;
+		stripes = new Stripe[count];
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * Choose the stripe an object records into, the caller keeps it.
+	 * @param owner The session or thread doing the recording.
+	 * @return      Index of the stripe.
+	 */
+	public int stripeFor(Object owner) {
+		int h = System.identityHashCode(owner);
+		// Objects are aligned in memory, mix in the higher bits
+		h ^= (h >>> 16);
+		h ^= (h >>> 7);
+		return h & mask;
+	}
+
+	/**
+	 * Record one executed command.
+	 * @param stripe    Stripe of the session.
+	 * @param verbIndex Index of the command handler, see CommandHandler.getIndex().
+	 * @param latency   Time in ms taken to execute the command.
+	 */
+	public void recordCommand(int stripe, int verbIndex, long latency) {
+		if (verbIndex < 0 || verbIndex >= MAX_VERBS) {
+			return;
+		}
+		int bucket = 0;
+		while (bucket < LATENCY_LIMITS.length && latency > LATENCY_LIMITS[bucket]) {
+			bucket++;
+		}
+		Stripe s = stripes[stripe & mask];
+		synchronized (s) {
+			s.commands[verbIndex]++;
+			s.commandTime[verbIndex] += latency;
+			s.latencies[verbIndex][bucket]++;
+		}
+	}
+
+	/**
+	 * Record one finished file transfer.
+	 * @param stripe    Stripe of the data worker.
+	 * @param direction DOWNLOAD or UPLOAD.
+	 * @param bytes     Number of bytes transferred.
+	 * @param duration  Time in ms the transfer took.
+	 */
+	public void recordTransfer(int stripe, int direction, long bytes, long duration) {
+		Stripe s = stripes[stripe & mask];
+		synchronized (s) {
+			s.transfers[direction]++;
+			s.transferBytes[direction] += bytes;
+			s.transferTime[direction] += duration;
+		}
+	}
+
+	/**
+	 * Record the commands handed between a session and its data worker.
+	 * @param stripe       Stripe of the session.
+	 * @param handoffs     Number of commands handed over.
+	 * @param totalLatency Total time in ms the commands spent queued.
+	 * @param maxLatency   Longest time in ms a command spent queued.
+	 */
+	public void recordHandoffs(int stripe, int handoffs, long totalLatency, long maxLatency) {
+		Stripe s = stripes[stripe & mask];
+		synchronized (s) {
+			s.handoffs += handoffs;
+			s.handoffTime += totalLatency;
+			if (maxLatency > s.maxHandoffTime) {
+				s.maxHandoffTime = maxLatency;
+			}
+		}
+	}
+
+	/**
+	 * Record that a session has been opened.
+	 * @param stripe Stripe of the session.
+	 */
+	public void sessionOpened(int stripe) {
+		Stripe s = stripes[stripe & mask];
+		synchronized (s) {
+			s.sessionsOpened++;
+		}
+	}
+
+	/**
+	 * Record that a session has been closed.
+	 * @param stripe Stripe of the session.
+	 */
+	public void sessionClosed(int stripe) {
+		Stripe s = stripes[stripe & mask];
+		synchronized (s) {
+			s.sessionsClosed++;
+		}
+	}
+
+	/**
+	 * Add up all the stripes.
+	 * @return A stripe holding the totals.
+	 */
+	private Stripe total() {
+		Stripe total = new Stripe();
+		for (int i = 0; i < stripes.length; i++) {
+			Stripe s = stripes[i];
+			synchronized (s) {
+				for (int v = 0; v < MAX_VERBS; v++) {
+					total.commands[v] += s.commands[v];
+					total.commandTime[v] += s.commandTime[v];
+					for (int b = 0; b < BUCKETS; b++) {
+						total.latencies[v][b] += s.latencies[v][b];
+					}
+				}
+				for (int d = 0; d < 2; d++) {
+					total.transfers[d] += s.transfers[d];
+					total.transferBytes[d] += s.transferBytes[d];
+					total.transferTime[d] += s.transferTime[d];
+				}
+				total.handoffs += s.handoffs;
+				total.handoffTime += s.handoffTime;
+				if (s.maxHandoffTime > total.maxHandoffTime) {
+					total.maxHandoffTime = s.maxHandoffTime;
+				}
+				total.sessionsOpened += s.sessionsOpened;
+				total.sessionsClosed += s.sessionsClosed;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * @param verbIndex Index of the command handler.
+	 * @return          Number of times the command has been executed.
+	 */
+	public long getCommandCount(int verbIndex) {
+		if (verbIndex < 0 || verbIndex >= MAX_VERBS) {
+			return 0;
+		}
+		long count = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			synchronized (stripes[i]) {
+				count += stripes[i].commands[verbIndex];
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return Number of sessions currently open.
+	 */
+	public long getActiveSessions() {
+		Stripe total = total();
+		return total.sessionsOpened - total.sessionsClosed;
+	}
+
+	/**
+	 * Find the latency below which the given share of the commands finished.
+	 * @param histogram Count of each latency bucket.
+	 * @param count     Total of the counts.
+	 * @param percent   The share, eg. 99.
+	 * @return          Upper bound of the bucket, eg. "<=50", or ">5000".
+	 */
+	private static String percentile(long[] histogram, long count, int percent) {
+		long seen = 0;
+		for (int b = 0; b < LATENCY_LIMITS.length; b++) {
+			seen += histogram[b];
+			if (seen * 100 >= count * percent) {
+				return "<=" + LATENCY_LIMITS[b];
+			}
+		}
+		return ">" + LATENCY_LIMITS[LATENCY_LIMITS.length - 1];
+	}
+
+	/**
+	 * Describe the statistics, one line for each subject. Lines start with
+	 * a space so that they can be sent as part of a multi-line reply.
+	 * @param commands The registry of the command handlers, used to name the commands.
+	 * @return         Vector of String lines.
+	 */
+	public Vector report(CommandRegistry commands) {
+		Stripe total = total();
+		Vector lines = new Vector();
+		lines.addElement(" Sessions active " + (total.sessionsOpened - total.sessionsClosed)
+				+ ", opened " + total.sessionsOpened);
+		for (int d = 0; d < 2; d++) {
+			long time = total.transferTime[d];
+			long throughput = (time > 0) ? total.transferBytes[d] * 1000 / time : 0;
+			lines.addElement(" " + DIRECTION_NAMES[d] + " " + total.transfers[d] + " files, "
+					+ total.transferBytes[d] + " bytes, " + throughput + " bytes/sec");
+		}
+		lines.addElement(" Data connection handoffs " + total.handoffs + ", "
+				+ total.handoffTime + " ms queued, " + total.maxHandoffTime + " ms max");
+
+		for (Enumeration e = commands.elements(); e.hasMoreElements();) {
+			CommandHandler handler = (CommandHandler) e.nextElement();
+			int v = handler.getIndex();
+			if (v < 0 || v >= MAX_VERBS || total.commands[v] == 0) {
+				continue;
+			}
+			long count = total.commands[v];
+			long[] histogram = total.latencies[v];
+			StringBuffer line = new StringBuffer();
+			line.append(' ').append(handler.getVerb()).append(' ').append(count).append(" calls, ")
+					.append(total.commandTime[v] / count).append(" ms avg, p50 ")
+					.append(percentile(histogram, count, 50)).append(" ms, p99 ")
+					.append(percentile(histogram, count, 99)).append(" ms,");
+			for (int b = 0; b < BUCKETS; b++) {
+				if (histogram[b] != 0) {
+					line.append(' ');
+					if (b < LATENCY_LIMITS.length) {
+						line.append("<=").append(LATENCY_LIMITS[b]);
+					} else {
+						line.append('>').append(LATENCY_LIMITS[b - 1]);
+					}
+					line.append(':').append(histogram[b]);
+				}
+			}
+			lines.addElement(line.toString());
+		}
+		return lines;
+	}
+
+	/**
+	 * The counters of one stripe, guarded by the stripe itself.
+	 */
+	private static class Stripe {
+		private long[] commands = new long[MAX_VERBS];
+		private long[] commandTime = new long[MAX_VERBS];  // total ms spent executing each command
+		private long[][] latencies = new long[MAX_VERBS][BUCKETS];
+		private long[] transfers = new long[2];
+		private long[] transferBytes = new long[2];
+		private long[] transferTime = new long[2];
+		private long handoffs = 0;
+		private long handoffTime = 0;
+		private long maxHandoffTime = 0;
+		private long sessionsOpened = 0;
+		private long sessionsClosed = 0;
+	}
+}
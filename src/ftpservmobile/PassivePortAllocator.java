@@ -0,0 +1,203 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ftpservmobile;
+
+import java.io.IOException;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.StreamConnectionNotifier;
+
+/**
+ * This class hands out the ports used for passive data connections. The
+ * ports come from a fixed range shared by all sessions, a bitset records
+ * which ones are in use. The listening socket of a port stays open when
+ * the port is released so that the next PASV doesn't have to bind it again.
+ */
+public class PassivePortAllocator {
+	private int firstPort;                              // lowest port in the range
+	private int[] inUse = null;                         // bit set for each port currently allocated
+	private int[] failed = null;                        // bit set for each port that could not be bound
+	private StreamConnectionNotifier[] listeners = null; // bound listening sockets, null if not bound yet
+	private int bindFailures = 0;
+
+	/**
+	 * Constructor.
+	 * @param firstPort Lowest port in the range.
+	 * @param count     Number of ports in the range.
+	 */
+	public PassivePortAllocator(int firstPort, int count) {
+		this.firstPort = firstPort;
+		inUse = new int[(count + 31) / 32];
+		failed = new int[(count + 31) / 32];
+		listeners = new StreamConnectionNotifier[count];
+	}
+
+	private static boolean isSet(int[] bits, int index) {
+		return (bits[index >> 5] & (1 << (index & 31))) != 0;
+	}
+
+	private static void set(int[] bits, int index) {
+		bits[index >> 5] |= 1 << (index & 31);
+	}
+
+	private static void clear(int[] bits, int index) {
+		bits[index >> 5] &= ~(1 << (index & 31));
+	}
+
+	/**
+	 * Bind the listening socket of a port if it isn't bound already.
+	 * @param index Index of the port in the range.
+	 * @return      True if the port is bound.
+	 */
+	private boolean bind(int index) {
+		if (listeners[index] == null) {
+			String portStr = "socket://:" + (firstPort + index);
+			try {
+				listeners[index] = (StreamConnectionNotifier) Connector.open(portStr);
+				if (Log.isEnabled(Log.DEBUG)) {
+					Log.put("Bound passive port " + portStr);
+				}
+			} catch (IOException e) {
+				if (Log.isEnabled(Log.DEBUG)) {
+					Log.put("IOException when opening socket " + portStr);
+				}
+				bindFailures++;
+				set(failed, index);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Bind the first few ports in the range up front.
+	 * @param count Number of ports to bind.
+	 */
+	public synchronized void prebind(int count) {
+		for (int i = 0; i < count && i < listeners.length; i++) {
+			bind(i);
+		}
+	}
+
+	/**
+	 * Allocate a free port with a bound listening socket. Ports that failed
+	 * to bind are only tried again when no other port is free.
+	 * @return The port, or null if none is available.
+	 */
+	public synchronized PassivePort allocate() {
+		for (int pass = 0; pass < 2; pass++) {
+			for (int i = 0; i < listeners.length; i++) {
+				if (!isSet(inUse, i) && !isSet(failed, i) && bind(i)) {
+					set(inUse, i);
+					return new PassivePort(i, firstPort + i, listeners[i]);
+				}
+			}
+			// Nothing found, give the ports that failed another chance
+			for (int i = 0; i < failed.length; i++) {
+				failed[i] = 0;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Return a port to the pool.
+	 * @param port
+	 */
+	public synchronized void release(PassivePort port) {
+		if (port.isClosed()) {
+			// The listening socket was closed, bind it again next time
+			listeners[port.index] = null;
+		}
+		clear(inUse, port.index);
+	}
+
+	/**
+	 * @return Number of times binding a port has failed.
+	 */
+	public synchronized int getBindFailures() {
+		return bindFailures;
+	}
+
+	/**
+	 * Closes all listening sockets.
+	 */
+	public synchronized void close() {
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i] != null) {
+				try {
+					listeners[i].close();
+				} catch (IOException e) {
+					Log.logException(e);
+				}
+				listeners[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * A port allocated for one passive data connection.
+	 */
+	public class PassivePort {
+		private int index;                            // index of the port in the range
+		private int port;
+		private StreamConnectionNotifier listener;
+		private boolean closed = false;               // set if the listening socket was closed while allocated
+
+		private PassivePort(int index, int port, StreamConnectionNotifier listener) {
+			this.index = index;
+			this.port = port;
+			this.listener = listener;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		public StreamConnectionNotifier getListener() {
+			return listener;
+		}
+
+		/**
+		 * Close the listening socket, this aborts a pending accept.
+		 */
+		public synchronized void close() {
+			if (!closed) {
+				closed = true;
+				try {
+					listener.close();
+				} catch (IOException e) {
+					Log.logException(e);
+				}
+			}
+		}
+
+		public synchronized boolean isClosed() {
+			return closed;
+		}
+
+		/**
+		 * Return the port to the pool it was allocated from.
+		 */
+		public void release() {
+			PassivePortAllocator.this.release(this);
+		}
+	}
+}
@@ -0,0 +1,209 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ftpservmobile;
+
+import java.util.Vector;
+
+/**
+ * This class runs client sessions on a fixed number of worker threads.
+ * Accepted sessions are queued in a short backlog until a worker becomes
+ * free, sessions arriving while the backlog is full are refused.
+ */
+public class SessionPool {
+	private static final long JOIN_TIMEOUT = 5000;   // ms to wait for each worker to finish on shutdown
+
+	private Vector backlog = new Vector();        // sessions accepted but not yet picked up by a worker
+	private int backlogLimit;                     // max number of sessions allowed to wait in the backlog
+	private Worker[] workers = null;              // the threads that run the sessions
+	private int idleWorkers = 0;                  // workers not running a session
+	private boolean shutdownInitiated = false;
+
+	/**
+	 * Constructor. This creates and starts the worker threads.
+	 *
+	 * @param maxSessions  Number of sessions that may run concurrently.
+	 * @param backlogLimit Number of sessions that may wait for a free worker.
+	 */
+	public SessionPool(int maxSessions, int backlogLimit) {
+		this.backlogLimit = backlogLimit;
+		workers = new Worker[maxSessions];
+		idleWorkers = maxSessions;
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Worker();
+			workers[i].start();
+		}
+		Log.put("Session pool started with " + maxSessions + " workers, backlog " + backlogLimit);
+	}
+
+	/**
+	 * Works out how many sessions can be run given the memory budget of
+	 * each session and the memory currently free on the device.
+	 *
+	 * @param maxSessions   The configured maximum number of sessions.
+	 * @param sessionBudget Number of bytes reserved for each session.
+	 * @return              Number of sessions to run, at least one.
+	 */
+	public static int sizeForMemory(int maxSessions, int sessionBudget) {
+		long affordable = Runtime.getRuntime().freeMemory() / sessionBudget;
+		if (affordable < maxSessions) {
+			Log.put("Only enough memory for " + affordable + " of " + maxSessions + " sessions.");
+			maxSessions = (int) affordable;
+		}
+		return (maxSessions < 1) ? 1 : maxSessions;
+	}
+
+	/**
+	 * Queue a session to be run by the next free worker. Sessions that
+	 * idle workers are about to pick up don't count against the backlog
+	 * limit, only those that will have to wait for a worker.
+	 *
+	 * @param session The session to run.
+	 * @return        False if the backlog is full or the pool is shutting down.
+	 */
+	public synchronized boolean submit(ConnectionThread session) {
+		if (shutdownInitiated || backlog.size() >= idleWorkers + backlogLimit) {
+			return false;
+		}
+		backlog.addElement(session);
+		notify();
+		return true;
+	}
+
+	/**
+	 * Take the oldest session from the backlog, waiting until one is
+	 * available, and hand it to the given worker. Causes caller to block.
+	 * The session the worker ran before, if any, has finished.
+	 *
+	 * @param worker The worker that will run the session.
+	 * @return The next session to run, or null if the pool is shutting down.
+	 */
+	private synchronized ConnectionThread take(Worker worker) {
+		if (worker.session != null) {
+			// The worker has finished its last session
+			worker.session = null;
+			idleWorkers++;
+		}
+		while (backlog.isEmpty() && !shutdownInitiated) {
+			try {
+				wait();
+			} catch (Exception e) {
+				Log.logException(e);
+			}
+		}
+		if (shutdownInitiated) {
+			return null;
+		}
+		ConnectionThread session = (ConnectionThread) backlog.firstElement();
+		backlog.removeElementAt(0);
+		worker.session = session;
+		idleWorkers--;
+		return session;
+	}
+
+	/**
+	 * @return Number of sessions currently being run by a worker.
+	 */
+	public synchronized int getActiveSessionCount() {
+		int count = 0;
+		for (int i = 0; i < workers.length; i++) {
+			if (workers[i].session != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Shuts down all running and queued sessions and waits for the
+	 * worker threads to finish. A worker stuck in a session is given
+	 * up on after JOIN_TIMEOUT so that the server can still exit.
+	 */
+	public void shutdown() {
+		Log.put("SessionPool::shutdown()");
+		ConnectionThread[] queued;
+		synchronized (this) {
+			shutdownInitiated = true;
+			queued = new ConnectionThread[backlog.size()];
+			backlog.copyInto(queued);
+			backlog.removeAllElements();
+			notifyAll();
+		}
+
+		// Sessions still in the backlog never started, just close them
+		for (int i = 0; i < queued.length; i++) {
+			queued[i].close();
+		}
+
+		for (int i = 0; i < workers.length; i++) {
+			ConnectionThread session = workers[i].session;
+			if (session != null) {
+				session.shutdown();
+			}
+			if (!workers[i].awaitFinish(JOIN_TIMEOUT)) {
+				Log.put(Log.WARN, "Session worker did not stop in time.");
+			}
+		}
+		Log.put("All session workers are finished.");
+	}
+
+	/**
+	 * A worker runs sessions from the backlog, one after the other,
+	 * until the pool is shut down.
+	 */
+	class Worker extends Thread {
+		private volatile ConnectionThread session = null;   // the session currently being run
+		private boolean finished = false;                   // set when run() has returned
+
+		public void run() {
+			try {
+				ConnectionThread next;
+				while ((next = take(this)) != null) {
+					next.run();
+				}
+			} finally {
+				synchronized (this) {
+					finished = true;
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Wait for the worker to finish, but no longer than the given
+		 * time. CLDC has no timed join().
+		 *
+		 * @param timeout Max time to wait in ms.
+		 * @return        True if the worker has finished.
+		 */
+		synchronized boolean awaitFinish(long timeout) {
+			long deadline = System.currentTimeMillis() + timeout;
+			long remaining = timeout;
+			while (!finished && remaining > 0) {
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Log.logException(e);
+				}
+				remaining = deadline - System.currentTimeMillis();
+			}
+			return finished;
+		}
+	}
+}
@@ -1,69 +1,221 @@
-//
-//    Copyright 2010 Paul White
-//
-//    This file is part of FtpServerMobile.
-//
-//    FtpServerMobile is free software: you can redistribute it and/or modify
-//    it under the terms of the GNU General Public License as published by
-//    the Free Software Foundation, either version 3 of the License, or
-//    (at your option) any later version.
-
-//    FtpServerMobile is distributed in the hope that it will be useful,
-//    but WITHOUT ANY WARRANTY; without even the implied warranty of
-//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
-//    GNU General Public License for more details.
-//
-//    You should have received a copy of the GNU General Public License
-//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
-//
-
-package ftpservmobile;
-
-/**
- * This class facilitates sending of commands between
- * two threads. An object of this type can hold one 
- * command.
- */
-public class ThreadCommunicator {
-	private ThreadCommand command = null;
-	
-	/**
-	 * Get the command if one is available, if not,
-	 * wait until it is available. Causes caller to
-	 * block.
-	 * @return
-	 */
-	public synchronized ThreadCommand getCommand() {		
-		while (command == null) {
-			try {
-				wait();
-			} catch (Exception e) {
-				Log.logException(e);	
-			}			
-		}
-		ThreadCommand returnVal = command;
-		command = null;
-		notify();
-		Log.put("ThreadCommunicator::getCommand : "+returnVal);
-		return returnVal;
-	}
-	
-	/**
-	 * Store the specified command if one isn't already stored.
-	 * If one is already stored then wait until that existing one 
-	 * has been read. Causes caller to block.
-	 * @param newCommand
-	 */
-	public synchronized void putCommand(ThreadCommand newCommand) {
-		while (command != null) {
-			try {
-				wait();
-			} catch (Exception e) {
-				Log.logException(e);
-			}			
-		}
-		command = newCommand;
-		notify();
-		Log.put("ThreadCommunicator::putCommand : "+newCommand);
-	}	
-}
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ftpservmobile;
+
+/**
+ * This class facilitates sending of commands between
+ * two threads. It is a bounded queue with exactly one thread
+ * putting commands and one thread getting them. Each side only
+ * writes its own index, so no lock is taken while there is room
+ * in the queue or a command waiting. A thread that has to wait
+ * spins briefly and then parks on the monitor until woken.
+ */
+public class ThreadCommunicator {
+	private static final int CAPACITY = 4;          // must be a power of two
+	private static final int MASK = CAPACITY - 1;
+	private static final int SPIN_LIMIT = 16;       // yields before a waiting thread parks
+	private static final int PARK_TIMEOUT = 100;    // ms, parked threads recheck at least this often
+	private static final ThreadCommand CLOSE_COMMAND = new ThreadCommand(FtpCommand.CLOSE);
+
+	private ThreadCommand[] commands = new ThreadCommand[CAPACITY];
+	private long[] putTimes = new long[CAPACITY];   // when each queued command was put
+	private volatile int head = 0;                  // next slot to get, only written by the getter
+	private volatile int tail = 0;                  // next slot to put, only written by the putter
+	private volatile boolean getterParked = false;
+	private volatile boolean putterParked = false;
+	private volatile boolean closed = false;
+	private volatile ControlPoller poller = null;   // woken when a command is put, if the getter is a polled session
+
+	// Handoff latency, only written by the getter
+	private int handoffs = 0;
+	private long totalLatency = 0;
+	private long maxLatency = 0;
+
+	/**
+	 * Get the command if one is available, if not,
+	 * wait until it is available. Causes caller to
+	 * block. Once the communicator has been closed
+	 * and all commands have been read, a CLOSE command
+	 * is returned.
+	 * @return
+	 */
+	public ThreadCommand getCommand() {
+		int h = head;
+		int spins = 0;
+		while (tail == h) {
+			if (closed) {
+				return CLOSE_COMMAND;
+			}
+			if (spins++ < SPIN_LIMIT) {
+				Thread.yield();
+				continue;
+			}
+			synchronized (this) {
+				getterParked = true;
+				if (tail == h && !closed) {
+					try {
+						wait(PARK_TIMEOUT);
+					} catch (Exception e) {
+						Log.logException(e);
+					}
+				}
+				getterParked = false;
+			}
+		}
+
+		ThreadCommand returnVal = commands[h & MASK];
+		commands[h & MASK] = null;
+		long latency = System.currentTimeMillis() - putTimes[h & MASK];
+		head = h + 1;
+		if (putterParked) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+
+		handoffs++;
+		totalLatency += latency;
+		if (latency > maxLatency) {
+			maxLatency = latency;
+		}
+		return returnVal;
+	}
+
+	/**
+	 * Store the specified command if there is room for it.
+	 * If the queue is full then wait until a command
+	 * has been read. Causes caller to block.
+	 * @param newCommand
+	 */
+	public void putCommand(ThreadCommand newCommand) {
+		int t = tail;
+		int spins = 0;
+		while (t - head == CAPACITY) {
+			if (spins++ < SPIN_LIMIT) {
+				Thread.yield();
+				continue;
+			}
+			synchronized (this) {
+				putterParked = true;
+				if (t - head == CAPACITY) {
+					try {
+						wait(PARK_TIMEOUT);
+					} catch (Exception e) {
+						Log.logException(e);
+					}
+				}
+				putterParked = false;
+			}
+		}
+
+		commands[t & MASK] = newCommand;
+		putTimes[t & MASK] = System.currentTimeMillis();
+		tail = t + 1;
+		if (getterParked) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+		wakePoller();
+	}
+
+	/**
+	 * Check without waiting if the getter has something to read.
+	 *
+	 * @return True if getCommand() would return immediately.
+	 */
+	public boolean hasCommand() {
+		return tail != head || closed;
+	}
+
+	/**
+	 * Set the poller that watches the getter, it is woken whenever a
+	 * command is put or the communicator is closed so that a session
+	 * waiting for a reply is run without waiting for the next poll.
+	 *
+	 * @param poller The poller to wake, null if the getter blocks instead.
+	 */
+	public void setPoller(ControlPoller poller) {
+		this.poller = poller;
+	}
+
+	private void wakePoller() {
+		ControlPoller p = poller;
+		if (p != null) {
+			p.wake();
+		}
+	}
+
+	/**
+	 * Tell the getter that no more commands will follow, it
+	 * receives a CLOSE command once it has read the commands
+	 * already queued. Unlike putCommand() this may be called
+	 * from any thread.
+	 */
+	public void close() {
+		closed = true;
+		synchronized (this) {
+			notifyAll();
+		}
+		wakePoller();
+	}
+
+	/**
+	 * Empty the queue and open it again so that the communicator can be
+	 * reused. Neither side may be using it while this is called.
+	 */
+	public synchronized void reset() {
+		for (int i = 0; i < CAPACITY; i++) {
+			commands[i] = null;
+		}
+		head = 0;
+		tail = 0;
+		closed = false;
+		poller = null;
+		handoffs = 0;
+		totalLatency = 0;
+		maxLatency = 0;
+	}
+
+	/**
+	 * @return Number of commands handed over so far.
+	 */
+	public int getHandoffCount() {
+		return handoffs;
+	}
+
+	/**
+	 * @return Total time in ms that commands spent queued.
+	 */
+	public long getTotalLatency() {
+		return totalLatency;
+	}
+
+	/**
+	 * @return Longest time in ms that a command spent queued.
+	 */
+	public long getMaxLatency() {
+		return maxLatency;
+	}
+
+	public String toString() {
+		return handoffs + " handoffs, " + totalLatency + " ms queued in total, " + maxLatency + " ms max";
+	}
+}
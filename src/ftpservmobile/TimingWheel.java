@@ -0,0 +1,220 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ftpservmobile;
+
+/**
+ * This class implements a hashed timing wheel, one thread supervises the
+ * timeouts of every session. Timeouts are kept in a ring of slots, each
+ * slot holding the timeouts that are due in the same tick. Resetting a
+ * timeout only updates its deadline, when its old slot comes round the
+ * timeout is moved on to the slot of its new deadline.
+ */
+public class TimingWheel extends Thread {
+	private Timeout[] slots = null;       // each slot is the head of a doubly linked list
+	private int tickMs;                   // length of one tick in ms
+	private long lastTick;                // the last tick that has been processed
+	private boolean shutdownInitiated = false;
+
+	/**
+	 * Constructor.
+	 * @param tickMs    Resolution of the timeouts in ms.
+	 * @param slotCount Number of slots in the wheel.
+	 */
+	public TimingWheel(int tickMs, int slotCount) {
+		super();
+		this.tickMs = tickMs;
+		slots = new Timeout[slotCount];
+		for (int i = 0; i < slotCount; i++) {
+			// Each slot has an empty head entry so that unlinking is simple
+			slots[i] = new Timeout(null);
+			slots[i].next = slots[i];
+			slots[i].prev = slots[i];
+		}
+		lastTick = System.currentTimeMillis() / tickMs;
+	}
+
+	/**
+	 * Schedule a task to run after the given delay.
+	 * @param task    The task to run when the timeout expires.
+	 * @param delayMs Delay before the task is run.
+	 * @return        The timeout, used to reset or cancel it.
+	 */
+	public Timeout schedule(Runnable task, long delayMs) {
+		Timeout timeout = new Timeout(task);
+		timeout.reset(delayMs);
+		return timeout;
+	}
+
+	/**
+	 * Add the timeout to the slot for its deadline. Must be called with
+	 * the wheel locked.
+	 * @param timeout
+	 */
+	private void link(Timeout timeout) {
+		long tick = timeout.deadline / tickMs;
+		if (tick <= lastTick) {
+			// Already due, put it in the next slot to be processed
+			tick = lastTick + 1;
+		}
+		Timeout head = slots[(int) (tick % slots.length)];
+		timeout.next = head;
+		timeout.prev = head.prev;
+		head.prev.next = timeout;
+		head.prev = timeout;
+	}
+
+	/**
+	 * Remove the timeout from its slot. Must be called with the wheel locked.
+	 * @param timeout
+	 */
+	private void unlink(Timeout timeout) {
+		timeout.prev.next = timeout.next;
+		timeout.next.prev = timeout.prev;
+		timeout.next = null;
+		timeout.prev = null;
+	}
+
+	/**
+	 * Stop the supervision thread, pending timeouts are never run.
+	 */
+	public void shutdown() {
+		synchronized (this) {
+			shutdownInitiated = true;
+			notify();
+		}
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Log.logException(e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 * Main loop, processes one slot for each tick that passes.
+	 */
+	public void run() {
+		Log.put("TimingWheel::run()");
+		Timeout expired = null;    // list of timeouts to run, linked through nextExpired
+		while (true) {
+			synchronized (this) {
+				long now = System.currentTimeMillis();
+				while (!shutdownInitiated && now / tickMs <= lastTick) {
+					try {
+						wait((lastTick + 1) * tickMs - now);
+					} catch (InterruptedException e) {
+						Log.logException(e);
+					}
+					now = System.currentTimeMillis();
+				}
+				if (shutdownInitiated) {
+					break;
+				}
+
+				// Process every slot that has come round since the last time,
+				// there is no need to go round more than once.
+				long currentTick = now / tickMs;
+				if (currentTick - lastTick > slots.length) {
+					lastTick = currentTick - slots.length;
+				}
+				while (lastTick < currentTick) {
+					lastTick++;
+					Timeout head = slots[(int) (lastTick % slots.length)];
+					if (head.next == head) {
+						continue;
+					}
+
+					// Detach the whole slot first, a timeout moved on may
+					// land in this same slot again.
+					Timeout timeout = head.next;
+					head.prev.next = null;
+					head.next = head;
+					head.prev = head;
+					while (timeout != null) {
+						Timeout next = timeout.next;
+						timeout.next = null;
+						timeout.prev = null;
+						if (timeout.deadline / tickMs <= lastTick) {
+							timeout.nextExpired = expired;
+							expired = timeout;
+						} else {
+							// The deadline was reset, move it to its new slot
+							link(timeout);
+						}
+						timeout = next;
+					}
+				}
+			}
+
+			// Run the expired tasks without holding the lock so that they
+			// can reset or cancel timeouts.
+			while (expired != null) {
+				Timeout timeout = expired;
+				expired = expired.nextExpired;
+				timeout.nextExpired = null;
+				try {
+					timeout.task.run();
+				} catch (Throwable e) {
+					Log.logException(e);
+				}
+			}
+		}
+		Log.put("TimingWheel::run() finished.");
+	}
+
+	/**
+	 * A single timeout in the wheel.
+	 */
+	public class Timeout {
+		private Runnable task;
+		private long deadline;        // time in ms when the task is due
+		private Timeout next = null;  // the neighbours in the slot, null if not in the wheel
+		private Timeout prev = null;
+		private Timeout nextExpired = null;  // used while the expired tasks are run
+
+		private Timeout(Runnable task) {
+			this.task = task;
+		}
+
+		/**
+		 * Restart the timeout so that it expires after the given delay.
+		 * @param delayMs
+		 */
+		public void reset(long delayMs) {
+			synchronized (TimingWheel.this) {
+				deadline = System.currentTimeMillis() + delayMs;
+				if (prev == null) {
+					link(this);
+				}
+			}
+		}
+
+		/**
+		 * Stop the timeout, it can be started again with reset().
+		 */
+		public void cancel() {
+			synchronized (TimingWheel.this) {
+				if (prev != null) {
+					unlink(this);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,390 @@
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ftpservmobile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * This class copies a stream to another through a ring of buffers so that
+ * reading and writing overlap. A reader thread fills the next free buffer
+ * while the thread calling transfer() writes out the buffers already
+ * filled, the slower side sets the pace instead of both sides waiting on
+ * each other. The reader thread is kept for the next transfer, the
+ * buffers are leased from the server's BufferPool for each transfer.
+ *
+ * Each transfer starts with chunks of a size known to be safe. The writer
+ * measures the throughput over every few chunks and keeps doubling or
+ * halving the chunk size, within the configured bounds, for as long as
+ * that makes a difference. It turns back if throughput drops, and chunks
+ * are made smaller whenever single writes take too long.
+ */
+public class TransferPipeline implements Runnable {
+	private static final int PROGRESS_INTERVAL = 1024 * 1024;  // bytes between progress logs when the size is unknown
+	private static final int SAFE_CHUNK_SIZE = 2048;           // chunk size each transfer starts with, known to work everywhere
+	private static final int WINDOW_CHUNKS = 8;                // chunks written between adjustments of the chunk size
+	private static final int WRITE_LATENCY_LIMIT = 250;        // ms, chunks are made smaller if a write takes longer on average
+
+	private BufferPool bufferPool = null;    // where the buffers come from
+	private int bufferCount;
+	private byte[][] buffers = null;         // leased for the duration of a transfer
+	private int[] lengths = null;            // number of bytes in each filled buffer
+	private int minChunkSize;
+	private int maxChunkSize;                // also the size of the buffers
+	private int chunkSize;                   // number of bytes the reader puts in each buffer
+	private int filled = 0;                  // number of buffers filled and not yet written
+	private int readIndex = 0;               // next buffer for the reader to fill
+	private int writeIndex = 0;              // next buffer for the writer to write out
+	private InputStream source = null;       // set when a transfer is handed to the reader
+	private int stagesRunning = 0;           // reader and writer each count one until finished with the buffers
+	private boolean endOfInput = false;      // set once the reader has finished
+	private boolean aborted = false;         // set if the writer gave up, the reader stops too
+	private boolean terminated = false;
+	private IOException readError = null;    // why the reader finished early, if it did
+	private Thread readerThread = null;
+
+	// Stats of the last transfer
+	private long readerStall = 0;            // ms the reader waited for a free buffer
+	private long writerStall = 0;            // ms the writer waited for a filled buffer
+	private long throughput = 0;             // bytes per second
+
+	/**
+	 * Constructor.
+	 * @param bufferPool   Pool the buffers are leased from.
+	 * @param bufferCount  Number of buffers in the ring, at least two.
+	 * @param minChunkSize Smallest number of bytes passed on at a time.
+	 * @param maxChunkSize Largest number of bytes passed on at a time, this is the size of each buffer.
+	 */
+	public TransferPipeline(BufferPool bufferPool, int bufferCount, int minChunkSize, int maxChunkSize) {
+		if (bufferCount < 2) {
+			bufferCount = 2;
+		}
+		if (minChunkSize < 1) {
+			minChunkSize = 1;
+		}
+		if (maxChunkSize < minChunkSize) {
+			maxChunkSize = minChunkSize;
+		}
+		this.bufferPool = bufferPool;
+		this.bufferCount = bufferCount;
+		this.minChunkSize = minChunkSize;
+		this.maxChunkSize = maxChunkSize;
+		lengths = new int[bufferCount];
+	}
+
+	/**
+	 * @return The given size limited to the configured bounds.
+	 */
+	private int clampChunkSize(int size) {
+		if (size < minChunkSize) {
+			return minChunkSize;
+		}
+		if (size > maxChunkSize) {
+			return maxChunkSize;
+		}
+		return size;
+	}
+
+	/**
+	 * Copy everything from the source to the sink, the sink is flushed at
+	 * the end. Causes caller to block, also while the buffer pool has
+	 * no room for the buffers.
+	 * @param source   The stream to read from.
+	 * @param sink     The stream to write to.
+	 * @param expected Number of bytes expected, -1 if not known. Only used to log progress.
+	 * @return         Number of bytes copied.
+	 * @throws IOException
+	 */
+	public long transfer(InputStream source, OutputStream sink, long expected) throws IOException {
+		synchronized (this) {
+			// The reader of an aborted transfer may not have noticed yet
+			while (stagesRunning > 0) {
+				waitQuietly();
+			}
+		}
+		byte[][] leasedBuffers = bufferPool.lease(bufferCount, maxChunkSize);
+		synchronized (this) {
+			if (readerThread == null) {
+				readerThread = new Thread(this);
+				readerThread.start();
+			}
+			filled = 0;
+			readIndex = 0;
+			writeIndex = 0;
+			endOfInput = false;
+			aborted = false;
+			readError = null;
+			readerStall = 0;
+			writerStall = 0;
+			throughput = 0;
+			chunkSize = clampChunkSize(SAFE_CHUNK_SIZE);
+			buffers = leasedBuffers;
+			this.source = source;
+			stagesRunning = 2;
+			notifyAll();
+		}
+
+		long total = 0;
+		long progressStep = (expected / 10 > 0) ? expected / 10 : PROGRESS_INTERVAL;
+		long nextProgress = progressStep;
+		long startTime = System.currentTimeMillis();
+
+		// Measurements for the current window of chunks
+		long windowStart = startTime;
+		long windowBytes = 0;
+		long windowWriteTime = 0;
+		int windowChunks = 0;
+		long lastThroughput = 0;     // of the previous window, 0 if there isn't one
+		boolean growing = true;      // direction the chunk size is being moved in
+		try {
+			while (true) {
+				int index;
+				synchronized (this) {
+					if (filled == 0 && !endOfInput) {
+						long start = System.currentTimeMillis();
+						while (filled == 0 && !endOfInput) {
+							waitQuietly();
+						}
+						writerStall += System.currentTimeMillis() - start;
+					}
+					if (filled == 0) {
+						break;
+					}
+					index = writeIndex;
+				}
+
+				long writeStart = System.currentTimeMillis();
+				sink.write(buffers[index], 0, lengths[index]);
+				long now = System.currentTimeMillis();
+				total += lengths[index];
+				windowBytes += lengths[index];
+				windowWriteTime += now - writeStart;
+
+				synchronized (this) {
+					writeIndex = (writeIndex + 1) % buffers.length;
+					filled--;
+					notifyAll();
+				}
+
+				if (++windowChunks == WINDOW_CHUNKS) {
+					long elapsed = (now > windowStart) ? now - windowStart : 1;
+					long windowThroughput = windowBytes * 1000 / elapsed;
+					boolean change = true;
+					if (windowWriteTime / WINDOW_CHUNKS > WRITE_LATENCY_LIMIT) {
+						growing = false;
+					} else if (windowThroughput * 10 < lastThroughput * 9) {
+						// More than 10% slower than before, turn back
+						growing = !growing;
+					} else if (windowThroughput * 10 <= lastThroughput * 11) {
+						// No real difference, stay at this size
+						change = false;
+					}
+					if (change) {
+						int newChunkSize = clampChunkSize(growing ? chunkSize * 2 : chunkSize / 2);
+						synchronized (this) {
+							chunkSize = newChunkSize;
+						}
+					}
+					lastThroughput = windowThroughput;
+					windowStart = now;
+					windowBytes = 0;
+					windowWriteTime = 0;
+					windowChunks = 0;
+				}
+				if (total >= nextProgress) {
+					if (Log.isEnabled(Log.DEBUG)) {
+						if (expected > 0) {
+							Log.put((total * 100 / expected) + "% complete (" + total + " bytes)");
+						} else {
+							Log.put("Transferred " + total + " bytes.");
+						}
+					}
+					nextProgress = (total / progressStep + 1) * progressStep;
+				}
+			}
+			sink.flush();
+			long elapsed = System.currentTimeMillis() - startTime;
+			synchronized (this) {
+				throughput = total * 1000 / ((elapsed > 0) ? elapsed : 1);
+				if (readError != null) {
+					throw readError;
+				}
+			}
+		} finally {
+			synchronized (this) {
+				// Does nothing if the reader has already finished
+				aborted = true;
+				stageFinished();
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * @return Time in ms the reader spent waiting for a free buffer during the last transfer.
+	 */
+	public synchronized long getReaderStall() {
+		return readerStall;
+	}
+
+	/**
+	 * @return Time in ms the writer spent waiting for a filled buffer during the last transfer.
+	 */
+	public synchronized long getWriterStall() {
+		return writerStall;
+	}
+
+	/**
+	 * @return Chunk size in bytes in use at the end of the last transfer.
+	 */
+	public synchronized int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * @return Average throughput of the last transfer in bytes per second.
+	 */
+	public synchronized long getThroughput() {
+		return throughput;
+	}
+
+	/**
+	 * Stop the reader thread once the current transfer is over.
+	 */
+	public void shutdown() {
+		Thread reader;
+		synchronized (this) {
+			terminated = true;
+			notifyAll();
+			reader = readerThread;
+		}
+		if (reader != null) {
+			try {
+				reader.join();
+			} catch (InterruptedException e) {
+				Log.logException(e);
+			}
+		}
+	}
+
+	/**
+	 * Called by the reader and the writer when they are done with the
+	 * buffers, the last one gives them back. Must be called with the
+	 * pipeline locked.
+	 */
+	private void stageFinished() {
+		if (--stagesRunning == 0) {
+			bufferPool.release(buffers);
+			buffers = null;
+		}
+		notifyAll();
+	}
+
+	private void waitQuietly() {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Log.logException(e);
+		}
+	}
+
+	/**
+	 * Read until the chunk is complete or the end of the stream is reached.
+	 * @return Number of bytes read, -1 at the end of the stream.
+	 * @throws IOException
+	 */
+	private static int fill(InputStream in, byte[] buffer, int size) throws IOException {
+		int length = 0;
+		while (length < size) {
+			int count = in.read(buffer, length, size - length);
+			if (count == -1) {
+				return (length > 0) ? length : -1;
+			}
+			length += count;
+		}
+		return length;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 * The reader stage, fills buffers for each transfer handed over.
+	 */
+	public void run() {
+		while (true) {
+			InputStream in;
+			synchronized (this) {
+				while (source == null && !terminated) {
+					waitQuietly();
+				}
+				if (source == null) {
+					break;
+				}
+				in = source;
+				source = null;
+			}
+
+			IOException error = null;
+			try {
+				while (true) {
+					int index;
+					int size;
+					synchronized (this) {
+						if (filled == buffers.length && !aborted) {
+							long start = System.currentTimeMillis();
+							while (filled == buffers.length && !aborted) {
+								waitQuietly();
+							}
+							readerStall += System.currentTimeMillis() - start;
+						}
+						if (aborted) {
+							break;
+						}
+						index = readIndex;
+						size = chunkSize;
+					}
+
+					int length = fill(in, buffers[index], size);
+					if (length == -1) {
+						break;
+					}
+
+					synchronized (this) {
+						lengths[index] = length;
+						readIndex = (readIndex + 1) % buffers.length;
+						filled++;
+						notifyAll();
+					}
+				}
+			} catch (IOException e) {
+				error = e;
+			} catch (RuntimeException e) {
+				Log.logException(e);
+				error = new IOException(e.toString());
+			}
+
+			synchronized (this) {
+				readError = error;
+				endOfInput = true;
+				stageFinished();
+			}
+		}
+	}
+}
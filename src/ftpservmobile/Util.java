@@ -1,39 +1,106 @@
-//
-//    Copyright 2010 Paul White
-//
-//    This file is part of FtpServerMobile.
-//
-//    FtpServerMobile is free software: you can redistribute it and/or modify
-//    it under the terms of the GNU General Public License as published by
-//    the Free Software Foundation, either version 3 of the License, or
-//    (at your option) any later version.
-
-//    FtpServerMobile is distributed in the hope that it will be useful,
-//    but WITHOUT ANY WARRANTY; without even the implied warranty of
-//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
-//    GNU General Public License for more details.
-//
-//    You should have received a copy of the GNU General Public License
-//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
-//
-
-package ftpservmobile;
-
-/**
- * This class contains some generic static utility methods.
- */
-public class Util {
-	/**
-	 * Strip any trailing /'s from the specified string and return
-	 * a new string.
-	 * @param input
-	 * @return       New string identical to input but with trailing slashes removed
-	 */
-	public static String stripTrailingSlashs(String input) {
-		if (input.length() > 0 && input.charAt(input.length()-1)=='/') {
-			input = input.substring(0,input.length()-1 );
-			input = stripTrailingSlashs(input);
-		}
-		return input;
-	}
-}
+//
+//    Copyright 2010 Paul White
+//
+//    This file is part of FtpServerMobile.
+//
+//    FtpServerMobile is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+
+//    FtpServerMobile is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with FtpServerMobile.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ftpservmobile;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * This class contains some generic static utility methods.
+ */
+public class Util {
+	/**
+	 * Strip any trailing /'s from the specified string and return
+	 * a new string.
+	 * @param input
+	 * @return       New string identical to input but with trailing slashes removed
+	 */
+	public static String stripTrailingSlashs(String input) {
+		if (input.length() > 0 && input.charAt(input.length()-1)=='/') {
+			input = input.substring(0,input.length()-1 );
+			input = stripTrailingSlashs(input);
+		}
+		return input;
+	}
+
+	/**
+	 * Format a time as YYYYMMDDHHMMSS in GMT, the form used by the
+	 * modify fact of MLST and MLSD.
+	 * @param time Time in ms since the epoch.
+	 * @return     The formatted time.
+	 */
+	public static String formatGmtTime(long time) {
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+		calendar.setTime(new Date(time));
+		StringBuffer buffer = new StringBuffer(14);
+		appendDigits(buffer, calendar.get(Calendar.YEAR), 4);
+		appendDigits(buffer, calendar.get(Calendar.MONTH) + 1, 2);
+		appendDigits(buffer, calendar.get(Calendar.DAY_OF_MONTH), 2);
+		appendDigits(buffer, calendar.get(Calendar.HOUR_OF_DAY), 2);
+		appendDigits(buffer, calendar.get(Calendar.MINUTE), 2);
+		appendDigits(buffer, calendar.get(Calendar.SECOND), 2);
+		return buffer.toString();
+	}
+
+	/**
+	 * Append a number padded with leading zeros to the given width.
+	 */
+	private static void appendDigits(StringBuffer buffer, int value, int width) {
+		String digits = Integer.toString(value);
+		for (int i = digits.length(); i < width; i++) {
+			buffer.append('0');
+		}
+		buffer.append(digits);
+	}
+
+	/**
+	 * Check a name against a glob pattern. A * in the pattern matches
+	 * any number of characters and a ? matches exactly one.
+	 * @param name
+	 * @param pattern
+	 * @return        True if the name matches the pattern.
+	 */
+	public static boolean matchesGlob(String name, String pattern) {
+		int n = 0;
+		int p = 0;
+		int starP = -1;      // position after the last * seen in the pattern
+		int starN = 0;       // position in the name that the last * has matched up to
+		while (n < name.length()) {
+			if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == name.charAt(n))) {
+				n++;
+				p++;
+			} else if (p < pattern.length() && pattern.charAt(p) == '*') {
+				starP = ++p;
+				starN = n;
+			} else if (starP != -1) {
+				// Let the last * match one more character
+				p = starP;
+				n = ++starN;
+			} else {
+				return false;
+			}
+		}
+		while (p < pattern.length() && pattern.charAt(p) == '*') {
+			p++;
+		}
+		return p == pattern.length();
+	}
+}